@@ -49,6 +49,11 @@ public class AppInfo extends ItemInfo {
      */
     Bitmap iconBitmap;
 
+    /**
+     * Whether iconBitmap is only the default icon, shown until the real icon is loaded.
+     */
+    boolean usingPlaceholderIcon;
+
     /**
      * The time at which the app was first installed.
      */
@@ -78,12 +83,26 @@ public class AppInfo extends ItemInfo {
      */
     public AppInfo(Context context, LauncherActivityInfoCompat info, UserHandleCompat user,
             IconCache iconCache, HashMap<Object, CharSequence> labelCache) {
+        this(context, info, user, iconCache, labelCache, false);
+    }
+
+    /**
+     * Must not hold the Context. If {@param placeholderIcon} is set and the icon isn't cached,
+     * the app gets a placeholder icon instead of loading it.
+     */
+    public AppInfo(Context context, LauncherActivityInfoCompat info, UserHandleCompat user,
+            IconCache iconCache, HashMap<Object, CharSequence> labelCache,
+            boolean placeholderIcon) {
         this.componentName = info.getComponentName();
         this.container = ItemInfo.NO_ID;
 
         flags = initFlags(info);
         firstInstallTime = info.getFirstInstallTime();
-        iconCache.getTitleAndIcon(this, info, labelCache);
+        if (placeholderIcon) {
+            iconCache.getTitleAndCachedIcon(this, info, labelCache);
+        } else {
+            iconCache.getTitleAndIcon(this, info, labelCache);
+        }
         intent = makeLaunchIntent(context, info, user);
         this.user = user;
     }
@@ -109,6 +128,7 @@ public class AppInfo extends ItemInfo {
         flags = info.flags;
         firstInstallTime = info.firstInstallTime;
         iconBitmap = info.iconBitmap;
+        usingPlaceholderIcon = info.usingPlaceholderIcon;
     }
 
     @Override
@@ -958,11 +958,23 @@ public class AppsCustomizePagedView extends PagedViewWithDraggableItems implemen
         layout.removeAllViewsOnPage();
         ArrayList<Object> items = new ArrayList<Object>();
         ArrayList<Bitmap> images = new ArrayList<Bitmap>();
+        mIconCache.setIconRequestFocus(getNextPage());
         for (int i = startIndex; i < endIndex; ++i) {
             AppInfo info = mApps.get(i);
-            BubbleTextView icon = (BubbleTextView) mLayoutInflater.inflate(
+            final BubbleTextView icon = (BubbleTextView) mLayoutInflater.inflate(
                     R.layout.apps_customize_application, layout, false);
             icon.applyFromApplicationInfo(info);
+            if (info.usingPlaceholderIcon) {
+                mIconCache.loadIconAsync(info, page, new IconRequestQueue.Callback() {
+                    @Override
+                    public void onIconLoaded(AppInfo app) {
+                        // Unless the page was synced again since
+                        if (icon.getTag() == app) {
+                            icon.applyFromApplicationInfo(app);
+                        }
+                    }
+                });
+            }
             icon.setOnClickListener(mLauncher);
             icon.setOnLongClickListener(this);
             icon.setOnTouchListener(this);
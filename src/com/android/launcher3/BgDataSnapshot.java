@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable copy of the background model collections, published by LauncherModel once per
+ * batch of changes to them. Readers which only need a consistent view of the model use the
+ * latest published copy instead of waiting on sBgLock, which the loader can hold for a long time.
+ *
+ * Only membership is versioned: the collections are copied, but the items in them are shared
+ * with the model, as they were with the copies made under the lock before. The fields of an item,
+ * such as its position, can change after the snapshot was taken without a new version.
+ */
+class BgDataSnapshot {
+    final long version;
+    final List<Long> workspaceScreens;
+    final List<ItemInfo> workspaceItems;
+    final List<LauncherAppWidgetInfo> appWidgets;
+    final Map<Long, FolderInfo> folders;
+    final Map<Long, ItemInfo> itemsIdMap;
+
+    BgDataSnapshot(long version, Collection<Long> workspaceScreens,
+            Collection<ItemInfo> workspaceItems, Collection<LauncherAppWidgetInfo> appWidgets,
+            Map<Long, FolderInfo> folders, Map<Long, ItemInfo> itemsIdMap) {
+        this.version = version;
+        this.workspaceScreens = Collections.unmodifiableList(
+                new ArrayList<Long>(workspaceScreens));
+        this.workspaceItems = Collections.unmodifiableList(
+                new ArrayList<ItemInfo>(workspaceItems));
+        this.appWidgets = Collections.unmodifiableList(
+                new ArrayList<LauncherAppWidgetInfo>(appWidgets));
+        this.folders = Collections.unmodifiableMap(new HashMap<Long, FolderInfo>(folders));
+        this.itemsIdMap = Collections.unmodifiableMap(new HashMap<Long, ItemInfo>(itemsIdMap));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Measures how long binding the workspace takes on the main thread, and uses it to decide how
+ * much to bind in each frame so that binding fits in the configured per-frame budget.
+ */
+class BindStats {
+    private static final String TAG = "Launcher.BindStats";
+
+    static final int PHASE_START = 0;
+    static final int PHASE_SCREENS = 1;
+    static final int PHASE_ITEMS = 2;
+    static final int PHASE_FOLDERS = 3;
+    static final int PHASE_WIDGETS = 4;
+    static final int PHASE_FINISH = 5;
+    private static final int PHASE_COUNT = 6;
+
+    private static final String[] PHASE_NAMES = new String[] {
+            "start", "screens", "items", "folders", "widgets", "finish" };
+
+    private static final int MIN_ITEMS_PER_FRAME = 1;
+    private static final int MAX_ITEMS_PER_FRAME = 32;
+
+    // Estimates used until we have measured a bind, in nanoseconds.
+    private static final long INITIAL_ITEM_COST_NS = 1000000;
+    private static final long INITIAL_WIDGET_COST_NS = 4000000;
+
+    // Weight given to each new sample in the moving averages, out of 8.
+    private static final int SAMPLE_WEIGHT = 2;
+
+    private final long mFrameBudgetNs;
+
+    private long mItemCostNs = INITIAL_ITEM_COST_NS;
+    private long mWidgetCostNs = INITIAL_WIDGET_COST_NS;
+
+    // Timings for the current (or last) bind
+    private final long[] mPhaseTimeNs = new long[PHASE_COUNT];
+    private final int[] mPhaseCount = new int[PHASE_COUNT];
+    private final int[] mPhaseFrames = new int[PHASE_COUNT];
+
+    BindStats(Context context) {
+        mFrameBudgetNs = context.getResources()
+                .getInteger(R.integer.config_workspaceBindFrameBudgetMs) * 1000000L;
+    }
+
+    long getFrameBudgetNs() {
+        return mFrameBudgetNs;
+    }
+
+    /** Returns how many workspace items to bind in the next frame. */
+    synchronized int getItemsPerFrame() {
+        long count = mFrameBudgetNs / Math.max(mItemCostNs, 1);
+        return (int) Math.max(MIN_ITEMS_PER_FRAME, Math.min(MAX_ITEMS_PER_FRAME, count));
+    }
+
+    /** Returns the expected cost of binding one widget, in nanoseconds. */
+    synchronized long getWidgetCostNs() {
+        return mWidgetCostNs;
+    }
+
+    /** Clears the timings at the start of a new bind. */
+    synchronized void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mPhaseTimeNs[i] = 0;
+            mPhaseCount[i] = 0;
+            mPhaseFrames[i] = 0;
+        }
+    }
+
+    /**
+     * Records that binding {@param count} objects in {@param phase} took {@param timeNs} in one
+     * frame, and updates the estimates used to size the next frames.
+     */
+    synchronized void record(int phase, int count, long timeNs) {
+        mPhaseTimeNs[phase] += timeNs;
+        mPhaseCount[phase] += count;
+        mPhaseFrames[phase]++;
+
+        if (count <= 0) {
+            return;
+        }
+        long cost = timeNs / count;
+        if (phase == PHASE_ITEMS) {
+            mItemCostNs = (mItemCostNs * (8 - SAMPLE_WEIGHT) + cost * SAMPLE_WEIGHT) / 8;
+        } else if (phase == PHASE_WIDGETS) {
+            mWidgetCostNs = (mWidgetCostNs * (8 - SAMPLE_WEIGHT) + cost * SAMPLE_WEIGHT) / 8;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("bind timings (budget="
+                + (mFrameBudgetNs / 1000000) + "ms):");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sb.append(' ').append(PHASE_NAMES[i]).append('=')
+                    .append(mPhaseTimeNs[i] / 1000000).append("ms/")
+                    .append(mPhaseCount[i]).append("x/")
+                    .append(mPhaseFrames[i]).append('f');
+        }
+        sb.append(" itemCost=").append(mItemCostNs / 1000).append("us")
+                .append(" widgetCost=").append(mWidgetCostNs / 1000).append("us");
+        return sb.toString();
+    }
+
+    void dumpState() {
+        Log.d(TAG, toString());
+    }
+}
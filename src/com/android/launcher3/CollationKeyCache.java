@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.util.Pair;
+
+import com.android.launcher3.compat.UserHandleCompat;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Locale;
+
+/**
+ * Caches the labels of components and their {@link CollationKey}s, so that sorting by name only
+ * compares keys instead of collating the labels again on every comparison.
+ *
+ * The cache belongs to the locale it was built in, and is cleared when the default locale
+ * changes. The entries of a package must be removed with {@link #removePackage} when it changes.
+ */
+class CollationKeyCache {
+
+    private static class Entry {
+        final String label;
+        final CollationKey key;
+
+        Entry(String label, CollationKey key) {
+            this.label = label;
+            this.key = key;
+        }
+    }
+
+    // Guarded by this. Collator isn't thread safe either.
+    private final HashMap<Pair<ComponentName, UserHandleCompat>, Entry> mEntries =
+            new HashMap<Pair<ComponentName, UserHandleCompat>, Entry>();
+    private Locale mLocale;
+    private Collator mCollator;
+
+    /** Returns the cached label of {@param cn}, or null if there isn't one. */
+    synchronized String getLabel(ComponentName cn, UserHandleCompat user) {
+        checkLocaleLocked();
+        Entry entry = mEntries.get(Pair.create(cn, user));
+        return entry != null ? entry.label : null;
+    }
+
+    /**
+     * Returns the collation key for {@param label}, the label of {@param cn}. The cached key is
+     * reused if the label hasn't changed.
+     */
+    synchronized CollationKey getCollationKey(ComponentName cn, UserHandleCompat user,
+            String label) {
+        checkLocaleLocked();
+        Pair<ComponentName, UserHandleCompat> key = Pair.create(cn, user);
+        Entry entry = mEntries.get(key);
+        if (entry == null || !entry.label.equals(label)) {
+            entry = new Entry(label, mCollator.getCollationKey(label));
+            mEntries.put(key, entry);
+        }
+        return entry.key;
+    }
+
+    /** Removes the entries of the components of {@param packageName}. */
+    synchronized void removePackage(String packageName, UserHandleCompat user) {
+        Iterator<Pair<ComponentName, UserHandleCompat>> iter = mEntries.keySet().iterator();
+        while (iter.hasNext()) {
+            Pair<ComponentName, UserHandleCompat> key = iter.next();
+            if (key.first.getPackageName().equals(packageName) && key.second.equals(user)) {
+                iter.remove();
+            }
+        }
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private void checkLocaleLocked() {
+        Locale locale = Locale.getDefault();
+        if (!locale.equals(mLocale)) {
+            mEntries.clear();
+            mLocale = locale;
+            mCollator = Collator.getInstance(locale);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * Write-behind queue for the inserts and updates of favorites made by the model. Writes to the
+ * same item are merged, and all the queued writes are applied in a single transaction once the
+ * batch delay has passed, or when {@link #flush} is called.
+ *
+ * Anything which reads the favorites table or deletes from it on the worker thread must flush
+ * the queue first.
+ */
+class DbWriteQueue {
+    private static final String TAG = "Launcher.DbWriteQueue";
+    private static final boolean DEBUG = false;
+
+    private static class PendingWrite {
+        // The uri to insert into, or null if the item is already in the database
+        final Uri insertUri;
+        final ContentValues values;
+
+        PendingWrite(Uri insertUri, ContentValues values) {
+            this.insertUri = insertUri;
+            this.values = values;
+        }
+    }
+
+    private final WorkerScheduler mScheduler;
+    private final long mBatchDelay;
+
+    // Guarded by this. Pending writes, in the order each item was first written.
+    private final LinkedHashMap<Long, PendingWrite> mPending =
+            new LinkedHashMap<Long, PendingWrite>();
+    private ContentResolver mResolver;
+    private long mOldestWriteTime;
+
+    // Guarded by this. Stats for dumpState.
+    private int mWriteCount;
+    private int mFlushCount;
+    private int mMaxDepth;
+    private long mLastFlushTime;
+    private long mMaxFlushTime;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    DbWriteQueue(WorkerScheduler scheduler, long batchDelay) {
+        mScheduler = scheduler;
+        mBatchDelay = batchDelay;
+    }
+
+    /** Queues the insert of a new item with id {@param id}. */
+    synchronized void insert(ContentResolver cr, Uri uri, long id, ContentValues values) {
+        mPending.put(id, new PendingWrite(uri, new ContentValues(values)));
+        onWriteQueued(cr);
+    }
+
+    /** Queues an update of the item with id {@param id}, merging it with any pending write. */
+    synchronized void update(ContentResolver cr, long id, ContentValues values) {
+        PendingWrite pending = mPending.get(id);
+        if (pending != null) {
+            pending.values.putAll(values);
+        } else {
+            mPending.put(id, new PendingWrite(null, new ContentValues(values)));
+        }
+        onWriteQueued(cr);
+    }
+
+    private void onWriteQueued(ContentResolver cr) {
+        mResolver = cr;
+        mWriteCount++;
+        mMaxDepth = Math.max(mMaxDepth, mPending.size());
+        if (mPending.size() == 1) {
+            mOldestWriteTime = SystemClock.uptimeMillis();
+            mScheduler.postDelayed(WorkerScheduler.LANE_INTERACTIVE, mFlushRunnable, mBatchDelay);
+        }
+    }
+
+    /** Applies all the pending writes now. */
+    void flush() {
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        final ContentResolver cr;
+        final long oldestWriteTime;
+        synchronized (this) {
+            mScheduler.remove(mFlushRunnable);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            for (Long id : mPending.keySet()) {
+                PendingWrite write = mPending.get(id);
+                if (write.insertUri != null) {
+                    ops.add(ContentProviderOperation.newInsert(write.insertUri)
+                            .withValues(write.values).build());
+                } else {
+                    ops.add(ContentProviderOperation.newUpdate(
+                            LauncherSettings.Favorites.getContentUri(id, false))
+                            .withValues(write.values).build());
+                }
+            }
+            mPending.clear();
+            cr = mResolver;
+            oldestWriteTime = mOldestWriteTime;
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        try {
+            cr.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (Exception e) {
+            // Don't lose the other writes because one of them failed.
+            Log.w(TAG, "Failed to apply " + ops.size() + " writes in a batch, retrying each", e);
+            for (ContentProviderOperation op : ops) {
+                ArrayList<ContentProviderOperation> single =
+                        new ArrayList<ContentProviderOperation>();
+                single.add(op);
+                try {
+                    cr.applyBatch(LauncherProvider.AUTHORITY, single);
+                } catch (Exception e2) {
+                    Log.e(TAG, "Failed to apply " + op, e2);
+                }
+            }
+        }
+        final long end = SystemClock.uptimeMillis();
+
+        synchronized (this) {
+            mFlushCount++;
+            mLastFlushTime = end - start;
+            mMaxFlushTime = Math.max(mMaxFlushTime, mLastFlushTime);
+        }
+        if (DEBUG) {
+            Log.d(TAG, "flushed " + ops.size() + " writes in " + (end - start) + "ms, "
+                    + (end - oldestWriteTime) + "ms after the oldest one");
+        }
+    }
+
+    synchronized void dumpState() {
+        Log.d(TAG, "depth=" + mPending.size() + " maxDepth=" + mMaxDepth
+                + " writes=" + mWriteCount + " flushes=" + mFlushCount
+                + " lastFlush=" + mLastFlushTime + "ms maxFlush=" + mMaxFlushTime + "ms");
+    }
+}
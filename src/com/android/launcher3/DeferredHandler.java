@@ -21,6 +21,7 @@ import android.os.Looper;
 import android.os.Message;
 import android.os.MessageQueue;
 import android.util.Pair;
+import android.view.Choreographer;
 
 import java.util.LinkedList;
 import java.util.ListIterator;
@@ -33,24 +34,50 @@ import java.util.ListIterator;
  * This class is fifo.
  */
 public class DeferredHandler {
+    private static final int MSG_RUN = 1;
+    private static final int MSG_FRAME_TIMEOUT = 2;
+
+    // How long to wait for a frame before running a FrameRunnable anyway, as there are no frames
+    // while the screen is off.
+    private static final long FRAME_TIMEOUT_MS = 100;
+
     private LinkedList<Pair<Runnable, Integer>> mQueue = new LinkedList<Pair<Runnable, Integer>>();
     private MessageQueue mMessageQueue = Looper.myQueue();
+    private Choreographer mChoreographer = Choreographer.getInstance();
     private Impl mHandler = new Impl();
 
-    private class Impl extends Handler implements MessageQueue.IdleHandler {
+    private class Impl extends Handler implements MessageQueue.IdleHandler,
+            Choreographer.FrameCallback {
         public void handleMessage(Message msg) {
+            if (msg != null && msg.what == MSG_FRAME_TIMEOUT) {
+                mChoreographer.removeFrameCallback(this);
+            }
+
             Pair<Runnable, Integer> p;
             Runnable r;
             synchronized (mQueue) {
                 if (mQueue.size() == 0) {
                     return;
                 }
-                p = mQueue.removeFirst();
+                p = mQueue.getFirst();
                 r = p.first;
+                if (!(r instanceof FrameRunnable)) {
+                    mQueue.removeFirst();
+                }
             }
-            r.run();
-            synchronized (mQueue) {
-                scheduleNextLocked();
+            if (r instanceof FrameRunnable) {
+                boolean hasMoreSteps = ((FrameRunnable) r).runStep();
+                synchronized (mQueue) {
+                    if (!hasMoreSteps) {
+                        mQueue.remove(p);
+                    }
+                    scheduleNextLocked();
+                }
+            } else {
+                r.run();
+                synchronized (mQueue) {
+                    scheduleNextLocked();
+                }
             }
         }
 
@@ -58,6 +85,11 @@ public class DeferredHandler {
             handleMessage(null);
             return false;
         }
+
+        public void doFrame(long frameTimeNanos) {
+            removeMessages(MSG_FRAME_TIMEOUT);
+            handleMessage(null);
+        }
     }
 
     private class IdleRunnable implements Runnable {
@@ -72,6 +104,20 @@ public class DeferredHandler {
         }
     }
 
+    /**
+     * Work which is split into steps, with one step run per frame. It stays at the front of the
+     * queue until it has run all its steps, so nothing posted after it runs in between them.
+     */
+    public static abstract class FrameRunnable implements Runnable {
+        /** Runs the next step, and returns whether there are more steps left. */
+        public abstract boolean runStep();
+
+        /** Runs all the remaining steps at once. */
+        public void run() {
+            while (runStep()) { }
+        }
+    }
+
     public DeferredHandler() {
     }
 
@@ -138,8 +184,13 @@ public class DeferredHandler {
             Runnable peek = p.first;
             if (peek instanceof IdleRunnable) {
                 mMessageQueue.addIdleHandler(mHandler);
+            } else if (peek instanceof FrameRunnable) {
+                mChoreographer.removeFrameCallback(mHandler);
+                mHandler.removeMessages(MSG_FRAME_TIMEOUT);
+                mChoreographer.postFrameCallback(mHandler);
+                mHandler.sendEmptyMessageDelayed(MSG_FRAME_TIMEOUT, FRAME_TIMEOUT_MS);
             } else {
-                mHandler.sendEmptyMessage(1);
+                mHandler.sendEmptyMessage(MSG_RUN);
             }
         }
     }
@@ -17,20 +17,29 @@
 package com.android.launcher3;
 
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.Pair;
 
 import com.android.launcher3.compat.LauncherActivityInfoCompat;
 import com.android.launcher3.compat.LauncherAppsCompat;
@@ -43,19 +52,43 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Cache of application icons.  Icons can be made from any thread.
+ *
+ * Cached icons are looked up without any lock, so that a thread asking for a cached icon never
+ * waits for another one. Only the threads changing the cache take its lock, which is never held
+ * while loading an icon. Threads asking for the same icon at once share the load of the first
+ * one. Entries are never modified once they are in the cache, except for their access time.
+ *
+ * The icons in the cache are bounded to a fraction of the memory class of the process. Once they
+ * outgrow it, the thread adding an entry evicts the least recently used ones, until they fit in
+ * a smaller share of it so that this is only done once in a while. An evicted entry is only
+ * weakly held, so that an icon which is still bound stays in use, and is found again, until
+ * nothing shows it anymore.
  */
 public class IconCache {
 
     private static final String TAG = "Launcher.IconCache";
 
     private static final int INITIAL_ICON_CACHE_CAPACITY = 50;
+    // The icons in the cache may use up to this fraction of the memory class
+    private static final int MEMORY_CLASS_FRACTION = 8;
+    // The share of the maximum size the icons are trimmed to once they outgrow it
+    private static final float TRIM_TARGET = 0.75f;
     private static final String RESOURCE_FILE_PREFIX = "icon_";
 
     // Empty class name is used for storing package default entry.
@@ -67,6 +100,56 @@ public class IconCache {
         public Bitmap icon;
         public CharSequence title;
         public CharSequence contentDescription;
+        // When the entry was last looked up, for evicting the least recently used entries first
+        volatile long lastAccess;
+    }
+
+    /** The load of an entry by another thread, which threads needing the same entry wait for. */
+    private static class PendingEntry {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile CacheEntry mEntry;
+
+        void finish(CacheEntry entry) {
+            mEntry = entry;
+            mDone.countDown();
+        }
+
+        /** Returns the loaded entry, or null if the load failed or the wait was interrupted. */
+        CacheEntry await() {
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            return mEntry;
+        }
+    }
+
+    /** An entry evicted from the cache, which is found again while its icon is still in use. */
+    private static class EvictedEntry {
+        final WeakReference<Bitmap> icon;
+        final CharSequence title;
+        final CharSequence contentDescription;
+
+        EvictedEntry(CacheEntry entry) {
+            icon = new WeakReference<Bitmap>(entry.icon);
+            title = entry.title;
+            contentDescription = entry.contentDescription;
+        }
+
+        /** Returns the entry again, or null if its icon isn't used anymore. */
+        CacheEntry revive() {
+            Bitmap bitmap = icon.get();
+            if (bitmap == null) {
+                return null;
+            }
+            CacheEntry entry = new CacheEntry();
+            entry.icon = bitmap;
+            entry.title = title;
+            entry.contentDescription = contentDescription;
+            return entry;
+        }
     }
 
     private static class CacheKey {
@@ -90,16 +173,65 @@ public class IconCache {
         }
     }
 
-    private final HashMap<UserHandleCompat, Bitmap> mDefaultIcons =
-            new HashMap<UserHandleCompat, Bitmap>();
+    // Marks the packages which aren't installed in mPackageInfos
+    private static final PackageInfo NOT_INSTALLED = new PackageInfo();
+
+    private final ConcurrentHashMap<UserHandleCompat, Bitmap> mDefaultIcons =
+            new ConcurrentHashMap<UserHandleCompat, Bitmap>();
     private final Context mContext;
     private final PackageManager mPackageManager;
     private final UserManagerCompat mUserManager;
     private final LauncherAppsCompat mLauncherApps;
-    private final HashMap<CacheKey, CacheEntry> mCache =
-            new HashMap<CacheKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    // Read without any lock. Only changed with mCacheLock held, which is never held while
+    // loading, so that the collections below stay in step with it.
+    private final ConcurrentHashMap<CacheKey, CacheEntry> mCache =
+            new ConcurrentHashMap<CacheKey, CacheEntry>(INITIAL_ICON_CACHE_CAPACITY);
+    private final Object mCacheLock = new Object();
+    // Guarded by mCacheLock
+    private final HashMap<CacheKey, EvictedEntry> mEvictedEntries =
+            new HashMap<CacheKey, EvictedEntry>();
+    // Guarded by mCacheLock. The keys in mCache and mEvictedEntries, per package and user, so
+    // that the entries of a package are found without going through every entry.
+    private final HashMap<Pair<String, UserHandleCompat>, HashSet<CacheKey>> mPackageIndex =
+            new HashMap<Pair<String, UserHandleCompat>, HashSet<CacheKey>>();
+    private final long mMaxCacheBytes;
+    // Guarded by mCacheLock
+    private long mCacheBytes;
+    private int mReviveCount;
+    private int mEvictionCount;
+    private int mTrimCount;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private final ConcurrentHashMap<CacheKey, PendingEntry> mPendingEntries =
+            new ConcurrentHashMap<CacheKey, PendingEntry>();
+    // Incremented before entries are removed, so that a load which started before the removal
+    // doesn't put a stale entry back.
+    private final AtomicInteger mGeneration = new AtomicInteger();
     private int mIconDpi;
 
+    private final IconDb mIconDb;
+    // The packages checked against the package manager since the process started, for checking
+    // the entries of the icon db.
+    private final ConcurrentHashMap<String, PackageInfo> mPackageInfos =
+            new ConcurrentHashMap<String, PackageInfo>();
+
+    private final IconRequestQueue mIconRequests = new IconRequestQueue(this);
+
+    // How long threads waited for the load of an entry by another thread, per method
+    private final LockWaitStats mPendingWaitStats = new LockWaitStats("IconCache pending loads");
+    // How long threads waited for mCacheLock, per method
+    private final LockWaitStats mCacheLockStats = new LockWaitStats("IconCache lock");
+
+    // Orders the entries to evict, by their access time when the eviction started
+    private static final Comparator<Pair<Long, CacheKey>> LEAST_RECENTLY_USED_FIRST =
+            new Comparator<Pair<Long, CacheKey>>() {
+                @Override
+                public int compare(Pair<Long, CacheKey> lhs, Pair<Long, CacheKey> rhs) {
+                    return lhs.first.compareTo(rhs.first);
+                }
+            };
+
     public IconCache(Context context) {
         ActivityManager activityManager =
                 (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
@@ -109,6 +241,8 @@ public class IconCache {
         mUserManager = UserManagerCompat.getInstance(mContext);
         mLauncherApps = LauncherAppsCompat.getInstance(mContext);
         mIconDpi = activityManager.getLauncherLargeIconDensity();
+        mIconDb = new IconDb(context);
+        mMaxCacheBytes = activityManager.getMemoryClass() * 1024L * 1024L / MEMORY_CLASS_FRACTION;
 
         // need to set mIconDpi before getting default icon
         UserHandleCompat myUser = UserHandleCompat.myUserHandle();
@@ -183,61 +317,326 @@ public class IconCache {
     /**
      * Remove any records for the supplied ComponentName.
      */
-    public synchronized void remove(ComponentName componentName, UserHandleCompat user) {
-        mCache.remove(new CacheKey(componentName, user));
+    public void remove(ComponentName componentName, UserHandleCompat user) {
+        mGeneration.incrementAndGet();
+        final long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("remove(ComponentName)", waitStart);
+            removeCachedEntryLocked(new CacheKey(componentName, user));
+        }
+        mPackageInfos.remove(componentName.getPackageName());
+        deleteFromDb(IconDb.COLUMN_COMPONENT, new String[] { componentName.flattenToString() },
+                user);
     }
 
     /**
      * Remove any records for the supplied package name.
      */
-    public synchronized void remove(String packageName, UserHandleCompat user) {
-        HashSet<CacheKey> forDeletion = new HashSet<CacheKey>();
-        for (CacheKey key: mCache.keySet()) {
-            if (key.componentName.getPackageName().equals(packageName)
-                    && key.user.equals(user)) {
-                forDeletion.add(key);
+    public void remove(String packageName, UserHandleCompat user) {
+        remove(new String[] { packageName }, user);
+    }
+
+    /**
+     * Remove any records for the supplied package names, at once.
+     */
+    public void remove(String[] packageNames, UserHandleCompat user) {
+        mGeneration.incrementAndGet();
+        final long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("remove(String[])", waitStart);
+            for (String packageName : packageNames) {
+                HashSet<CacheKey> keys = mPackageIndex.remove(Pair.create(packageName, user));
+                if (keys != null) {
+                    for (CacheKey key : keys) {
+                        CacheEntry entry = mCache.remove(key);
+                        if (entry != null) {
+                            mCacheBytes -= sizeOf(entry);
+                        }
+                        mEvictedEntries.remove(key);
+                    }
+                }
             }
         }
-        for (CacheKey condemned: forDeletion) {
-            mCache.remove(condemned);
+        for (String packageName : packageNames) {
+            mPackageInfos.remove(packageName);
         }
+        deleteFromDb(IconDb.COLUMN_PACKAGE, packageNames, user);
     }
 
     /**
      * Empty out the cache.
      */
-    public synchronized void flush() {
-        mCache.clear();
+    public void flush() {
+        mGeneration.incrementAndGet();
+        final long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("flush", waitStart);
+            mCache.clear();
+            mEvictedEntries.clear();
+            mPackageIndex.clear();
+            mCacheBytes = 0;
+        }
+        mPackageInfos.clear();
     }
 
     /**
      * Empty out the cache that aren't of the correct grid size
      */
-    public synchronized void flushInvalidIcons(DeviceProfile grid) {
-        Iterator<Entry<CacheKey, CacheEntry>> it = mCache.entrySet().iterator();
-        while (it.hasNext()) {
-            final CacheEntry e = it.next().getValue();
-            if ((e.icon != null) && (e.icon.getWidth() < grid.iconSizePx
-                    || e.icon.getHeight() < grid.iconSizePx)) {
-                it.remove();
+    public void flushInvalidIcons(DeviceProfile grid) {
+        mGeneration.incrementAndGet();
+        final long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("flushInvalidIcons", waitStart);
+            Iterator<Entry<CacheKey, CacheEntry>> it = mCache.entrySet().iterator();
+            while (it.hasNext()) {
+                final Entry<CacheKey, CacheEntry> e = it.next();
+                if (isInvalidIcon(e.getValue().icon, grid)) {
+                    mCacheBytes -= sizeOf(e.getValue());
+                    it.remove();
+                    unindexLocked(e.getKey());
+                }
+            }
+            Iterator<Entry<CacheKey, EvictedEntry>> evicted =
+                    mEvictedEntries.entrySet().iterator();
+            while (evicted.hasNext()) {
+                final Entry<CacheKey, EvictedEntry> e = evicted.next();
+                Bitmap icon = e.getValue().icon.get();
+                if (icon == null || isInvalidIcon(icon, grid)) {
+                    evicted.remove();
+                    unindexLocked(e.getKey());
+                }
             }
         }
     }
 
+    private static boolean isInvalidIcon(Bitmap icon, DeviceProfile grid) {
+        return (icon != null) && (icon.getWidth() < grid.iconSizePx
+                || icon.getHeight() < grid.iconSizePx);
+    }
+
+    /**
+     * Evicts entries from the cache as asked by {@param level}, one of the levels of
+     * {@link ComponentCallbacks2#onTrimMemory}. The icons which are still bound stay in use.
+     */
+    public void trimMemory(int level) {
+        final long maxBytes;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            maxBytes = 0;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            maxBytes = mMaxCacheBytes / 2;
+        } else {
+            maxBytes = mMaxCacheBytes;
+        }
+        final long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("trimMemory", waitStart);
+            trimToSizeLocked(maxBytes);
+            purgeEvictedEntriesLocked();
+        }
+    }
+
+    /**
+     * Returns the cached entry of {@param key}, or null if it must be loaded. An evicted entry
+     * whose icon is still in use is put back in the cache. Only the latter takes the lock of the
+     * cache, {@param callSite} names the caller in its wait stats.
+     */
+    private CacheEntry getCachedEntry(CacheKey key, String callSite) {
+        CacheEntry entry = mCache.get(key);
+        if (entry != null) {
+            entry.lastAccess = SystemClock.uptimeMillis();
+            mHitCount.incrementAndGet();
+            return entry;
+        }
+        final long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record(callSite, waitStart);
+            EvictedEntry evicted = mEvictedEntries.remove(key);
+            entry = evicted != null ? evicted.revive() : null;
+            if (entry != null) {
+                mReviveCount++;
+                putCachedEntryLocked(key, entry);
+                return entry;
+            }
+            if (evicted != null) {
+                unindexLocked(key);
+            }
+            // It may have been put in the cache since
+            entry = mCache.get(key);
+        }
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+        }
+        return entry;
+    }
+
+    private void putCachedEntryLocked(CacheKey key, CacheEntry entry) {
+        entry.lastAccess = SystemClock.uptimeMillis();
+        CacheEntry previous = mCache.put(key, entry);
+        if (previous != null) {
+            mCacheBytes -= sizeOf(previous);
+        }
+        mEvictedEntries.remove(key);
+        mCacheBytes += sizeOf(entry);
+        Pair<String, UserHandleCompat> packageKey =
+                Pair.create(key.componentName.getPackageName(), key.user);
+        HashSet<CacheKey> keys = mPackageIndex.get(packageKey);
+        if (keys == null) {
+            keys = new HashSet<CacheKey>();
+            mPackageIndex.put(packageKey, keys);
+        }
+        keys.add(key);
+        if (mCacheBytes > mMaxCacheBytes) {
+            trimToSizeLocked((long) (mMaxCacheBytes * TRIM_TARGET));
+        }
+    }
+
+    private void removeCachedEntryLocked(CacheKey key) {
+        CacheEntry entry = mCache.remove(key);
+        if (entry != null) {
+            mCacheBytes -= sizeOf(entry);
+        }
+        mEvictedEntries.remove(key);
+        unindexLocked(key);
+    }
+
+    /** Removes {@param key}, which is neither cached nor evicted anymore, from the index. */
+    private void unindexLocked(CacheKey key) {
+        Pair<String, UserHandleCompat> packageKey =
+                Pair.create(key.componentName.getPackageName(), key.user);
+        HashSet<CacheKey> keys = mPackageIndex.get(packageKey);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            mPackageIndex.remove(packageKey);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the icons fit in {@param maxBytes}, and forgets
+     * the evicted entries whose icons aren't used anymore.
+     */
+    private void trimToSizeLocked(long maxBytes) {
+        if (mCacheBytes <= maxBytes) {
+            return;
+        }
+        mTrimCount++;
+        // The access times change under lookups, so they are read once before sorting
+        ArrayList<Pair<Long, CacheKey>> keys = new ArrayList<Pair<Long, CacheKey>>(mCache.size());
+        for (Entry<CacheKey, CacheEntry> e : mCache.entrySet()) {
+            keys.add(Pair.create(e.getValue().lastAccess, e.getKey()));
+        }
+        Collections.sort(keys, LEAST_RECENTLY_USED_FIRST);
+        for (int i = 0; i < keys.size() && mCacheBytes > maxBytes; i++) {
+            CacheKey key = keys.get(i).second;
+            CacheEntry entry = mCache.remove(key);
+            mCacheBytes -= sizeOf(entry);
+            mEvictedEntries.put(key, new EvictedEntry(entry));
+            mEvictionCount++;
+        }
+        purgeEvictedEntriesLocked();
+    }
+
+    /** Forgets the evicted entries whose icons aren't used anymore. */
+    private void purgeEvictedEntriesLocked() {
+        Iterator<Entry<CacheKey, EvictedEntry>> iter = mEvictedEntries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry<CacheKey, EvictedEntry> e = iter.next();
+            if (e.getValue().icon.get() == null) {
+                iter.remove();
+                unindexLocked(e.getKey());
+            }
+        }
+    }
+
+    private int sizeOf(CacheEntry entry) {
+        // The default icons are shared by many entries, and are always kept anyway
+        return entry.icon == null || mDefaultIcons.containsValue(entry.icon)
+                ? 0 : entry.icon.getByteCount();
+    }
+
     /**
      * Fill in "application" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(AppInfo application, LauncherActivityInfoCompat info,
+    public void getTitleAndIcon(AppInfo application, LauncherActivityInfoCompat info,
             HashMap<Object, CharSequence> labelCache) {
-        CacheEntry entry = cacheLocked(application.componentName, info, labelCache,
-                info.getUser(), false);
+        CacheEntry entry = getEntry(application.componentName, info, labelCache,
+                info.getUser(), false, "getTitleAndIcon(AppInfo)");
 
         application.title = entry.title;
         application.iconBitmap = entry.icon;
         application.contentDescription = entry.contentDescription;
+        application.usingPlaceholderIcon = false;
     }
 
-    public synchronized Bitmap getIcon(Intent intent, UserHandleCompat user) {
+    /**
+     * Fill in "application" with the label for "info", and with its icon if it is already cached,
+     * in memory or in the icon db. Otherwise "application" gets the default icon as a
+     * placeholder, and its icon must be loaded with {@link #loadIconAsync} when it is shown.
+     */
+    public void getTitleAndCachedIcon(AppInfo application, LauncherActivityInfoCompat info,
+            HashMap<Object, CharSequence> labelCache) {
+        UserHandleCompat user = info.getUser();
+        CacheKey cacheKey = new CacheKey(application.componentName, user);
+        CacheEntry entry = getCachedEntry(cacheKey, "getTitleAndCachedIcon");
+        if (entry == null) {
+            // Reading the icon db is cheap next to the package manager, so only a real miss
+            // gets a placeholder
+            final int generation = mGeneration.get();
+            entry = new CacheEntry();
+            if (getEntryFromDb(application.componentName, user, entry)) {
+                entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+                final long waitStart = System.nanoTime();
+                synchronized (mCacheLock) {
+                    mCacheLockStats.record("getTitleAndCachedIcon", waitStart);
+                    if (mGeneration.get() == generation) {
+                        putCachedEntryLocked(cacheKey, entry);
+                    }
+                }
+                if (labelCache != null && !labelCache.containsKey(info.getComponentName())) {
+                    labelCache.put(info.getComponentName(), entry.title);
+                }
+            } else {
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            application.title = entry.title;
+            application.iconBitmap = entry.icon;
+            application.contentDescription = entry.contentDescription;
+            application.usingPlaceholderIcon = false;
+            return;
+        }
+
+        ComponentName labelKey = info.getComponentName();
+        if (labelCache != null && labelCache.containsKey(labelKey)) {
+            application.title = labelCache.get(labelKey).toString();
+        } else {
+            application.title = info.getLabel().toString();
+            if (labelCache != null) {
+                labelCache.put(labelKey, application.title);
+            }
+        }
+        application.contentDescription =
+                mUserManager.getBadgedLabelForUser(application.title, user);
+        application.iconBitmap = getDefaultIcon(user);
+        application.usingPlaceholderIcon = true;
+    }
+
+    /**
+     * Loads the icon of {@param app}, which has a placeholder icon, in the background. Once it is
+     * loaded it is set on {@param app}, and {@param callback} is called on the main thread.
+     * Apps shown on a {@param page} closer to {@link #setIconRequestFocus} are loaded first.
+     */
+    public void loadIconAsync(AppInfo app, int page, IconRequestQueue.Callback callback) {
+        mIconRequests.add(app, page, callback);
+    }
+
+    /** Loads the icons requested for pages closer to {@param page} first. */
+    public void setIconRequestFocus(int page) {
+        mIconRequests.setFocusPage(page);
+    }
+
+    public Bitmap getIcon(Intent intent, UserHandleCompat user) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
         // we should still look in the cache for restored app icons.
@@ -246,14 +645,15 @@ public class IconCache {
         }
 
         LauncherActivityInfoCompat launcherActInfo = mLauncherApps.resolveActivity(intent, user);
-        CacheEntry entry = cacheLocked(component, launcherActInfo, null, user, true);
+        CacheEntry entry = getEntry(component, launcherActInfo, null, user, true,
+                "getIcon(Intent)");
         return entry.icon;
     }
 
     /**
      * Fill in "shortcutInfo" with the icon and label for "info."
      */
-    public synchronized void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
+    public void getTitleAndIcon(ShortcutInfo shortcutInfo, Intent intent,
             UserHandleCompat user, boolean usePkgIcon) {
         ComponentName component = intent.getComponent();
         // null info means not installed, but if we have a component from the intent then
@@ -265,7 +665,8 @@ public class IconCache {
         } else {
             LauncherActivityInfoCompat launcherActInfo =
                     mLauncherApps.resolveActivity(intent, user);
-            CacheEntry entry = cacheLocked(component, launcherActInfo, null, user, usePkgIcon);
+            CacheEntry entry = getEntry(component, launcherActInfo, null, user, usePkgIcon,
+                    "getTitleAndIcon(ShortcutInfo)");
 
             shortcutInfo.setIcon(entry.icon);
             shortcutInfo.title = entry.title;
@@ -274,20 +675,24 @@ public class IconCache {
     }
 
 
-    public synchronized Bitmap getDefaultIcon(UserHandleCompat user) {
-        if (!mDefaultIcons.containsKey(user)) {
-            mDefaultIcons.put(user, makeDefaultIcon(user));
+    public Bitmap getDefaultIcon(UserHandleCompat user) {
+        Bitmap icon = mDefaultIcons.get(user);
+        if (icon == null) {
+            // isDefaultIcon compares instances, so every caller must get the one which is kept
+            Bitmap previous = mDefaultIcons.putIfAbsent(user, makeDefaultIcon(user));
+            icon = previous != null ? previous : mDefaultIcons.get(user);
         }
-        return mDefaultIcons.get(user);
+        return icon;
     }
 
-    public synchronized Bitmap getIcon(ComponentName component, LauncherActivityInfoCompat info,
+    public Bitmap getIcon(ComponentName component, LauncherActivityInfoCompat info,
             HashMap<Object, CharSequence> labelCache) {
         if (info == null || component == null) {
             return null;
         }
 
-        CacheEntry entry = cacheLocked(component, info, labelCache, info.getUser(), false);
+        CacheEntry entry = getEntry(component, info, labelCache, info.getUser(), false,
+                "getIcon(ComponentName)");
         return entry.icon;
     }
 
@@ -296,20 +701,86 @@ public class IconCache {
     }
 
     /**
-     * Retrieves the entry from the cache. If the entry is not present, it creates a new entry.
-     * This method is not thread safe, it must be called from a synchronized method.
+     * Retrieves the entry from the cache. If the entry is not present, it creates a new entry,
+     * or waits for the thread which is already creating it. {@param callSite} names the caller
+     * in the wait stats.
      */
-    private CacheEntry cacheLocked(ComponentName componentName, LauncherActivityInfoCompat info,
-            HashMap<Object, CharSequence> labelCache, UserHandleCompat user, boolean usePackageIcon) {
+    private CacheEntry getEntry(ComponentName componentName, LauncherActivityInfoCompat info,
+            HashMap<Object, CharSequence> labelCache, UserHandleCompat user, boolean usePackageIcon,
+            String callSite) {
         CacheKey cacheKey = new CacheKey(componentName, user);
-        CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null) {
-            entry = new CacheEntry();
+        CacheEntry entry = getCachedEntry(cacheKey, callSite);
+        if (entry != null) {
+            return entry;
+        }
+        PendingEntry pending = new PendingEntry();
+        entry = joinPendingLoad(cacheKey, pending, callSite);
+        if (entry != null) {
+            return entry;
+        }
+        final int generation = mGeneration.get();
+        try {
+            entry = loadEntry(componentName, info, labelCache, user, usePackageIcon);
+        } finally {
+            finishPendingLoad(cacheKey, pending, entry, generation);
+        }
+        return entry;
+    }
+
+    /**
+     * Registers {@param pending} as the load of {@param key}. If another thread is already
+     * loading it, waits for that load and returns its entry instead. Returns null if the caller
+     * must load the entry, after which it must call {@link #finishPendingLoad}.
+     */
+    private CacheEntry joinPendingLoad(CacheKey key, PendingEntry pending, String callSite) {
+        PendingEntry inFlight = mPendingEntries.putIfAbsent(key, pending);
+        if (inFlight == null) {
+            return null;
+        }
+        final long waitStart = System.nanoTime();
+        CacheEntry entry = inFlight.await();
+        mPendingWaitStats.record(callSite, waitStart);
+        // Otherwise the load failed, and the caller loads the entry itself
+        return entry;
+    }
 
-            mCache.put(cacheKey, entry);
+    /**
+     * Puts {@param entry}, loaded for {@param key}, in the cache unless some entries were
+     * removed since the load started, and hands it to the threads waiting for it.
+     */
+    private void finishPendingLoad(CacheKey key, PendingEntry pending, CacheEntry entry,
+            int generation) {
+        if (entry != null) {
+            final long waitStart = System.nanoTime();
+            synchronized (mCacheLock) {
+                mCacheLockStats.record("finishPendingLoad", waitStart);
+                // Otherwise the load may have read what was removed. Removals bump the
+                // generation before taking the lock, so a later one still sees this entry.
+                if (mGeneration.get() == generation) {
+                    putCachedEntryLocked(key, entry);
+                }
+            }
+        }
+        mPendingEntries.remove(key, pending);
+        pending.finish(entry);
+    }
 
-            if (info != null) {
-                ComponentName labelKey = info.getComponentName();
+    /**
+     * Creates the entry of {@param componentName}, from the icon db or from its package.
+     */
+    private CacheEntry loadEntry(ComponentName componentName, LauncherActivityInfoCompat info,
+            HashMap<Object, CharSequence> labelCache, UserHandleCompat user,
+            boolean usePackageIcon) {
+        CacheEntry entry = new CacheEntry();
+        if (info != null) {
+            ComponentName labelKey = info.getComponentName();
+            if (getEntryFromDb(componentName, user, entry)) {
+                if (DEBUG) Log.d(TAG, "using icon db entry for " +
+                        componentName.toShortString());
+                if (labelCache != null && !labelCache.containsKey(labelKey)) {
+                    labelCache.put(labelKey, entry.title);
+                }
+            } else {
                 if (labelCache != null && labelCache.containsKey(labelKey)) {
                     entry.title = labelCache.get(labelKey).toString();
                 } else {
@@ -319,33 +790,34 @@ public class IconCache {
                     }
                 }
 
-                entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
                 entry.icon = Utilities.createIconBitmap(
                         info.getBadgedIcon(mIconDpi), mContext);
+                addEntryToDb(componentName, user, entry);
+            }
+            entry.contentDescription = mUserManager.getBadgedLabelForUser(entry.title, user);
+        } else {
+            entry.title = "";
+            Bitmap preloaded = getPreloadedIcon(componentName, user);
+            if (preloaded != null) {
+                if (DEBUG) Log.d(TAG, "using preloaded icon for " +
+                        componentName.toShortString());
+                entry.icon = preloaded;
             } else {
-                entry.title = "";
-                Bitmap preloaded = getPreloadedIcon(componentName, user);
-                if (preloaded != null) {
-                    if (DEBUG) Log.d(TAG, "using preloaded icon for " +
-                            componentName.toShortString());
-                    entry.icon = preloaded;
-                } else {
-                    if (usePackageIcon) {
-                        CacheEntry packageEntry = getEntryForPackage(
-                                componentName.getPackageName(), user);
-                        if (packageEntry != null) {
-                            if (DEBUG) Log.d(TAG, "using package default icon for " +
-                                    componentName.toShortString());
-                            entry.icon = packageEntry.icon;
-                            entry.title = packageEntry.title;
-                        }
-                    }
-                    if (entry.icon == null) {
-                        if (DEBUG) Log.d(TAG, "using default icon for " +
+                if (usePackageIcon) {
+                    CacheEntry packageEntry = getEntryForPackage(
+                            componentName.getPackageName(), user);
+                    if (packageEntry != null) {
+                        if (DEBUG) Log.d(TAG, "using package default icon for " +
                                 componentName.toShortString());
-                        entry.icon = getDefaultIcon(user);
+                        entry.icon = packageEntry.icon;
+                        entry.title = packageEntry.title;
                     }
                 }
+                if (entry.icon == null) {
+                    if (DEBUG) Log.d(TAG, "using default icon for " +
+                            componentName.toShortString());
+                    entry.icon = getDefaultIcon(user);
+                }
             }
         }
         return entry;
@@ -355,32 +827,49 @@ public class IconCache {
      * Adds a default package entry in the cache. This entry is not persisted and will be removed
      * when the cache is flushed.
      */
-    public synchronized void cachePackageInstallInfo(String packageName, UserHandleCompat user,
+    public void cachePackageInstallInfo(String packageName, UserHandleCompat user,
             Bitmap icon, CharSequence title) {
-        remove(packageName, user);
-
-        CacheEntry entry = getEntryForPackage(packageName, user);
-        if (!TextUtils.isEmpty(title)) {
-            entry.title = title;
+        // Only the package entry is replaced. This is called for every install session, often
+        // for a package which is already installed, whose other entries stay valid, in memory
+        // and in the icon db, until it is actually updated.
+        final CacheKey cacheKey =
+                new CacheKey(new ComponentName(packageName, EMPTY_CLASS_NAME), user);
+        long waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("cachePackageInstallInfo", waitStart);
+            removeCachedEntryLocked(cacheKey);
         }
-        if (icon != null) {
-            entry.icon = Utilities.createIconBitmap(icon, mContext);
+
+        CacheEntry packageEntry = getEntryForPackage(packageName, user);
+        CacheEntry entry = new CacheEntry();
+        entry.title = TextUtils.isEmpty(title) ? packageEntry.title : title;
+        entry.icon = icon != null ? Utilities.createIconBitmap(icon, mContext) : packageEntry.icon;
+        waitStart = System.nanoTime();
+        synchronized (mCacheLock) {
+            mCacheLockStats.record("cachePackageInstallInfo", waitStart);
+            putCachedEntryLocked(cacheKey, entry);
         }
     }
 
     /**
      * Gets an entry for the package, which can be used as a fallback entry for various components.
-     * This method is not thread safe, it must be called from a synchronized method.
      */
     private CacheEntry getEntryForPackage(String packageName, UserHandleCompat user) {
-        ComponentName cn = new ComponentName(packageName, EMPTY_CLASS_NAME);;
+        ComponentName cn = new ComponentName(packageName, EMPTY_CLASS_NAME);
         CacheKey cacheKey = new CacheKey(cn, user);
-        CacheEntry entry = mCache.get(cacheKey);
-        if (entry == null) {
+        CacheEntry entry = getCachedEntry(cacheKey, "getEntryForPackage");
+        if (entry != null) {
+            return entry;
+        }
+        PendingEntry pending = new PendingEntry();
+        entry = joinPendingLoad(cacheKey, pending, "getEntryForPackage");
+        if (entry != null) {
+            return entry;
+        }
+        final int generation = mGeneration.get();
+        try {
             entry = new CacheEntry();
             entry.title = "";
-            mCache.put(cacheKey, entry);
-
             try {
                 ApplicationInfo info = mPackageManager.getApplicationInfo(packageName, 0);
                 entry.title = info.loadLabel(mPackageManager);
@@ -392,15 +881,162 @@ public class IconCache {
             if (entry.icon == null) {
                 entry.icon = getPreloadedIcon(cn, user);
             }
+        } finally {
+            finishPendingLoad(cacheKey, pending, entry, generation);
         }
         return entry;
     }
 
-    public synchronized HashMap<ComponentName,Bitmap> getAllIcons() {
+    /**
+     * Returns the package info of {@param packageName}, or null if it isn't installed or the icon
+     * db doesn't keep its icons. The package manager is only asked once per process, until the
+     * package changes.
+     */
+    private PackageInfo getPackageInfo(String packageName, UserHandleCompat user) {
+        // The package manager only knows the versions of the packages of this profile.
+        if (!user.equals(UserHandleCompat.myUserHandle())) {
+            return null;
+        }
+        PackageInfo info = mPackageInfos.get(packageName);
+        if (info == null) {
+            try {
+                info = mPackageManager.getPackageInfo(packageName, 0);
+            } catch (NameNotFoundException e) {
+                if (DEBUG) Log.d(TAG, "Package not installed " + packageName);
+                info = NOT_INSTALLED;
+            }
+            mPackageInfos.put(packageName, info);
+        }
+        return info != NOT_INSTALLED ? info : null;
+    }
+
+    /**
+     * Fills {@param entry} with the icon and label of {@param componentName} stored in the icon
+     * db. Returns false if there is no entry for the installed version of its package, the
+     * current icon density and the current locale.
+     */
+    private boolean getEntryFromDb(ComponentName componentName, UserHandleCompat user,
+            CacheEntry entry) {
+        PackageInfo info = getPackageInfo(componentName.getPackageName(), user);
+        if (info == null) {
+            return false;
+        }
+        Cursor c = null;
+        try {
+            c = mIconDb.getReadableDatabase().query(IconDb.TABLE_NAME,
+                    new String[] { IconDb.COLUMN_ICON, IconDb.COLUMN_LABEL },
+                    IconDb.COLUMN_COMPONENT + " = ? AND " + IconDb.COLUMN_USER + " = ? AND "
+                            + IconDb.COLUMN_LAST_UPDATED + " = ? AND "
+                            + IconDb.COLUMN_VERSION + " = ? AND "
+                            + IconDb.COLUMN_ICON_DPI + " = ? AND "
+                            + IconDb.COLUMN_LOCALE + " = ?",
+                    new String[] {
+                            componentName.flattenToString(),
+                            Long.toString(mUserManager.getSerialNumberForUser(user)),
+                            Long.toString(info.lastUpdateTime),
+                            Integer.toString(info.versionCode),
+                            Integer.toString(mIconDpi),
+                            Locale.getDefault().toString() },
+                    null, null, null);
+            if (!c.moveToNext()) {
+                return false;
+            }
+            byte[] data = c.getBlob(0);
+            Bitmap icon = BitmapFactory.decodeByteArray(data, 0, data.length);
+            // The icon size also depends on the grid, which may have changed.
+            if (icon == null || !Utilities.isIconBitmapSize(icon, mContext)) {
+                return false;
+            }
+            entry.icon = icon;
+            entry.title = c.getString(1);
+            return true;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to read the icon db entry of " + componentName, e);
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Stores the icon and label of {@param componentName} in the icon db, for the installed
+     * version of its package.
+     */
+    private void addEntryToDb(ComponentName componentName, UserHandleCompat user,
+            CacheEntry entry) {
+        PackageInfo info = getPackageInfo(componentName.getPackageName(), user);
+        if (info == null || entry.icon == null) {
+            return;
+        }
+        byte[] data = ItemInfo.flattenBitmap(entry.icon);
+        if (data == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(IconDb.COLUMN_COMPONENT, componentName.flattenToString());
+        values.put(IconDb.COLUMN_USER, mUserManager.getSerialNumberForUser(user));
+        values.put(IconDb.COLUMN_PACKAGE, componentName.getPackageName());
+        values.put(IconDb.COLUMN_LAST_UPDATED, info.lastUpdateTime);
+        values.put(IconDb.COLUMN_VERSION, info.versionCode);
+        values.put(IconDb.COLUMN_ICON_DPI, mIconDpi);
+        values.put(IconDb.COLUMN_LOCALE, Locale.getDefault().toString());
+        values.put(IconDb.COLUMN_ICON, data);
+        values.put(IconDb.COLUMN_LABEL, entry.title.toString());
+        try {
+            mIconDb.getWritableDatabase().insertWithOnConflict(IconDb.TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to write the icon db entry of " + componentName, e);
+        }
+    }
+
+    /**
+     * Deletes the icon db entries of {@param user} whose {@param column} is one of
+     * {@param values}, in one transaction.
+     */
+    private void deleteFromDb(String column, String[] values, UserHandleCompat user) {
+        if (!user.equals(UserHandleCompat.myUserHandle())) {
+            return;
+        }
+        final String userSerial = Long.toString(mUserManager.getSerialNumberForUser(user));
+        try {
+            SQLiteDatabase db = mIconDb.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (String value : values) {
+                    db.delete(IconDb.TABLE_NAME,
+                            column + " = ? AND " + IconDb.COLUMN_USER + " = ?",
+                            new String[] { value, userSerial });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "Failed to delete the icon db entries of " + Arrays.toString(values), e);
+        }
+    }
+
+    void dumpState() {
+        synchronized (mCacheLock) {
+            Log.d(TAG, "entries=" + mCache.size() + " bytes=" + mCacheBytes
+                    + " maxBytes=" + mMaxCacheBytes + " evicted=" + mEvictedEntries.size()
+                    + " packages=" + mPackageIndex.size()
+                    + " pending=" + mPendingEntries.size());
+            Log.d(TAG, "hits=" + mHitCount.get() + " revived=" + mReviveCount
+                    + " misses=" + mMissCount.get() + " evictions=" + mEvictionCount
+                    + " trims=" + mTrimCount);
+        }
+        mCacheLockStats.dumpState();
+        mPendingWaitStats.dumpState();
+    }
+
+    public HashMap<ComponentName,Bitmap> getAllIcons() {
         HashMap<ComponentName,Bitmap> set = new HashMap<ComponentName,Bitmap>();
-        for (CacheKey ck : mCache.keySet()) {
-            final CacheEntry e = mCache.get(ck);
-            set.put(ck.componentName, e.icon);
+        for (Entry<CacheKey, CacheEntry> e : mCache.entrySet()) {
+            set.put(e.getKey().componentName, e.getValue().icon);
         }
         return set;
     }
@@ -524,4 +1160,63 @@ public class IconCache {
         String filename = resourceName.replace(File.separatorChar, '_');
         return RESOURCE_FILE_PREFIX + filename;
     }
+
+    /**
+     * The rasterized icons and labels of the launcher activities, so that they don't have to be
+     * loaded from their packages again after the process restarts. An entry is only used while
+     * the package has the version, and the launcher the icon density and locale, it was made
+     * with. Only the icons of this profile are stored.
+     */
+    private static final class IconDb extends SQLiteOpenHelper {
+        private static final int DB_VERSION = 2;
+
+        static final String TABLE_NAME = "icons";
+        static final String COLUMN_COMPONENT = "componentName";
+        static final String COLUMN_USER = "profileId";
+        static final String COLUMN_PACKAGE = "packageName";
+        static final String COLUMN_LAST_UPDATED = "lastUpdated";
+        static final String COLUMN_VERSION = "version";
+        static final String COLUMN_ICON_DPI = "iconDpi";
+        static final String COLUMN_LOCALE = "locale";
+        static final String COLUMN_ICON = "icon";
+        static final String COLUMN_LABEL = "label";
+
+        IconDb(Context context) {
+            super(context, new File(context.getCacheDir(),
+                    LauncherFiles.APP_ICONS_DB).getPath(), null, DB_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " (" +
+                    COLUMN_COMPONENT + " TEXT NOT NULL, " +
+                    COLUMN_USER + " INTEGER NOT NULL, " +
+                    COLUMN_PACKAGE + " TEXT NOT NULL, " +
+                    COLUMN_LAST_UPDATED + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_ICON_DPI + " INTEGER NOT NULL DEFAULT 0, " +
+                    COLUMN_LOCALE + " TEXT, " +
+                    COLUMN_ICON + " BLOB NOT NULL, " +
+                    COLUMN_LABEL + " TEXT, " +
+                    "PRIMARY KEY (" + COLUMN_COMPONENT + ", " + COLUMN_USER + ") " +
+                    ");");
+            // For removing the entries of a package
+            db.execSQL("CREATE INDEX IF NOT EXISTS icons_package ON " + TABLE_NAME + " (" +
+                    COLUMN_PACKAGE + ", " + COLUMN_USER + ");");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion != newVersion) {
+                // This is a cache, the entries are made again as they are needed
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+                onCreate(db);
+            }
+        }
+
+        @Override
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            onUpgrade(db, oldVersion, newVersion);
+        }
+    }
 }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+
+/**
+ * Loads the icons of the apps which were bound with a placeholder icon, one at a time on a
+ * background thread. The next icon to load is the one requested for the page closest to the
+ * page in focus, so that the icons of the visible page come first.
+ */
+class IconRequestQueue {
+
+    /** Receives, on the main thread, the app whose icon was loaded. */
+    interface Callback {
+        void onIconLoaded(AppInfo app);
+    }
+
+    private static class Request {
+        final AppInfo app;
+        int page;
+        Callback callback;
+
+        Request(AppInfo app, int page, Callback callback) {
+            this.app = app;
+            this.page = page;
+            this.callback = callback;
+        }
+    }
+
+    private final IconCache mIconCache;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private final ArrayList<Request> mPending = new ArrayList<Request>();
+    private Handler mHandler;
+    private int mFocusPage;
+    private boolean mRunPosted;
+
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    IconRequestQueue(IconCache iconCache) {
+        mIconCache = iconCache;
+    }
+
+    /**
+     * Loads the icon of {@param app}, shown on {@param page}. A pending request for the same app
+     * is replaced, as its view has been rebound.
+     */
+    synchronized void add(AppInfo app, int page, Callback callback) {
+        for (Request request : mPending) {
+            if (request.app == app) {
+                request.page = page;
+                request.callback = callback;
+                return;
+            }
+        }
+        mPending.add(new Request(app, page, callback));
+        scheduleRunLocked();
+    }
+
+    /** Loads the icons of the pages closest to {@param page} first. */
+    synchronized void setFocusPage(int page) {
+        mFocusPage = page;
+    }
+
+    private void scheduleRunLocked() {
+        if (mHandler == null) {
+            HandlerThread thread = new HandlerThread("launcher-icons",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        if (!mRunPosted) {
+            mRunPosted = true;
+            mHandler.post(mRunNext);
+        }
+    }
+
+    private void runNext() {
+        final Request request;
+        synchronized (this) {
+            mRunPosted = false;
+            request = pollLocked();
+            if (request == null) {
+                return;
+            }
+            if (!mPending.isEmpty()) {
+                scheduleRunLocked();
+            }
+        }
+        final Bitmap icon = mIconCache.getIcon(request.app.intent, request.app.user);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Callback callback;
+                synchronized (IconRequestQueue.this) {
+                    callback = request.callback;
+                }
+                request.app.iconBitmap = icon;
+                request.app.usingPlaceholderIcon = false;
+                callback.onIconLoaded(request.app);
+            }
+        });
+    }
+
+    private Request pollLocked() {
+        int next = -1;
+        int nextDistance = Integer.MAX_VALUE;
+        for (int i = 0; i < mPending.size(); i++) {
+            // The oldest request wins a tie
+            int distance = Math.abs(mPending.get(i).page - mFocusPage);
+            if (distance < nextDistance) {
+                next = i;
+                nextDistance = distance;
+            }
+        }
+        return next < 0 ? null : mPending.remove(next);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.Set;
+
+/**
+ * Compact binary form of the intents stored in the favorites, which is much cheaper to read back
+ * than {@link Intent#parseUri}. Only the parts of an intent which the workspace items normally
+ * use are supported: the action, categories, package, component, flags, and extras holding
+ * strings, ints, longs or booleans. Any other intent has no compact form, and is only stored as
+ * its uri.
+ */
+class IntentCodec {
+    private static final String TAG = "Launcher.IntentCodec";
+
+    private static final int VERSION = 1;
+
+    private static final int TYPE_STRING = 0;
+    private static final int TYPE_INT = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_BOOLEAN = 3;
+
+    /** Returns the compact form of {@param intent}, or null if it doesn't have one. */
+    static byte[] encode(Intent intent) {
+        if (intent.getData() != null || intent.getType() != null
+                || intent.getSelector() != null || intent.getSourceBounds() != null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            writeString(out, intent.getAction());
+            writeString(out, intent.getPackage());
+            ComponentName cn = intent.getComponent();
+            writeString(out, cn == null ? null : cn.flattenToString());
+            out.writeInt(intent.getFlags());
+
+            Set<String> categories = intent.getCategories();
+            out.writeInt(categories == null ? 0 : categories.size());
+            if (categories != null) {
+                for (String category : categories) {
+                    out.writeUTF(category);
+                }
+            }
+
+            Bundle extras = intent.getExtras();
+            out.writeInt(extras == null ? 0 : extras.size());
+            if (extras != null) {
+                for (String key : extras.keySet()) {
+                    Object value = extras.get(key);
+                    out.writeUTF(key);
+                    if (value instanceof String) {
+                        out.writeByte(TYPE_STRING);
+                        out.writeUTF((String) value);
+                    } else if (value instanceof Integer) {
+                        out.writeByte(TYPE_INT);
+                        out.writeInt((Integer) value);
+                    } else if (value instanceof Long) {
+                        out.writeByte(TYPE_LONG);
+                        out.writeLong((Long) value);
+                    } else if (value instanceof Boolean) {
+                        out.writeByte(TYPE_BOOLEAN);
+                        out.writeBoolean((Boolean) value);
+                    } else {
+                        return null;
+                    }
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to encode " + intent, e);
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Returns the intent encoded in {@param data}, or null if it can't be read. */
+    static Intent decode(byte[] data) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (in.readByte() != VERSION) {
+                return null;
+            }
+            Intent intent = new Intent();
+            intent.setAction(readString(in));
+            intent.setPackage(readString(in));
+            String component = readString(in);
+            if (component != null) {
+                intent.setComponent(ComponentName.unflattenFromString(component));
+            }
+            intent.setFlags(in.readInt());
+
+            for (int i = in.readInt(); i > 0; i--) {
+                intent.addCategory(in.readUTF());
+            }
+
+            for (int i = in.readInt(); i > 0; i--) {
+                String key = in.readUTF();
+                switch (in.readByte()) {
+                    case TYPE_STRING:
+                        intent.putExtra(key, in.readUTF());
+                        break;
+                    case TYPE_INT:
+                        intent.putExtra(key, in.readInt());
+                        break;
+                    case TYPE_LONG:
+                        intent.putExtra(key, in.readLong());
+                        break;
+                    case TYPE_BOOLEAN:
+                        intent.putExtra(key, in.readBoolean());
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            return intent;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to decode an intent", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the intent of a favorite, read from its compact form {@param data} if it has one,
+     * and parsed from its uri {@param uri} otherwise.
+     */
+    static Intent parse(byte[] data, String uri) throws URISyntaxException {
+        Intent intent = data == null ? null : decode(data);
+        return intent != null ? intent : Intent.parseUri(uri, 0);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.util.Pair;
+
+import com.android.launcher3.compat.UserHandleCompat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map.Entry;
+
+/**
+ * Secondary indexes over the items in the background model, so that looking up the items of a
+ * package, a component or a container doesn't need to walk every item.
+ *
+ * The keys an item was indexed under are remembered, so an item which has been changed in place
+ * can be removed or re-indexed with {@link #update}. This class is not thread safe, and is guarded
+ * by the same lock as the rest of the background model.
+ */
+class ItemIndex {
+
+    private static class Keys {
+        final HashSet<Pair<String, UserHandleCompat>> packages =
+                new HashSet<Pair<String, UserHandleCompat>>();
+        Pair<ComponentName, UserHandleCompat> component;
+        long container;
+    }
+
+    private final IdentityHashMap<ItemInfo, Keys> mKeys = new IdentityHashMap<ItemInfo, Keys>();
+    private final HashMap<Pair<String, UserHandleCompat>, ArrayList<ItemInfo>> mByPackage =
+            new HashMap<Pair<String, UserHandleCompat>, ArrayList<ItemInfo>>();
+    private final HashMap<Pair<ComponentName, UserHandleCompat>, ArrayList<ItemInfo>>
+            mByComponent = new HashMap<Pair<ComponentName, UserHandleCompat>, ArrayList<ItemInfo>>();
+    private final HashMap<Long, ArrayList<ItemInfo>> mByContainer =
+            new HashMap<Long, ArrayList<ItemInfo>>();
+
+    void add(ItemInfo item) {
+        if (mKeys.containsKey(item)) {
+            remove(item);
+        }
+        Keys keys = getKeys(item);
+        mKeys.put(item, keys);
+        for (Pair<String, UserHandleCompat> p : keys.packages) {
+            addToList(mByPackage, p, item);
+        }
+        if (keys.component != null) {
+            addToList(mByComponent, keys.component, item);
+        }
+        addToList(mByContainer, keys.container, item);
+    }
+
+    void remove(ItemInfo item) {
+        Keys keys = mKeys.remove(item);
+        if (keys == null) {
+            return;
+        }
+        for (Pair<String, UserHandleCompat> p : keys.packages) {
+            removeFromList(mByPackage, p, item);
+        }
+        if (keys.component != null) {
+            removeFromList(mByComponent, keys.component, item);
+        }
+        removeFromList(mByContainer, keys.container, item);
+    }
+
+    /** Re-indexes an item which was changed in place. */
+    void update(ItemInfo item) {
+        add(item);
+    }
+
+    void addAll(Collection<? extends ItemInfo> items) {
+        for (ItemInfo item : items) {
+            add(item);
+        }
+    }
+
+    void clear() {
+        mKeys.clear();
+        mByPackage.clear();
+        mByComponent.clear();
+        mByContainer.clear();
+    }
+
+    /**
+     * Returns the shortcuts and widgets of {@param user} which target {@param packageName}, or use
+     * an icon resource from it.
+     */
+    ArrayList<ItemInfo> getByPackage(String packageName, UserHandleCompat user) {
+        return copyOf(mByPackage.get(Pair.create(packageName, user)));
+    }
+
+    /**
+     * Returns the shortcuts and widgets which target {@param cn}, for {@param user} or for no
+     * user in particular.
+     */
+    ArrayList<ItemInfo> getByComponent(ComponentName cn, UserHandleCompat user) {
+        ArrayList<ItemInfo> items = copyOf(mByComponent.get(Pair.create(cn, user)));
+        if (user != null) {
+            items.addAll(copyOf(mByComponent.get(Pair.create(cn, (UserHandleCompat) null))));
+        }
+        return items;
+    }
+
+    /** Returns the items in {@param container}. */
+    ArrayList<ItemInfo> getByContainer(long container) {
+        return copyOf(mByContainer.get(container));
+    }
+
+    /**
+     * Checks that the index matches {@param items} exactly, and is up to date with their current
+     * state. Returns null if it does, or a description of the first problem found.
+     */
+    String check(Collection<ItemInfo> items) {
+        if (mKeys.size() != items.size()) {
+            return "index has " + mKeys.size() + " items, model has " + items.size();
+        }
+        ItemIndex expected = new ItemIndex();
+        for (ItemInfo item : items) {
+            if (!mKeys.containsKey(item)) {
+                return "item not indexed: " + item;
+            }
+            expected.add(item);
+        }
+        if (!sameLists(mByPackage, expected.mByPackage)) {
+            return "package index is stale";
+        }
+        if (!sameLists(mByComponent, expected.mByComponent)) {
+            return "component index is stale";
+        }
+        if (!sameLists(mByContainer, expected.mByContainer)) {
+            return "container index is stale";
+        }
+        return null;
+    }
+
+    private static Keys getKeys(ItemInfo item) {
+        Keys keys = new Keys();
+        keys.container = item.container;
+        if (item instanceof ShortcutInfo) {
+            ShortcutInfo si = (ShortcutInfo) item;
+            ComponentName cn = si.intent != null || si.promisedIntent != null
+                    ? si.getTargetComponent() : null;
+            if (cn != null) {
+                keys.component = Pair.create(cn, item.user);
+                keys.packages.add(Pair.create(cn.getPackageName(), item.user));
+            }
+            if (si.iconResource != null && si.iconResource.packageName != null) {
+                keys.packages.add(Pair.create(si.iconResource.packageName, item.user));
+            }
+        } else if (item instanceof LauncherAppWidgetInfo) {
+            ComponentName cn = ((LauncherAppWidgetInfo) item).providerName;
+            if (cn != null) {
+                keys.component = Pair.create(cn, item.user);
+                keys.packages.add(Pair.create(cn.getPackageName(), item.user));
+            }
+        }
+        return keys;
+    }
+
+    private static <K> void addToList(HashMap<K, ArrayList<ItemInfo>> map, K key, ItemInfo item) {
+        ArrayList<ItemInfo> list = map.get(key);
+        if (list == null) {
+            list = new ArrayList<ItemInfo>();
+            map.put(key, list);
+        }
+        list.add(item);
+    }
+
+    private static <K> void removeFromList(HashMap<K, ArrayList<ItemInfo>> map, K key,
+            ItemInfo item) {
+        ArrayList<ItemInfo> list = map.get(key);
+        if (list == null) {
+            return;
+        }
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i) == item) {
+                list.remove(i);
+                break;
+            }
+        }
+        if (list.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private static ArrayList<ItemInfo> copyOf(ArrayList<ItemInfo> list) {
+        return list == null ? new ArrayList<ItemInfo>() : new ArrayList<ItemInfo>(list);
+    }
+
+    private static <K> boolean sameLists(HashMap<K, ArrayList<ItemInfo>> actual,
+            HashMap<K, ArrayList<ItemInfo>> expected) {
+        if (!actual.keySet().equals(expected.keySet())) {
+            return false;
+        }
+        for (Entry<K, ArrayList<ItemInfo>> e : expected.entrySet()) {
+            ArrayList<ItemInfo> list = actual.get(e.getKey());
+            if (list.size() != e.getValue().size()) {
+                return false;
+            }
+            Collection<ItemInfo> items = Collections.newSetFromMap(
+                    new IdentityHashMap<ItemInfo, Boolean>());
+            items.addAll(list);
+            if (!items.containsAll(e.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1080,6 +1080,9 @@ public class Launcher extends Activity
         mDragController.cancelDrag();
         mDragController.resetLastGestureUpTime();
 
+        // Don't leave the changes made while we were visible in the model's write queue
+        mModel.flushPendingDbWrites();
+
         // We call onHide() aggressively. The custom content callbacks should be able to
         // debounce excess onHide calls.
         if (mWorkspace.getCustomContentCallbacks() != null) {
@@ -1698,6 +1701,8 @@ public class Launcher extends Activity
                 mModel.startLoader(false, PagedView.INVALID_RESTORE_PAGE,
                         LauncherModel.LOADER_FLAG_CLEAR_WORKSPACE
                                 | LauncherModel.LOADER_FLAG_MIGRATE_SHORTCUTS);
+            } else if (ENABLE_DEBUG_INTENTS && DebugIntents.SWITCH_LAYOUT.equals(action)) {
+                mModel.switchLayout(intent.getStringExtra(DebugIntents.EXTRA_LAYOUT));
             } else if (LauncherAppsCompat.ACTION_MANAGED_PROFILE_ADDED.equals(action)
                     || LauncherAppsCompat.ACTION_MANAGED_PROFILE_REMOVED.equals(action)) {
                 getModel().forceReload();
@@ -1719,6 +1724,7 @@ public class Launcher extends Activity
         if (ENABLE_DEBUG_INTENTS) {
             filter.addAction(DebugIntents.DELETE_DATABASE);
             filter.addAction(DebugIntents.MIGRATE_DATABASE);
+            filter.addAction(DebugIntents.SWITCH_LAYOUT);
         }
         registerReceiver(mReceiver, filter);
         FirstFrameAnimatorHelper.initializeDrawListener(getWindow().getDecorView());
@@ -3810,6 +3816,7 @@ public class Launcher extends Activity
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
+        mIconCache.trimMemory(level);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
             // The widget preview db can result in holding onto over
             // 3MB of memory for caching which isn't necessary.
@@ -4483,6 +4490,15 @@ public class Launcher extends Activity
         mSynchronouslyBoundPages.add(page);
     }
 
+    /**
+     * Removes the workspace screens which were bound but ended up without any item.
+     *
+     * Implementation of the method from LauncherModel.Callbacks.
+     */
+    public void stripEmptyScreens() {
+        mWorkspace.stripEmptyScreens();
+    }
+
     /**
      * Callback saying that there aren't any more items to bind.
      *
@@ -5184,4 +5200,6 @@ interface LauncherTransitionable {
 interface DebugIntents {
     static final String DELETE_DATABASE = "com.android.launcher3.action.DELETE_DATABASE";
     static final String MIGRATE_DATABASE = "com.android.launcher3.action.MIGRATE_DATABASE";
+    static final String SWITCH_LAYOUT = "com.android.launcher3.action.SWITCH_LAYOUT";
+    static final String EXTRA_LAYOUT = "layout";
 }
@@ -14,11 +14,15 @@ public class LauncherFiles {
 
     private static final String XML = ".xml";
 
+    public static final String APP_ICONS_DB = "app_icons.db";
     public static final String DEFAULT_WALLPAPER_THUMBNAIL = "default_thumb2.jpg";
     public static final String DEFAULT_WALLPAPER_THUMBNAIL_OLD = "default_thumb.jpg";
     public static final String LAUNCHER_DB = "launcher.db";
+    public static final String LAUNCHER_DB_WAL = LAUNCHER_DB + "-wal";
+    public static final String LAUNCHER_DB_SHM = LAUNCHER_DB + "-shm";
     public static final String LAUNCHER_PREFERENCES = "launcher.preferences";
     public static final String LAUNCHES_LOG = "launches.log";
+    public static final String MODEL_SNAPSHOT = "model.snapshot";
     public static final String SHARED_PREFERENCES_KEY = "com.android.launcher3.prefs";
     public static final String STATS_LOG = "stats.log";
     public static final String WALLPAPER_CROP_PREFERENCES_KEY =
@@ -27,14 +31,32 @@ public class LauncherFiles {
     public static final String WIDGET_PREVIEWS_DB = "widgetpreviews.db";
 
     public static final List<String> ALL_FILES = Collections.unmodifiableList(Arrays.asList(
+            APP_ICONS_DB,
             DEFAULT_WALLPAPER_THUMBNAIL,
             DEFAULT_WALLPAPER_THUMBNAIL_OLD,
             LAUNCHER_DB,
+            LAUNCHER_DB_WAL,
+            LAUNCHER_DB_SHM,
             LAUNCHER_PREFERENCES,
             LAUNCHES_LOG,
+            MODEL_SNAPSHOT,
             SHARED_PREFERENCES_KEY + XML,
             STATS_LOG,
             WALLPAPER_CROP_PREFERENCES_KEY + XML,
             WALLPAPER_IMAGES_DB,
             WIDGET_PREVIEWS_DB));
+
+    /**
+     * Returns the database holding the layout {@param name} for a grid of {@param rows} by
+     * {@param columns}. The default layout is always in {@link #LAUNCHER_DB}.
+     */
+    public static String getLayoutDb(String name, int rows, int columns) {
+        return "launcher_" + name + "_" + rows + "x" + columns + ".db";
+    }
+
+    /** Returns whether {@param fileName} is the database of a layout. */
+    public static boolean isLayoutDb(String fileName) {
+        return LAUNCHER_DB.equals(fileName)
+                || (fileName.startsWith("launcher_") && fileName.endsWith(".db"));
+    }
 }
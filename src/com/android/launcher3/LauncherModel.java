@@ -63,7 +63,7 @@ import com.android.launcher3.compat.UserManagerCompat;
 import java.lang.ref.WeakReference;
 import java.net.URISyntaxException;
 import java.security.InvalidParameterException;
-import java.text.Collator;
+import java.text.CollationKey;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -72,10 +72,19 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Maintains in-memory state of the Launcher. It is expected that there should be only one
@@ -97,8 +106,10 @@ public class LauncherModel extends BroadcastReceiver
     public static final int LOADER_FLAG_NONE = 0;
     public static final int LOADER_FLAG_CLEAR_WORKSPACE = 1 << 0;
     public static final int LOADER_FLAG_MIGRATE_SHORTCUTS = 1 << 1;
+    // Check the placement of every item, instead of only the items modified since the last load
+    // which didn't find any invalid item. Meant for tests.
+    public static final int LOADER_FLAG_VERIFY_WORKSPACE = 1 << 2;
 
-    private static final int ITEMS_CHUNK = 6; // batch size for the workspace icons
     private static final long INVALID_SCREEN_ID = -1L;
 
     private final boolean mAppsCanBeOnRemoveableStorage;
@@ -111,6 +122,10 @@ public class LauncherModel extends BroadcastReceiver
     private boolean mIsLoaderTaskRunning;
     private volatile boolean mFlushingWorkerThread;
 
+    // Package changes waiting to be processed in the next batch
+    private final ArrayList<PackageUpdatedTask> mPendingPackageUpdates =
+            new ArrayList<PackageUpdatedTask>();
+
     /**
      * Maintain a set of packages per user, for which we added a shortcut on the workspace.
      */
@@ -123,17 +138,96 @@ public class LauncherModel extends BroadcastReceiver
 
     private static final String MIGRATE_AUTHORITY = "com.android.launcher2.settings";
 
+    // How long to wait for more package changes before processing them, as app stores tend to
+    // update many packages at once.
+    private static final int PACKAGE_UPDATE_BATCH_DELAY = 250;
+
+    // The columns read when loading the workspace. Icons are left out, and only loaded for the
+    // items which need them.
+    private static final String[] WORKSPACE_PROJECTION = new String[] {
+            LauncherSettings.Favorites._ID,
+            LauncherSettings.Favorites.INTENT,
+            LauncherSettings.Favorites.INTENT_DATA,
+            LauncherSettings.Favorites.TITLE,
+            LauncherSettings.Favorites.ICON_TYPE,
+            LauncherSettings.Favorites.ICON_PACKAGE,
+            LauncherSettings.Favorites.ICON_RESOURCE,
+            LauncherSettings.Favorites.CONTAINER,
+            LauncherSettings.Favorites.ITEM_TYPE,
+            LauncherSettings.Favorites.APPWIDGET_ID,
+            LauncherSettings.Favorites.APPWIDGET_PROVIDER,
+            LauncherSettings.Favorites.SCREEN,
+            LauncherSettings.Favorites.CELLX,
+            LauncherSettings.Favorites.CELLY,
+            LauncherSettings.Favorites.SPANX,
+            LauncherSettings.Favorites.SPANY,
+            LauncherSettings.Favorites.RESTORED,
+            LauncherSettings.Favorites.PROFILE_ID,
+            LauncherSettings.Favorites.MODIFIED };
+
     private static final HandlerThread sWorkerThread = new HandlerThread("launcher-loader");
     static {
         sWorkerThread.start();
     }
     private static final Handler sWorker = new Handler(sWorkerThread.getLooper());
+    // Everything the model runs on the worker thread goes through here, in priority order
+    private static final WorkerScheduler sWorkerScheduler = new WorkerScheduler(sWorker);
+
+    // How long to hold on to model writes to the database, so that they are applied together
+    private static final int DB_WRITE_BATCH_DELAY = 100;
+    static final DbWriteQueue sDbWriteQueue =
+            new DbWriteQueue(sWorkerScheduler, DB_WRITE_BATCH_DELAY);
+
+    // How long the launcher must stay idle before the database log is checkpointed
+    private static final int DB_CHECKPOINT_DELAY = 2000;
+    private static final Runnable sDbCheckpointRunnable = new Runnable() {
+        public void run() {
+            sDbWriteQueue.flush();
+            LauncherProvider provider = LauncherAppState.getLauncherProvider();
+            if (provider != null) {
+                provider.checkpointDatabase();
+            }
+        }
+    };
+
+    // When true, the loader resolves the package and widget state of the workspace items on
+    // sLoaderPool before merging them into the model. Set to false to fall back to resolving
+    // every item serially on the loader thread.
+    static final boolean LOAD_WORKSPACE_IN_PARALLEL = true;
+
+    // Bounded pool used by the loader for work that can happen off the loader thread. Idle
+    // threads time out, so the pool does not hold on to any threads once loading is done.
+    private static final int LOADER_POOL_SIZE =
+            Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ThreadPoolExecutor sLoaderPool = new ThreadPoolExecutor(
+            LOADER_POOL_SIZE, LOADER_POOL_SIZE, 1, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "launcher-loader-pool-" + mCount.getAndIncrement());
+                }
+            });
+    static {
+        sLoaderPool.allowCoreThreadTimeOut(true);
+    }
+
+    // When true, the first load of the workspace queries and binds the hotseat and the current
+    // page before any other page, so that the time until the first page is usable does not
+    // depend on the size of the workspace. The other pages are then loaded and bound one by one.
+    static final boolean LOAD_WORKSPACE_INCREMENTALLY = true;
+
+    // When true, the first load after the process starts binds the ModelSnapshot written at the
+    // end of the previous load right away, and then verifies it against a full load.
+    static final boolean USE_MODEL_SNAPSHOT = true;
 
     // We start off with everything not loaded.  After that, we assume that
     // our monitoring of the package manager provides all updates and we never
     // need to do a requery.  These are only ever touched from the loader thread.
     private boolean mWorkspaceLoaded;
     private boolean mAllAppsLoaded;
+    private boolean mModelSnapshotChecked;
 
     // When we are loading pages synchronously, we can't just post the binding of items on the side
     // pages as this delays the rotation process.  Instead, we wait for a callback from the first
@@ -143,6 +237,9 @@ public class LauncherModel extends BroadcastReceiver
 
     private WeakReference<Callbacks> mCallbacks;
 
+    // Main thread timings for binding the workspace, used to size the bind chunks
+    private final BindStats mBindStats;
+
     // < only access in worker thread >
     AllAppsList mBgAllAppsList;
 
@@ -152,10 +249,42 @@ public class LauncherModel extends BroadcastReceiver
     // load after configuration change.
     static final Object sBgLock = new Object();
 
+    // The layout whose database is in use, bumped on the worker thread when it is switched
+    private static volatile int sLayoutGeneration;
+    // The layout of the items bound to the UI, set on the main thread when their binding starts
+    private static volatile int sBoundLayoutGeneration;
+
+    // How long callers waited for sBgLock, per call site
+    static final LockWaitStats sBgLockStats = new LockWaitStats("sBgLock");
+
+    // The latest complete state of the collections below, for readers which should not wait for
+    // sBgLock. Batch writers publish a new one with publishBgSnapshotLocked() once they are done,
+    // single item writers mark it dirty with markBgSnapshotDirtyLocked(). Read it with
+    // getBgSnapshot().
+    private static volatile BgDataSnapshot sBgSnapshot = new BgDataSnapshot(0,
+            new ArrayList<Long>(), new ArrayList<ItemInfo>(),
+            new ArrayList<LauncherAppWidgetInfo>(), new HashMap<Long, FolderInfo>(),
+            new HashMap<Long, ItemInfo>());
+
+    // Whether the collections changed since sBgSnapshot was published. Only set under sBgLock.
+    private static volatile boolean sBgSnapshotDirty;
+
+    // Publishes the changes of a run of single item writes at once
+    private static final Runnable sPublishBgSnapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            getBgSnapshot();
+        }
+    };
+
     // sBgItemsIdMap maps *all* the ItemInfos (shortcuts, folders, and widgets) created by
     // LauncherModel to their ids
     static final HashMap<Long, ItemInfo> sBgItemsIdMap = new HashMap<Long, ItemInfo>();
 
+    // sBgItemIndex indexes all the items in sBgItemsIdMap by package, component and container.
+    // It must be updated whenever sBgItemsIdMap is, or when an item in it changes.
+    static final ItemIndex sBgItemIndex = new ItemIndex();
+
     // sBgWorkspaceItems is passed to bindItems, which expects a list of all folders and shortcuts
     //       created by LauncherModel that are directly on the home screen (however, no widgets or
     //       shortcuts within folders).
@@ -169,11 +298,16 @@ public class LauncherModel extends BroadcastReceiver
     static final HashMap<Long, FolderInfo> sBgFolders = new HashMap<Long, FolderInfo>();
 
     // sBgDbIconCache is the set of ItemInfos that need to have their icons updated in the database
-    static final HashMap<Object, byte[]> sBgDbIconCache = new HashMap<Object, byte[]>();
+    static final HashSet<ShortcutInfo> sBgDbIconCache = new HashSet<ShortcutInfo>();
 
     // sBgWorkspaceScreens is the ordered set of workspace screens.
     static final ArrayList<Long> sBgWorkspaceScreens = new ArrayList<Long>();
 
+    // Labels and collation keys used to sort apps, and widgets and shortcuts, by name. These are
+    // kept across loads, and the entries of a package are dropped when it changes.
+    static final CollationKeyCache sAppLabelCache = new CollationKeyCache();
+    static final CollationKeyCache sWidgetLabelCache = new CollationKeyCache();
+
     // sPendingPackages is a set of packages which could be on sdcard and are not available yet
     static final HashMap<UserHandleCompat, HashSet<String>> sPendingPackages =
             new HashMap<UserHandleCompat, HashSet<String>>();
@@ -215,6 +349,7 @@ public class LauncherModel extends BroadcastReceiver
         public void bindSearchablesChanged();
         public boolean isAllAppsButtonRank(int rank);
         public void onPageBoundSynchronously(int page);
+        public void stripEmptyScreens();
         public void dumpLogsToLocalData();
     }
 
@@ -246,6 +381,7 @@ public class LauncherModel extends BroadcastReceiver
 
         mApp = app;
         mBgAllAppsList = new AllAppsList(iconCache, appFilter);
+        mBindStats = new BindStats(context);
         mIconCache = iconCache;
 
         final Resources res = context.getResources();
@@ -270,13 +406,43 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     /** Runs the specified runnable immediately if called from the worker thread, otherwise it is
-     * posted on the worker thread handler. */
+     * posted on the worker thread handler, ahead of loading and maintenance work. */
     private static void runOnWorkerThread(Runnable r) {
+        runOnWorkerThread(WorkerScheduler.LANE_INTERACTIVE, r);
+    }
+
+    /**
+     * Runs {@param r}, which writes model items to the database, on the worker thread, unless the
+     * layout in use is switched before it runs. The ids of the items of the previous layout mean
+     * other rows in the database of the new one. Writes made from the UI belong to the layout it
+     * shows, which is only rebound after the switch.
+     */
+    private static void runItemWriteOnWorkerThread(Runnable r) {
+        runItemWriteOnWorkerThread(WorkerScheduler.LANE_INTERACTIVE, r);
+    }
+
+    /** Like {@link #runItemWriteOnWorkerThread(Runnable)}, but posts it to {@param lane}. */
+    private static void runItemWriteOnWorkerThread(int lane, final Runnable r) {
+        final int layoutGeneration = sWorkerThread.getThreadId() == Process.myTid()
+                ? sLayoutGeneration : sBoundLayoutGeneration;
+        runOnWorkerThread(lane, new Runnable() {
+            public void run() {
+                if (layoutGeneration != sLayoutGeneration) {
+                    Log.w(TAG, "Dropping a write made for the items of another layout");
+                    return;
+                }
+                r.run();
+            }
+        });
+    }
+
+    /** Like {@link #runOnWorkerThread(Runnable)}, but posts the runnable to {@param lane}. */
+    private static void runOnWorkerThread(int lane, Runnable r) {
         if (sWorkerThread.getThreadId() == Process.myTid()) {
             r.run();
         } else {
             // If we are not on the worker thread, then post to the worker handler
-            sWorker.post(r);
+            sWorkerScheduler.post(lane, r);
         }
     }
 
@@ -326,6 +492,8 @@ public class LauncherModel extends BroadcastReceiver
                 // processInstallShortcut, we give it time for its shortcut to get added to the
                 // database (getItemsInLocalCoordinates reads the database)
                 model.flushWorkerThread();
+            } else {
+                sDbWriteQueue.flush();
             }
             final ArrayList<ItemInfo> items = LauncherModel.getItemsInLocalCoordinates(context);
 
@@ -394,7 +562,7 @@ public class LauncherModel extends BroadcastReceiver
                 });
             }
         };
-        runOnWorkerThread(r);
+        runOnWorkerThread(WorkerScheduler.LANE_MAINTENANCE, r);
     }
 
     public void addAndBindAddedWorkspaceApps(final Context context,
@@ -423,6 +591,11 @@ public class LauncherModel extends BroadcastReceiver
                     workspaceScreens.add(screenId);
                 }
 
+                // Reserve an id for each app up front. The ids of the apps which are already on
+                // the workspace are left unused.
+                long nextId = LauncherAppState.getLauncherProvider()
+                        .generateNewItemIds(workspaceApps.size());
+
                 synchronized(sBgLock) {
                     Iterator<ItemInfo> iter = workspaceApps.iterator();
                     while (iter.hasNext()) {
@@ -478,7 +651,8 @@ public class LauncherModel extends BroadcastReceiver
                         // Add the shortcut to the db
                         addItemToDatabase(context, shortcutInfo,
                                 LauncherSettings.Favorites.CONTAINER_DESKTOP,
-                                coords.first, coords.second[0], coords.second[1], false);
+                                coords.first, coords.second[0], coords.second[1], false,
+                                nextId++);
                         // Save the ShortcutInfo for binding in the workspace
                         addedShortcutsFinal.add(shortcutInfo);
                     }
@@ -513,7 +687,8 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
         };
-        runOnWorkerThread(r);
+        // The free cells were found on the layout the UI shows
+        runItemWriteOnWorkerThread(WorkerScheduler.LANE_MAINTENANCE, r);
     }
 
     public void unbindItemInfosAndClearQueuedBindRunnables() {
@@ -536,19 +711,16 @@ public class LauncherModel extends BroadcastReceiver
     void unbindWorkspaceItemsOnMainThread() {
         // Ensure that we don't use the same workspace items data structure on the main thread
         // by making a copy of workspace items first.
-        final ArrayList<ItemInfo> tmpWorkspaceItems = new ArrayList<ItemInfo>();
-        final ArrayList<ItemInfo> tmpAppWidgets = new ArrayList<ItemInfo>();
-        synchronized (sBgLock) {
-            tmpWorkspaceItems.addAll(sBgWorkspaceItems);
-            tmpAppWidgets.addAll(sBgAppWidgets);
-        }
+        final BgDataSnapshot snapshot = getBgSnapshot();
+        final List<ItemInfo> tmpWorkspaceItems = snapshot.workspaceItems;
+        final List<LauncherAppWidgetInfo> tmpAppWidgets = snapshot.appWidgets;
         Runnable r = new Runnable() {
                 @Override
                 public void run() {
                    for (ItemInfo item : tmpWorkspaceItems) {
                        item.unbind();
                    }
-                   for (ItemInfo item : tmpAppWidgets) {
+                   for (LauncherAppWidgetInfo item : tmpAppWidgets) {
                        item.unbind();
                    }
                 }
@@ -614,6 +786,71 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Checks that sBgItemIndex matches sBgItemsIdMap. This is only done on dogfood builds, where
+     * a mismatch is fatal. Must be called with sBgLock held.
+     */
+    static void checkItemIndexLocked() {
+        if (!LauncherAppState.isDogfoodBuild()) {
+            return;
+        }
+        String error = sBgItemIndex.check(sBgItemsIdMap.values());
+        if (error != null) {
+            throw new RuntimeException("Error: item index doesn't match the model: " + error);
+        }
+    }
+
+    /**
+     * Publishes the current state of the background model for readers of {@link #sBgSnapshot}.
+     * Must be called with sBgLock held, once the model is consistent again after a batch of
+     * changes, as it copies all the collections.
+     */
+    static void publishBgSnapshotLocked() {
+        sBgSnapshotDirty = false;
+        sBgSnapshot = new BgDataSnapshot(sBgSnapshot.version + 1, sBgWorkspaceScreens,
+                sBgWorkspaceItems, sBgAppWidgets, sBgFolders, sBgItemsIdMap);
+    }
+
+    /**
+     * Marks {@link #sBgSnapshot} out of date after a single item change. The snapshot is
+     * published again once the writes queued on the worker thread behind this one have run, so
+     * that a run of item writes is only copied once. Must be called with sBgLock held.
+     */
+    private static void markBgSnapshotDirtyLocked() {
+        if (!sBgSnapshotDirty) {
+            sBgSnapshotDirty = true;
+            sWorkerScheduler.post(WorkerScheduler.LANE_INTERACTIVE, sPublishBgSnapshotRunnable);
+        }
+    }
+
+    /**
+     * Returns the latest state of the background model, publishing the pending changes first if
+     * there are any, in which case the caller waits for sBgLock.
+     */
+    static BgDataSnapshot getBgSnapshot() {
+        if (sBgSnapshotDirty) {
+            final long waitStart = System.nanoTime();
+            synchronized (sBgLock) {
+                sBgLockStats.record("getBgSnapshot", waitStart);
+                if (sBgSnapshotDirty) {
+                    publishBgSnapshotLocked();
+                }
+            }
+        }
+        return sBgSnapshot;
+    }
+
+    /** Clears all the sBg data structures. Must be called with sBgLock held. */
+    private static void clearSBgDataStructuresLocked() {
+        sBgWorkspaceItems.clear();
+        sBgAppWidgets.clear();
+        sBgFolders.clear();
+        sBgItemsIdMap.clear();
+        sBgItemIndex.clear();
+        sBgDbIconCache.clear();
+        sBgWorkspaceScreens.clear();
+    }
+
     static void checkItemInfo(final ItemInfo item) {
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         final long itemId = item.id;
@@ -630,17 +867,16 @@ public class LauncherModel extends BroadcastReceiver
     static void updateItemInDatabaseHelper(Context context, final ContentValues values,
             final ItemInfo item, final String callingFunction) {
         final long itemId = item.id;
-        final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
         final ContentResolver cr = context.getContentResolver();
 
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.update(uri, values, null, null);
+                sDbWriteQueue.update(cr, itemId, values);
                 updateItemArrays(item, itemId, stackTrace);
             }
         };
-        runOnWorkerThread(r);
+        runItemWriteOnWorkerThread(r);
     }
 
     static void updateItemsInDatabaseHelper(Context context, final ArrayList<ContentValues> valuesList,
@@ -650,68 +886,130 @@ public class LauncherModel extends BroadcastReceiver
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                ArrayList<ContentProviderOperation> ops =
-                        new ArrayList<ContentProviderOperation>();
                 int count = items.size();
                 for (int i = 0; i < count; i++) {
-                    ItemInfo item = items.get(i);
-                    final long itemId = item.id;
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(itemId, false);
-                    ContentValues values = valuesList.get(i);
-
-                    ops.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
-                    updateItemArrays(item, itemId, stackTrace);
-
+                    sDbWriteQueue.update(cr, items.get(i).id, valuesList.get(i));
                 }
-                try {
-                    cr.applyBatch(LauncherProvider.AUTHORITY, ops);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                final long waitStart = System.nanoTime();
+                synchronized (sBgLock) {
+                    sBgLockStats.record("updateItemsInDatabase", waitStart);
+                    for (ItemInfo item : items) {
+                        updateItemArraysLocked(item, item.id, stackTrace);
+                    }
+                    publishBgSnapshotLocked();
                 }
             }
         };
-        runOnWorkerThread(r);
+        runItemWriteOnWorkerThread(r);
     }
 
     static void updateItemArrays(ItemInfo item, long itemId, StackTraceElement[] stackTrace) {
         // Lock on mBgLock *after* the db operation
+        final long waitStart = System.nanoTime();
         synchronized (sBgLock) {
-            checkItemInfoLocked(itemId, item, stackTrace);
-
-            if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                    item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                // Item is in a folder, make sure this folder exists
-                if (!sBgFolders.containsKey(item.container)) {
-                    // An items container is being set to a that of an item which is not in
-                    // the list of Folders.
-                    String msg = "item: " + item + " container being set to: " +
-                            item.container + ", not in the list of folders";
-                    Log.e(TAG, msg);
-                }
-            }
-
-            // Items are added/removed from the corresponding FolderInfo elsewhere, such
-            // as in Workspace.onDrop. Here, we just add/remove them from the list of items
-            // that are on the desktop, as appropriate
-            ItemInfo modelItem = sBgItemsIdMap.get(itemId);
-            if (modelItem != null &&
-                    (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
-                     modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
-                switch (modelItem.itemType) {
-                    case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
-                    case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
-                    case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
-                        if (!sBgWorkspaceItems.contains(modelItem)) {
-                            sBgWorkspaceItems.add(modelItem);
-                        }
-                        break;
-                    default:
-                        break;
+            sBgLockStats.record("updateItemArrays", waitStart);
+            updateItemArraysLocked(item, itemId, stackTrace);
+            markBgSnapshotDirtyLocked();
+        }
+    }
+
+    private static void updateItemArraysLocked(ItemInfo item, long itemId,
+            StackTraceElement[] stackTrace) {
+        checkItemInfoLocked(itemId, item, stackTrace);
+
+        if (item.container != LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                item.container != LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+            // Item is in a folder, make sure this folder exists
+            if (!sBgFolders.containsKey(item.container)) {
+                // An items container is being set to a that of an item which is not in
+                // the list of Folders.
+                String msg = "item: " + item + " container being set to: " +
+                        item.container + ", not in the list of folders";
+                Log.e(TAG, msg);
+            }
+        }
+
+        // Items are added/removed from the corresponding FolderInfo elsewhere, such
+        // as in Workspace.onDrop. Here, we just add/remove them from the list of items
+        // that are on the desktop, as appropriate
+        ItemInfo modelItem = sBgItemsIdMap.get(itemId);
+        if (modelItem != null) {
+            sBgItemIndex.update(modelItem);
+        }
+        if (modelItem != null &&
+                (modelItem.container == LauncherSettings.Favorites.CONTAINER_DESKTOP ||
+                 modelItem.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT)) {
+            switch (modelItem.itemType) {
+                case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                    if (!sBgWorkspaceItems.contains(modelItem)) {
+                        sBgWorkspaceItems.add(modelItem);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } else {
+            sBgWorkspaceItems.remove(modelItem);
+        }
+    }
+
+    /**
+     * Applies the pending model writes to the database soon, without waiting for them. Called
+     * when the launcher is paused.
+     */
+    public void flushPendingDbWrites() {
+        runOnWorkerThread(new Runnable() {
+            public void run() {
+                sDbWriteQueue.flush();
+            }
+        });
+        scheduleDbCheckpoint();
+        if (USE_MODEL_SNAPSHOT) {
+            sWorkerScheduler.remove(mModelSnapshotRunnable);
+            sWorkerScheduler.postDelayed(WorkerScheduler.LANE_MAINTENANCE,
+                    mModelSnapshotRunnable, DB_CHECKPOINT_DELAY);
+        }
+    }
+
+    /** Writes the model snapshot again if the database changed since it was written. */
+    private final Runnable mModelSnapshotRunnable = new Runnable() {
+        public void run() {
+            if (!ModelSnapshot.isStale() || !mWorkspaceLoaded || !mAllAppsLoaded) {
+                return;
+            }
+            synchronized (mLock) {
+                if (mLoaderTask != null) {
+                    // The loader writes the snapshot itself once it is done
+                    return;
                 }
-            } else {
-                sBgWorkspaceItems.remove(modelItem);
             }
+            sDbWriteQueue.flush();
+            writeModelSnapshot(mApp.getContext());
         }
+    };
+
+    /** Writes the model snapshot. Must be called on the worker thread. */
+    private void writeModelSnapshot(Context context) {
+        ModelSnapshot.clearStale();
+        final BgDataSnapshot snapshot = getBgSnapshot();
+        final ArrayList<Long> workspaceScreens = new ArrayList<Long>(snapshot.workspaceScreens);
+        final HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>(snapshot.itemsIdMap);
+        final HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>(snapshot.folders);
+        @SuppressWarnings("unchecked")
+        final ArrayList<AppInfo> apps = (ArrayList<AppInfo>) mBgAllAppsList.data.clone();
+        ModelSnapshot.write(context, mIconCache, workspaceScreens, itemsIdMap, folders, apps);
+    }
+
+    /**
+     * Checkpoints the database on the worker thread, once nothing else has asked for one for
+     * {@link #DB_CHECKPOINT_DELAY}. Called when the launcher goes idle.
+     */
+    static void scheduleDbCheckpoint() {
+        sWorkerScheduler.remove(sDbCheckpointRunnable);
+        sWorkerScheduler.postDelayed(WorkerScheduler.LANE_MAINTENANCE, sDbCheckpointRunnable,
+                DB_CHECKPOINT_DELAY);
     }
 
     public void flushWorkerThread() {
@@ -726,7 +1024,13 @@ public class LauncherModel extends BroadcastReceiver
             };
 
         synchronized(waiter) {
-            runOnWorkerThread(waiter);
+            runOnWorkerThread(new Runnable() {
+                public void run() {
+                    sDbWriteQueue.flush();
+                }
+            });
+            // Wait for everything posted so far, whatever its lane
+            sWorkerScheduler.postBarrier(waiter);
             if (mLoaderTask != null) {
                 synchronized(mLoaderTask) {
                     mLoaderTask.notify();
@@ -872,6 +1176,9 @@ public class LauncherModel extends BroadcastReceiver
         }
         String userSerial = Long.toString(UserManagerCompat.getInstance(context)
                 .getSerialNumberForUser(user));
+        if (sWorkerThread.getThreadId() == Process.myTid()) {
+            sDbWriteQueue.flush();
+        }
         Cursor c = cr.query(LauncherSettings.Favorites.CONTENT_URI,
             new String[] { "title", "intent", "profileId" },
             "title=? and (intent=? or intent=?) and profileId=?",
@@ -981,6 +1288,17 @@ public class LauncherModel extends BroadcastReceiver
      */
     static void addItemToDatabase(Context context, final ItemInfo item, final long container,
             final long screenId, final int cellX, final int cellY, final boolean notify) {
+        addItemToDatabase(context, item, container, screenId, cellX, cellY, notify,
+                LauncherAppState.getLauncherProvider().generateNewItemId());
+    }
+
+    /**
+     * Adds an item to the database like {@link #addItemToDatabase}, with an ID which was
+     * reserved with {@link LauncherProvider#generateNewItemIds}.
+     */
+    static void addItemToDatabase(Context context, final ItemInfo item, final long container,
+            final long screenId, final int cellX, final int cellY, final boolean notify,
+            long id) {
         item.container = container;
         item.cellX = cellX;
         item.cellY = cellY;
@@ -997,20 +1315,23 @@ public class LauncherModel extends BroadcastReceiver
         final ContentResolver cr = context.getContentResolver();
         item.onAddToDatabase(context, values);
 
-        item.id = LauncherAppState.getLauncherProvider().generateNewItemId();
+        item.id = id;
         values.put(LauncherSettings.Favorites._ID, item.id);
         item.updateValuesWithCoordinates(values, item.cellX, item.cellY);
 
         final StackTraceElement[] stackTrace = new Throwable().getStackTrace();
         Runnable r = new Runnable() {
             public void run() {
-                cr.insert(notify ? LauncherSettings.Favorites.CONTENT_URI :
-                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, values);
+                sDbWriteQueue.insert(cr, notify ? LauncherSettings.Favorites.CONTENT_URI :
+                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, item.id, values);
 
                 // Lock on mBgLock *after* the db operation
+                final long waitStart = System.nanoTime();
                 synchronized (sBgLock) {
+                    sBgLockStats.record("addItemToDatabase", waitStart);
                     checkItemInfoLocked(item.id, item, stackTrace);
                     sBgItemsIdMap.put(item.id, item);
+                    sBgItemIndex.add(item);
                     switch (item.itemType) {
                         case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                             sBgFolders.put(item.id, (FolderInfo) item);
@@ -1033,10 +1354,11 @@ public class LauncherModel extends BroadcastReceiver
                             sBgAppWidgets.add((LauncherAppWidgetInfo) item);
                             break;
                     }
+                    markBgSnapshotDirtyLocked();
                 }
             }
         };
-        runOnWorkerThread(r);
+        runItemWriteOnWorkerThread(r);
     }
 
     /**
@@ -1056,7 +1378,9 @@ public class LauncherModel extends BroadcastReceiver
                 return cn.getPackageName().equals(pn) && info.user.equals(user);
             }
         };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        synchronized (sBgLock) {
+            return filterItemInfos(sBgItemIndex.getByPackage(pn, user), filter);
+        }
     }
 
     /**
@@ -1088,23 +1412,29 @@ public class LauncherModel extends BroadcastReceiver
 
         Runnable r = new Runnable() {
             public void run() {
+                sDbWriteQueue.flush();
+                final ArrayList<ContentProviderOperation> ops =
+                        new ArrayList<ContentProviderOperation>(items.size());
                 for (ItemInfo item : items) {
-                    final Uri uri = LauncherSettings.Favorites.getContentUri(item.id, false);
-                    cr.delete(uri, null, null);
+                    ops.add(ContentProviderOperation.newDelete(
+                            LauncherSettings.Favorites.getContentUri(item.id, false)).build());
+                }
+                applyDeletes(cr, ops);
 
+                for (ItemInfo item : items) {
                     // Lock on mBgLock *after* the db operation
+                    final long waitStart = System.nanoTime();
                     synchronized (sBgLock) {
+                        sBgLockStats.record("deleteItemsFromDatabase", waitStart);
                         switch (item.itemType) {
                             case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
                                 sBgFolders.remove(item.id);
-                                for (ItemInfo info: sBgItemsIdMap.values()) {
-                                    if (info.container == item.id) {
-                                        // We are deleting a folder which still contains items that
-                                        // think they are contained by that folder.
-                                        String msg = "deleting a folder (" + item + ") which still " +
-                                                "contains items (" + info + ")";
-                                        Log.e(TAG, msg);
-                                    }
+                                for (ItemInfo info: sBgItemIndex.getByContainer(item.id)) {
+                                    // We are deleting a folder which still contains items that
+                                    // think they are contained by that folder.
+                                    String msg = "deleting a folder (" + item + ") which still " +
+                                            "contains items (" + info + ")";
+                                    Log.e(TAG, msg);
                                 }
                                 sBgWorkspaceItems.remove(item);
                                 break;
@@ -1116,13 +1446,39 @@ public class LauncherModel extends BroadcastReceiver
                                 sBgAppWidgets.remove((LauncherAppWidgetInfo) item);
                                 break;
                         }
-                        sBgItemsIdMap.remove(item.id);
+                        ItemInfo modelItem = sBgItemsIdMap.remove(item.id);
+                        sBgItemIndex.remove(modelItem != null ? modelItem : item);
                         sBgDbIconCache.remove(item);
                     }
                 }
+                synchronized (sBgLock) {
+                    markBgSnapshotDirtyLocked();
+                }
             }
         };
-        runOnWorkerThread(r);
+        runItemWriteOnWorkerThread(r);
+    }
+
+    /**
+     * Applies {@param ops} in one transaction, so that the provider sends a single notification
+     * for all of them. If the batch fails, each delete is tried on its own.
+     */
+    private static void applyDeletes(ContentResolver cr, ArrayList<ContentProviderOperation> ops) {
+        try {
+            cr.applyBatch(LauncherProvider.AUTHORITY, ops);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to apply " + ops.size() + " deletes in a batch, retrying each", e);
+            for (ContentProviderOperation op : ops) {
+                ArrayList<ContentProviderOperation> single =
+                        new ArrayList<ContentProviderOperation>(1);
+                single.add(op);
+                try {
+                    cr.applyBatch(LauncherProvider.AUTHORITY, single);
+                } catch (Exception e2) {
+                    Log.e(TAG, "Failed to apply " + op, e2);
+                }
+            }
+        }
     }
 
     /**
@@ -1168,13 +1524,16 @@ public class LauncherModel extends BroadcastReceiver
                     throw new RuntimeException(ex);
                 }
 
+                final long waitStart = System.nanoTime();
                 synchronized (sBgLock) {
+                    sBgLockStats.record("updateWorkspaceScreenOrder", waitStart);
                     sBgWorkspaceScreens.clear();
                     sBgWorkspaceScreens.addAll(screensCopy);
+                    publishBgSnapshotLocked();
                 }
             }
         };
-        runOnWorkerThread(r);
+        runItemWriteOnWorkerThread(r);
     }
 
     /**
@@ -1185,27 +1544,34 @@ public class LauncherModel extends BroadcastReceiver
 
         Runnable r = new Runnable() {
             public void run() {
-                cr.delete(LauncherSettings.Favorites.getContentUri(info.id, false), null, null);
+                sDbWriteQueue.flush();
+                final ArrayList<ContentProviderOperation> ops =
+                        new ArrayList<ContentProviderOperation>(2);
+                ops.add(ContentProviderOperation.newDelete(
+                        LauncherSettings.Favorites.getContentUri(info.id, false)).build());
+                ops.add(ContentProviderOperation.newDelete(
+                        LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION)
+                        .withSelection(LauncherSettings.Favorites.CONTAINER + "=" + info.id, null)
+                        .build());
+                applyDeletes(cr, ops);
+
                 // Lock on mBgLock *after* the db operation
                 synchronized (sBgLock) {
                     sBgItemsIdMap.remove(info.id);
+                    sBgItemIndex.remove(info);
                     sBgFolders.remove(info.id);
                     sBgDbIconCache.remove(info);
                     sBgWorkspaceItems.remove(info);
-                }
-
-                cr.delete(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
-                        LauncherSettings.Favorites.CONTAINER + "=" + info.id, null);
-                // Lock on mBgLock *after* the db operation
-                synchronized (sBgLock) {
                     for (ItemInfo childInfo : info.contents) {
                         sBgItemsIdMap.remove(childInfo.id);
+                        sBgItemIndex.remove(childInfo);
                         sBgDbIconCache.remove(childInfo);
                     }
+                    markBgSnapshotDirtyLocked();
                 }
             }
         };
-        runOnWorkerThread(r);
+        runItemWriteOnWorkerThread(r);
     }
 
     /**
@@ -1310,6 +1676,39 @@ public class LauncherModel extends BroadcastReceiver
         startLoaderFromBackground();
     }
 
+    /**
+     * Switches the workspace to the layout {@param layoutName} for the current grid, or to the
+     * default layout if it is null, and reloads it. The other layouts are kept as they are.
+     */
+    public void switchLayout(final String layoutName) {
+        resetLoadedState(false, true);
+        runOnWorkerThread(WorkerScheduler.LANE_LOADER, new Runnable() {
+            public void run() {
+                // The queued writes belong to the current layout
+                sDbWriteQueue.flush();
+                if (!LauncherAppState.getLauncherProvider().switchLayout(layoutName)) {
+                    return;
+                }
+                // Nothing may act on the items of the previous layout from now on. The writes
+                // still made for them are dropped, and the workers find an empty model until the
+                // new layout is loaded.
+                final long waitStart = System.nanoTime();
+                synchronized (sBgLock) {
+                    sBgLockStats.record("switchLayout", waitStart);
+                    sLayoutGeneration++;
+                    clearSBgDataStructuresLocked();
+                    publishBgSnapshotLocked();
+                }
+                // Even if the launcher is paused, as it still shows the previous layout
+                runOnMainThread(new Runnable() {
+                    public void run() {
+                        startLoader(false, PagedView.INVALID_RESTORE_PAGE);
+                    }
+                });
+            }
+        });
+    }
+
     public void resetLoadedState(boolean resetAllAppsLoaded, boolean resetWorkspaceLoaded) {
         synchronized (mLock) {
             // Stop any existing loaders first, so they don't set mAllAppsLoaded or
@@ -1350,6 +1749,8 @@ public class LauncherModel extends BroadcastReceiver
                 isLaunching = true;
             }
             oldTask.stopLocked();
+            // Don't even start it if it's still waiting
+            sWorkerScheduler.remove(oldTask);
         }
         return isLaunching;
     }
@@ -1385,7 +1786,7 @@ public class LauncherModel extends BroadcastReceiver
                     mLoaderTask.runBindSynchronousPage(synchronousBindPage);
                 } else {
                     sWorkerThread.setPriority(Thread.NORM_PRIORITY);
-                    sWorker.post(mLoaderTask);
+                    sWorkerScheduler.post(WorkerScheduler.LANE_LOADER, mLoaderTask);
                 }
             }
         }
@@ -1476,6 +1877,13 @@ public class LauncherModel extends BroadcastReceiver
         private boolean mStopped;
         private boolean mLoadAndBindStepFinished;
         private int mFlags;
+        private boolean mAppsAvailabilityCheckRegistered;
+
+        // Items modified before mVerifiedTime were found in a valid place by an earlier load, so
+        // only the items modified since then have their placement checked.
+        private long mVerifiedTime;
+        private long mLoadStartTime;
+        private boolean mFoundInvalidItems;
 
         private HashMap<Object, CharSequence> mLabelCache;
 
@@ -1504,6 +1912,27 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             boolean isUpgradePath = false;
+            if (!mWorkspaceLoaded && USE_MODEL_SNAPSHOT && !mModelSnapshotChecked
+                    && mFlags == LOADER_FLAG_NONE && mCallbacks.get() != null) {
+                // Only the first load in this process can use the snapshot, later loads are
+                // caused by changes which the snapshot does not know about.
+                mModelSnapshotChecked = true;
+                ModelSnapshot snapshot = ModelSnapshot.read(mContext);
+                if (snapshot != null) {
+                    return loadAndBindWorkspaceFromSnapshot(snapshot);
+                }
+            }
+
+            if (!mWorkspaceLoaded && LOAD_WORKSPACE_INCREMENTALLY && mCallbacks.get() != null) {
+                isUpgradePath = loadAndBindWorkspaceIncrementally();
+                synchronized (LoaderTask.this) {
+                    if (!mStopped) {
+                        mWorkspaceLoaded = true;
+                    }
+                }
+                return isUpgradePath;
+            }
+
             if (!mWorkspaceLoaded) {
                 isUpgradePath = loadWorkspace();
                 synchronized (LoaderTask.this) {
@@ -1519,6 +1948,144 @@ public class LauncherModel extends BroadcastReceiver
             return isUpgradePath;
         }
 
+        /**
+         * Binds {@param snapshot} right away, and then loads the workspace to verify it. If the
+         * loaded workspace has the same layout, only the items whose title or icon changed are
+         * rebound; otherwise the whole workspace is. Returns whether this is an upgrade path.
+         */
+        private boolean loadAndBindWorkspaceFromSnapshot(final ModelSnapshot snapshot) {
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+
+            synchronized (sBgLock) {
+                clearSBgDataStructures();
+                sBgWorkspaceScreens.addAll(snapshot.workspaceScreens);
+                sBgWorkspaceItems.addAll(snapshot.workspaceItems);
+                sBgFolders.putAll(snapshot.folders);
+                // Widgets are only bound once their providers have been checked.
+                for (ItemInfo item : snapshot.itemsIdMap.values()) {
+                    if (!(item instanceof LauncherAppWidgetInfo)) {
+                        sBgItemsIdMap.put(item.id, item);
+                        sBgItemIndex.add(item);
+                    }
+                }
+                publishBgSnapshotLocked();
+            }
+            bindWorkspace(-1, false);
+
+            if (!snapshot.apps.isEmpty()) {
+                final Callbacks oldCallbacks = mCallbacks.get();
+                runOnMainThread(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindAllApplications(snapshot.apps);
+                        }
+                    }
+                }, MAIN_THREAD_BINDING_RUNNABLE);
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "bound model snapshot in " + (SystemClock.uptimeMillis() - t) + "ms");
+            }
+
+            boolean isUpgradePath = loadWorkspace();
+            synchronized (LoaderTask.this) {
+                if (mStopped) {
+                    return isUpgradePath;
+                }
+                mWorkspaceLoaded = true;
+            }
+
+            if (isUpgradePath || !applySnapshotDifferences(snapshot)) {
+                Launcher.addDumpLog(TAG, "Model snapshot is out of date, rebinding", true);
+                bindWorkspace(-1, isUpgradePath);
+            }
+            return isUpgradePath;
+        }
+
+        /**
+         * Puts the items bound from {@param snapshot} back into the sBg data structures if the
+         * loaded workspace has the same layout, and binds the widgets along with the items whose
+         * title or icon changed. Returns false if the layout is different.
+         */
+        private boolean applySnapshotDifferences(ModelSnapshot snapshot) {
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                return false;
+            }
+
+            final ArrayList<ShortcutInfo> updated = new ArrayList<ShortcutInfo>();
+            final ArrayList<LauncherAppWidgetInfo> appWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>();
+            synchronized (sBgLock) {
+                if (!sBgWorkspaceScreens.equals(snapshot.workspaceScreens)
+                        || !sBgFolders.keySet().equals(snapshot.folders.keySet())
+                        || !sBgItemsIdMap.keySet().equals(snapshot.itemsIdMap.keySet())) {
+                    return false;
+                }
+                for (ItemInfo loaded : sBgItemsIdMap.values()) {
+                    if (!ModelSnapshot.getSignature(loaded).equals(
+                            ModelSnapshot.getSignature(snapshot.itemsIdMap.get(loaded.id)))) {
+                        return false;
+                    }
+                }
+
+                // Keep the items which are already bound, only their title and icon may need to
+                // be updated.
+                for (ItemInfo loaded : sBgItemsIdMap.values()) {
+                    if (!(loaded instanceof ShortcutInfo)) {
+                        continue;
+                    }
+                    ShortcutInfo shortcut = (ShortcutInfo) loaded;
+                    ShortcutInfo bound = (ShortcutInfo) snapshot.itemsIdMap.get(loaded.id);
+                    Bitmap icon = shortcut.getIcon(mIconCache);
+                    if (!TextUtils.equals(shortcut.title, bound.title)
+                            || !icon.sameAs(bound.getIcon(mIconCache))) {
+                        bound.title = shortcut.title;
+                        bound.contentDescription = shortcut.contentDescription;
+                        bound.usingFallbackIcon = shortcut.usingFallbackIcon;
+                        bound.setIcon(icon);
+                        updated.add(bound);
+                    }
+                }
+
+                HashMap<Long, ItemInfo> itemsIdMap =
+                        new HashMap<Long, ItemInfo>(snapshot.itemsIdMap);
+                appWidgets.addAll(sBgAppWidgets);
+                for (LauncherAppWidgetInfo widget : appWidgets) {
+                    itemsIdMap.put(widget.id, widget);
+                }
+                sBgItemsIdMap.clear();
+                sBgItemsIdMap.putAll(itemsIdMap);
+                sBgItemIndex.clear();
+                sBgItemIndex.addAll(itemsIdMap.values());
+                sBgWorkspaceItems.clear();
+                sBgWorkspaceItems.addAll(snapshot.workspaceItems);
+                sBgFolders.clear();
+                sBgFolders.putAll(snapshot.folders);
+                publishBgSnapshotLocked();
+            }
+
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "model snapshot is up to date, " + updated.size()
+                        + " items changed");
+            }
+            if (!updated.isEmpty()) {
+                runOnMainThread(new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null) {
+                            callbacks.bindShortcutsChanged(updated,
+                                    new ArrayList<ShortcutInfo>(),
+                                    UserHandleCompat.myUserHandle());
+                        }
+                    }
+                }, MAIN_THREAD_BINDING_RUNNABLE);
+            }
+            bindWorkspaceItems(oldCallbacks, new ArrayList<ItemInfo>(), appWidgets,
+                    new HashMap<Long, FolderInfo>(), null);
+            return true;
+        }
+
         private void waitForIdle() {
             // Wait until the either we're stopped or the other threads are done.
             // This way we don't start loading all apps until the workspace has settled
@@ -1593,6 +2160,7 @@ public class LauncherModel extends BroadcastReceiver
 
         public void run() {
             boolean isUpgrade = false;
+            final boolean wasLoaded = mWorkspaceLoaded && mAllAppsLoaded;
 
             synchronized (mLock) {
                 mIsLoaderTaskRunning = true;
@@ -1638,14 +2206,24 @@ public class LauncherModel extends BroadcastReceiver
 
             // Update the saved icons if necessary
             if (DEBUG_LOADERS) Log.d(TAG, "Comparing loaded icons to database icons");
+            final ArrayList<ShortcutInfo> dbIconCache;
             synchronized (sBgLock) {
-                for (Object key : sBgDbIconCache.keySet()) {
-                    updateSavedIcon(mContext, (ShortcutInfo) key, sBgDbIconCache.get(key));
-                }
+                dbIconCache = new ArrayList<ShortcutInfo>(sBgDbIconCache);
                 sBgDbIconCache.clear();
             }
-
-            if (LauncherAppState.isDisableAllApps()) {
+            if (!dbIconCache.isEmpty()) {
+                // Only now read the saved icons, in one query
+                final ArrayList<Long> ids = new ArrayList<Long>(dbIconCache.size());
+                for (ShortcutInfo info : dbIconCache) {
+                    ids.add(info.id);
+                }
+                final HashMap<Long, byte[]> savedIcons = loadIconBlobs(mContext, ids);
+                for (ShortcutInfo info : dbIconCache) {
+                    updateSavedIcon(mContext, info, savedIcons.get(info.id));
+                }
+            }
+
+            if (LauncherAppState.isDisableAllApps()) {
                 // Ensure that all the applications that are in the system are
                 // represented on the home screen.
                 if (!UPGRADE_USE_MORE_APPS_FOLDER || !isUpgrade) {
@@ -1653,6 +2231,13 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
 
+            // Save the loaded model for the next process start, or write it again if the
+            // database changed since.
+            if (USE_MODEL_SNAPSHOT && !mStopped && mWorkspaceLoaded && mAllAppsLoaded
+                    && (!wasLoaded || ModelSnapshot.isStale() || !ModelSnapshot.exists(mContext))) {
+                writeModelSnapshot(mContext);
+            }
+
             // Clear out this reference, otherwise we end up holding it until all of the
             // callback runnables are done.
             mContext = null;
@@ -1725,8 +2310,11 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
-        // check & update map of what's occupied; used to discard overlapping/invalid items
-        private boolean checkItemPlacement(HashMap<Long, ItemInfo[][]> occupied, ItemInfo item) {
+        // check & update map of what's occupied; used to discard overlapping/invalid items.
+        // Unless {@param verify} is set, the item is known to be valid and only marks its cells
+        // as occupied; the bounds are still checked, as they guard the map.
+        private boolean checkItemPlacement(HashMap<Long, ItemInfo[][]> occupied, ItemInfo item,
+                boolean verify) {
             LauncherAppState app = LauncherAppState.getInstance();
             DeviceProfile grid = app.getDynamicGrid().getDeviceProfile();
             final int countX = (int) grid.numColumns;
@@ -1735,8 +2323,8 @@ public class LauncherModel extends BroadcastReceiver
             long containerIndex = item.screenId;
             if (item.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
                 // Return early if we detect that an item is under the hotseat button
-                if (mCallbacks == null ||
-                        mCallbacks.get().isAllAppsButtonRank((int) item.screenId)) {
+                if (verify && (mCallbacks == null ||
+                        mCallbacks.get().isAllAppsButtonRank((int) item.screenId))) {
                     Log.e(TAG, "Error loading shortcut into hotseat " + item
                             + " into position (" + item.screenId + ":" + item.cellX + ","
                             + item.cellY + ") occupied by all apps");
@@ -1755,7 +2343,7 @@ public class LauncherModel extends BroadcastReceiver
                 }
 
                 if (hotseatItems != null) {
-                    if (hotseatItems[(int) item.screenId][0] != null) {
+                    if (verify && hotseatItems[(int) item.screenId][0] != null) {
                         Log.e(TAG, "Error loading shortcut into hotseat " + item
                                 + " into position (" + item.screenId + ":" + item.cellX + ","
                                 + item.cellY + ") occupied by "
@@ -1794,15 +2382,17 @@ public class LauncherModel extends BroadcastReceiver
             }
 
             // Check if any workspace icons overlap with each other
-            for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
-                for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
-                    if (screens[x][y] != null) {
-                        Log.e(TAG, "Error loading shortcut " + item
-                            + " into cell (" + containerIndex + "-" + item.screenId + ":"
-                            + x + "," + y
-                            + ") occupied by "
-                            + screens[x][y]);
-                        return false;
+            if (verify) {
+                for (int x = item.cellX; x < (item.cellX+item.spanX); x++) {
+                    for (int y = item.cellY; y < (item.cellY+item.spanY); y++) {
+                        if (screens[x][y] != null) {
+                            Log.e(TAG, "Error loading shortcut " + item
+                                + " into cell (" + containerIndex + "-" + item.screenId + ":"
+                                + x + "," + y
+                                + ") occupied by "
+                                + screens[x][y]);
+                            return false;
+                        }
                     }
                 }
             }
@@ -1818,13 +2408,136 @@ public class LauncherModel extends BroadcastReceiver
         /** Clears all the sBg data structures */
         private void clearSBgDataStructures() {
             synchronized (sBgLock) {
-                sBgWorkspaceItems.clear();
-                sBgAppWidgets.clear();
-                sBgFolders.clear();
-                sBgItemsIdMap.clear();
-                sBgDbIconCache.clear();
-                sBgWorkspaceScreens.clear();
+                clearSBgDataStructuresLocked();
+            }
+        }
+
+        /**
+         * Resolves the intents, package state, app icons and widget providers of the workspace
+         * items on {@link #sLoaderPool}. This only talks to the package manager and the app widget
+         * service, so it runs before sBgLock is acquired. Items which could not be resolved here
+         * are not part of the result, and are resolved serially by {@link #loadWorkspaceItems}.
+         */
+        private HashMap<Long, ResolvedItem> resolveWorkspaceItems(String selection,
+                String[] selectionArgs) {
+            final HashMap<Long, ResolvedItem> resolvedItems = new HashMap<Long, ResolvedItem>();
+            if (!LOAD_WORKSPACE_IN_PARALLEL) {
+                return resolvedItems;
+            }
+
+            final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final Context context = mContext;
+            final PackageManager manager = context.getPackageManager();
+            final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
+            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
+
+            final Cursor c = context.getContentResolver().query(
+                    LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION, new String[] {
+                            LauncherSettings.Favorites._ID,
+                            LauncherSettings.Favorites.ITEM_TYPE,
+                            LauncherSettings.Favorites.INTENT,
+                            LauncherSettings.Favorites.PROFILE_ID,
+                            LauncherSettings.Favorites.APPWIDGET_ID,
+                            LauncherSettings.Favorites.RESTORED,
+                            LauncherSettings.Favorites.INTENT_DATA },
+                    selection, selectionArgs, null);
+            if (c == null) {
+                return resolvedItems;
+            }
+
+            final ArrayList<Future<?>> pending = new ArrayList<Future<?>>();
+            try {
+                while (!mStopped && c.moveToNext()) {
+                    final long id = c.getLong(0);
+                    final int itemType = c.getInt(1);
+                    final String intentDescription = c.getString(2);
+                    final UserHandleCompat user = mUserManager.getUserForSerialNumber(c.getInt(3));
+                    final int appWidgetId = c.getInt(4);
+                    final int restoreStatus = c.getInt(5);
+                    final byte[] intentData = c.getBlob(6);
+                    final ResolvedItem item = new ResolvedItem();
+                    Runnable r = null;
+
+                    switch (itemType) {
+                    case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+                    case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                        if (user == null || intentDescription == null) {
+                            break;
+                        }
+                        r = new Runnable() {
+                            public void run() {
+                                Intent intent;
+                                try {
+                                    intent = IntentCodec.parse(intentData, intentDescription);
+                                } catch (URISyntaxException e) {
+                                    return;
+                                }
+                                ComponentName cn = intent.getComponent();
+                                if (cn != null && cn.getPackageName() != null) {
+                                    item.validPkg = launcherApps.isPackageEnabledForProfile(
+                                            cn.getPackageName(), user);
+                                    item.validComponent = item.validPkg &&
+                                            launcherApps.isActivityEnabledForProfile(cn, user);
+                                    if (item.validComponent && itemType ==
+                                            LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
+                                        // The label cache is not thread safe, the icon cache
+                                        // holds on to the title anyway.
+                                        item.info = getShortcutInfo(manager, intent, user,
+                                                context, null, -1, -1, null, false);
+                                    }
+                                }
+                                item.intent = intent;
+                                item.resolved = true;
+                            }
+                        };
+                        break;
+                    case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                        if ((restoreStatus & LauncherAppWidgetInfo.FLAG_ID_NOT_VALID) != 0) {
+                            break;
+                        }
+                        r = new Runnable() {
+                            public void run() {
+                                AppWidgetProviderInfo provider =
+                                        widgets.getAppWidgetInfo(appWidgetId);
+                                if (isValidProvider(provider)) {
+                                    item.minSpan = Launcher.getMinSpanForWidget(context, provider);
+                                }
+                                item.provider = provider;
+                                item.resolved = true;
+                            }
+                        };
+                        break;
+                    }
+
+                    if (r != null) {
+                        resolvedItems.put(id, item);
+                        pending.add(sLoaderPool.submit(r));
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            for (Future<?> f : pending) {
+                if (mStopped) {
+                    f.cancel(false);
+                    continue;
+                }
+                try {
+                    f.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // The item is resolved again on the loader thread.
+                    Log.w(TAG, "Failed to resolve workspace item", e.getCause());
+                }
+            }
+
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "resolved " + pending.size() + " workspace items in "
+                        + (SystemClock.uptimeMillis() - t) + "ms");
             }
+            return resolvedItems;
         }
 
         /** Returns whether this is an upgrade path */
@@ -1835,22 +2548,86 @@ public class LauncherModel extends BroadcastReceiver
             final long t = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
 
             final Context context = mContext;
-            final ContentResolver contentResolver = context.getContentResolver();
-            final PackageManager manager = context.getPackageManager();
-            final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
-            final boolean isSafeMode = manager.isSafeMode();
-            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
             final boolean isSdCardReady = context.registerReceiver(null,
                     new IntentFilter(StartupReceiver.SYSTEM_READY)) != null;
 
-            LauncherAppState app = LauncherAppState.getInstance();
-            DeviceProfile grid = app.getDynamicGrid().getDeviceProfile();
-            int countX = (int) grid.numColumns;
-            int countY = (int) grid.numRows;
+            prepareWorkspace();
+
+            // This code path is for our old migration code and should no longer be exercised
+            boolean loadedOldDb = false;
+
+            // Log to disk
+            Launcher.addDumpLog(TAG, "11683562 -   loadedOldDb: " + loadedOldDb, true);
+
+            // +1 for the hotseat (it can be larger than the workspace)
+            // Load workspace in reverse order to ensure that latest items are loaded first (and
+            // before any earlier duplicates)
+            final HashMap<Long, ItemInfo[][]> occupied = new HashMap<Long, ItemInfo[][]>();
+
+            clearSBgDataStructures();
+            if (!loadWorkspaceItems(null, null, occupied, isSdCardReady)) {
+                return false;
+            }
+            finishWorkspaceVerification();
+
+            synchronized (sBgLock) {
+                if (loadedOldDb) {
+                    long maxScreenId = 0;
+                    // If we're importing we use the old screen order.
+                    for (ItemInfo item: sBgItemsIdMap.values()) {
+                        long screenId = item.screenId;
+                        if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
+                                !sBgWorkspaceScreens.contains(screenId)) {
+                            sBgWorkspaceScreens.add(screenId);
+                            if (screenId > maxScreenId) {
+                                maxScreenId = screenId;
+                            }
+                        }
+                    }
+                    Collections.sort(sBgWorkspaceScreens);
+                    // Log to disk
+                    Launcher.addDumpLog(TAG, "11683562 -   maxScreenId: " + maxScreenId, true);
+                    Launcher.addDumpLog(TAG, "11683562 -   sBgWorkspaceScreens: " +
+                            TextUtils.join(", ", sBgWorkspaceScreens), true);
+
+                    LauncherAppState.getLauncherProvider().updateMaxScreenId(maxScreenId);
+                    updateWorkspaceScreenOrder(context, sBgWorkspaceScreens);
+
+                    // Update the max item id after we load an old db
+                    long maxItemId = 0;
+                    // If we're importing we use the old screen order.
+                    for (ItemInfo item: sBgItemsIdMap.values()) {
+                        maxItemId = Math.max(maxItemId, item.id);
+                    }
+                    LauncherAppState.getLauncherProvider().updateMaxItemId(maxItemId);
+                } else {
+                    HashSet<Long> usedScreens = new HashSet<Long>();
+                    for (ItemInfo item: sBgItemIndex.getByContainer(
+                            LauncherSettings.Favorites.CONTAINER_DESKTOP)) {
+                        usedScreens.add(item.screenId);
+                    }
+                    loadWorkspaceScreens(usedScreens);
+                }
+                checkItemIndexLocked();
+                publishBgSnapshotLocked();
+
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
+                    dumpOccupied(occupied);
+                }
+            }
+            return loadedOldDb;
+        }
+
+        /** Resets or migrates the database if requested, and loads the default workspace. */
+        private void prepareWorkspace() {
+            sDbWriteQueue.flush();
 
             if ((mFlags & LOADER_FLAG_CLEAR_WORKSPACE) != 0) {
                 Launcher.addDumpLog(TAG, "loadWorkspace: resetting launcher database", true);
                 LauncherAppState.getLauncherProvider().deleteDatabase();
+                // The ids of the bound items now mean other rows
+                sLayoutGeneration++;
             }
 
             if ((mFlags & LOADER_FLAG_MIGRATE_SHORTCUTS) != 0) {
@@ -1863,37 +2640,87 @@ public class LauncherModel extends BroadcastReceiver
                 LauncherAppState.getLauncherProvider().loadDefaultFavoritesIfNecessary();
             }
 
-            // This code path is for our old migration code and should no longer be exercised
-            boolean loadedOldDb = false;
+            // Everything written so far has been flushed, and anything written from now on is
+            // modified after the start time, so it is checked again by the next load.
+            mLoadStartTime = System.currentTimeMillis();
+            mFoundInvalidItems = false;
+            mVerifiedTime = (mFlags & LOADER_FLAG_VERIFY_WORKSPACE) != 0 ? 0
+                    : LauncherAppState.getLauncherProvider().getWorkspaceVerifiedTime(
+                            getVerifiedGridKey());
+            if (mVerifiedTime > mLoadStartTime) {
+                // The clock went back, so the modified times can't be trusted
+                mVerifiedTime = 0;
+            }
+        }
 
-            // Log to disk
-            Launcher.addDumpLog(TAG, "11683562 -   loadedOldDb: " + loadedOldDb, true);
+        /**
+         * Remembers that every item was found in a valid place, unless this load had to remove
+         * some, so that the next load only checks the items modified after it started.
+         */
+        private void finishWorkspaceVerification() {
+            if (!mStopped && !mFoundInvalidItems) {
+                LauncherAppState.getLauncherProvider().setWorkspaceVerifiedTime(mLoadStartTime,
+                        getVerifiedGridKey());
+            }
+        }
+
+        /** Describes everything {@link #checkItemPlacement} checks the items against. */
+        private String getVerifiedGridKey() {
+            DeviceProfile grid = LauncherAppState.getInstance().getDynamicGrid()
+                    .getDeviceProfile();
+            return (int) grid.numColumns + "x" + (int) grid.numRows + ","
+                    + (int) grid.numHotseatIcons + "," + grid.hotseatAllAppsRank + ","
+                    + LauncherAppState.isDisableAllApps();
+        }
+
+        /**
+         * Loads the rows matching {@param selection} into the sBg data structures, without
+         * clearing them first. Can be called several times during a single load, as long as
+         * {@param occupied} is shared between the calls.
+         *
+         * @return false if the loader was stopped, in which case the sBg data structures have
+         *         been cleared.
+         */
+        private boolean loadWorkspaceItems(String selection, String[] selectionArgs,
+                HashMap<Long, ItemInfo[][]> occupied, boolean isSdCardReady) {
+            final Context context = mContext;
+            final ContentResolver contentResolver = context.getContentResolver();
+            final PackageManager manager = context.getPackageManager();
+            final AppWidgetManager widgets = AppWidgetManager.getInstance(context);
+            final boolean isSafeMode = manager.isSafeMode();
+            final LauncherAppsCompat launcherApps = LauncherAppsCompat.getInstance(context);
+
+            sDbWriteQueue.flush();
+            final HashMap<Long, ResolvedItem> resolvedItems =
+                    resolveWorkspaceItems(selection, selectionArgs);
 
+            final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
+            final ArrayList<Long> restoredRows = new ArrayList<Long>();
+            final ArrayList<ShortcutInfo> savedIconItems = new ArrayList<ShortcutInfo>();
+            final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION;
+            final long waitStart = System.nanoTime();
             synchronized (sBgLock) {
-                clearSBgDataStructures();
+                sBgLockStats.record("loadWorkspaceItems", waitStart);
                 final HashSet<String> installingPkgs = PackageInstallerCompat
                         .getInstance(mContext).updateAndGetActiveSessionCache();
 
-                final ArrayList<Long> itemsToRemove = new ArrayList<Long>();
-                final ArrayList<Long> restoredRows = new ArrayList<Long>();
-                final Uri contentUri = LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION;
                 if (DEBUG_LOADERS) Log.d(TAG, "loading model from " + contentUri);
-                final Cursor c = contentResolver.query(contentUri, null, null, null, null);
-
-                // +1 for the hotseat (it can be larger than the workspace)
-                // Load workspace in reverse order to ensure that latest items are loaded first (and
-                // before any earlier duplicates)
-                final HashMap<Long, ItemInfo[][]> occupied = new HashMap<Long, ItemInfo[][]>();
+                // The items which were valid on the last load come first, so that the items
+                // modified since then are checked against all of them.
+                final Cursor c = contentResolver.query(contentUri, WORKSPACE_PROJECTION,
+                        selection, selectionArgs, LauncherSettings.Favorites.MODIFIED);
+                int checkedCount = 0;
 
                 try {
                     final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
                     final int intentIndex = c.getColumnIndexOrThrow
                             (LauncherSettings.Favorites.INTENT);
+                    final int intentDataIndex = c.getColumnIndexOrThrow(
+                            LauncherSettings.Favorites.INTENT_DATA);
                     final int titleIndex = c.getColumnIndexOrThrow
                             (LauncherSettings.Favorites.TITLE);
                     final int iconTypeIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.ICON_TYPE);
-                    final int iconIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.ICON);
                     final int iconPackageIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.ICON_PACKAGE);
                     final int iconResourceIndex = c.getColumnIndexOrThrow(
@@ -1920,11 +2747,14 @@ public class LauncherModel extends BroadcastReceiver
                             LauncherSettings.Favorites.RESTORED);
                     final int profileIdIndex = c.getColumnIndexOrThrow(
                             LauncherSettings.Favorites.PROFILE_ID);
+                    final int modifiedIndex = c.getColumnIndexOrThrow(
+                            LauncherSettings.Favorites.MODIFIED);
                     //final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
                     //final int displayModeIndex = c.getColumnIndexOrThrow(
                     //        LauncherSettings.Favorites.DISPLAY_MODE);
 
                     ShortcutInfo info;
+                    ResolvedItem resolved;
                     String intentDescription;
                     LauncherAppWidgetInfo appWidgetInfo;
                     int container;
@@ -1937,6 +2767,10 @@ public class LauncherModel extends BroadcastReceiver
                             int itemType = c.getInt(itemTypeIndex);
                             boolean restored = 0 != c.getInt(restoredIndex);
                             boolean allowMissingTarget = false;
+                            boolean verify = c.getLong(modifiedIndex) >= mVerifiedTime;
+                            if (verify) {
+                                checkedCount++;
+                            }
 
                             switch (itemType) {
                             case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
@@ -1952,14 +2786,23 @@ public class LauncherModel extends BroadcastReceiver
                                     itemsToRemove.add(id);
                                     continue;
                                 }
+                                resolved = resolvedItems.get(id);
+                                if (resolved != null && !resolved.resolved) {
+                                    resolved = null;
+                                }
                                 try {
-                                    intent = Intent.parseUri(intentDescription, 0);
+                                    intent = resolved != null ? resolved.intent
+                                            : IntentCodec.parse(c.getBlob(intentDataIndex),
+                                                    intentDescription);
                                     ComponentName cn = intent.getComponent();
                                     if (cn != null && cn.getPackageName() != null) {
-                                        boolean validPkg = launcherApps.isPackageEnabledForProfile(
-                                                cn.getPackageName(), user);
-                                        boolean validComponent = validPkg &&
-                                                launcherApps.isActivityEnabledForProfile(cn, user);
+                                        boolean validPkg = resolved != null ? resolved.validPkg
+                                                : launcherApps.isPackageEnabledForProfile(
+                                                        cn.getPackageName(), user);
+                                        boolean validComponent = resolved != null
+                                                ? resolved.validComponent
+                                                : validPkg && launcherApps
+                                                        .isActivityEnabledForProfile(cn, user);
 
                                         if (validComponent) {
                                             if (restored) {
@@ -2073,12 +2916,18 @@ public class LauncherModel extends BroadcastReceiver
                                     }
                                 } else if (itemType ==
                                         LauncherSettings.Favorites.ITEM_TYPE_APPLICATION) {
-                                    info = getShortcutInfo(manager, intent, user, context, c,
-                                            iconIndex, titleIndex, mLabelCache, allowMissingTarget);
+                                    if (resolved != null && resolved.info != null
+                                            && !allowMissingTarget) {
+                                        info = resolved.info;
+                                    } else {
+                                        info = getShortcutInfo(manager, intent, user, context, c,
+                                                id, titleIndex, mLabelCache,
+                                                allowMissingTarget);
+                                    }
                                 } else {
                                     info = getShortcutInfo(c, context, iconTypeIndex,
-                                            iconPackageIndex, iconResourceIndex, iconIndex,
-                                            titleIndex);
+                                            iconPackageIndex, iconResourceIndex, titleIndex,
+                                            savedIconItems);
 
                                     // App shortcuts that used to be automatically added to Launcher
                                     // didn't always have the correct intent flags set, so do that
@@ -2110,7 +2959,7 @@ public class LauncherModel extends BroadcastReceiver
                                     }
 
                                     // check & update map of what's occupied
-                                    if (!checkItemPlacement(occupied, info)) {
+                                    if (!checkItemPlacement(occupied, info, verify)) {
                                         itemsToRemove.add(id);
                                         break;
                                     }
@@ -2128,10 +2977,11 @@ public class LauncherModel extends BroadcastReceiver
                                         break;
                                     }
                                     sBgItemsIdMap.put(info.id, info);
+                                    sBgItemIndex.add(info);
 
                                     // now that we've loaded everthing re-save it with the
                                     // icon in case it disappears somehow.
-                                    queueIconToBeChecked(sBgDbIconCache, info, c, iconIndex);
+                                    queueIconToBeChecked(sBgDbIconCache, info);
                                 } else {
                                     throw new RuntimeException("Unexpected null ShortcutInfo");
                                 }
@@ -2152,7 +3002,7 @@ public class LauncherModel extends BroadcastReceiver
                                 folderInfo.spanY = 1;
 
                                 // check & update map of what's occupied
-                                if (!checkItemPlacement(occupied, folderInfo)) {
+                                if (!checkItemPlacement(occupied, folderInfo, verify)) {
                                     itemsToRemove.add(id);
                                     break;
                                 }
@@ -2170,6 +3020,7 @@ public class LauncherModel extends BroadcastReceiver
                                 }
 
                                 sBgItemsIdMap.put(folderInfo.id, folderInfo);
+                                sBgItemIndex.add(folderInfo);
                                 sBgFolders.put(folderInfo.id, folderInfo);
                                 break;
 
@@ -2188,7 +3039,13 @@ public class LauncherModel extends BroadcastReceiver
                                 final boolean wasProviderReady = (restoreStatus &
                                         LauncherAppWidgetInfo.FLAG_PROVIDER_NOT_READY) == 0;
 
-                                final AppWidgetProviderInfo provider = isIdValid
+                                resolved = resolvedItems.get(id);
+                                if (resolved != null && !(resolved.resolved && isIdValid)) {
+                                    resolved = null;
+                                }
+                                final AppWidgetProviderInfo provider = resolved != null
+                                        ? resolved.provider
+                                        : isIdValid
                                         ? widgets.getAppWidgetInfo(appWidgetId)
                                         : findAppWidgetProviderInfoWithComponent(context, component);
 
@@ -2203,8 +3060,9 @@ public class LauncherModel extends BroadcastReceiver
                                     if (isProviderReady) {
                                         appWidgetInfo = new LauncherAppWidgetInfo(appWidgetId,
                                                 provider.provider);
-                                        int[] minSpan =
-                                                Launcher.getMinSpanForWidget(context, provider);
+                                        int[] minSpan = resolved != null
+                                                && resolved.minSpan != null ? resolved.minSpan
+                                                : Launcher.getMinSpanForWidget(context, provider);
                                         appWidgetInfo.minSpanX = minSpan[0];
                                         appWidgetInfo.minSpanY = minSpan[1];
 
@@ -2261,7 +3119,7 @@ public class LauncherModel extends BroadcastReceiver
 
                                     appWidgetInfo.container = c.getInt(containerIndex);
                                     // check & update map of what's occupied
-                                    if (!checkItemPlacement(occupied, appWidgetInfo)) {
+                                    if (!checkItemPlacement(occupied, appWidgetInfo, verify)) {
                                         itemsToRemove.add(id);
                                         break;
                                     }
@@ -2279,6 +3137,7 @@ public class LauncherModel extends BroadcastReceiver
                                         contentResolver.update(contentUri, values, where, args);
                                     }
                                     sBgItemsIdMap.put(appWidgetInfo.id, appWidgetInfo);
+                                    sBgItemIndex.add(appWidgetInfo);
                                     sBgAppWidgets.add(appWidgetInfo);
                                 }
                                 break;
@@ -2292,142 +3151,128 @@ public class LauncherModel extends BroadcastReceiver
                         c.close();
                     }
                 }
+                if (DEBUG_LOADERS) {
+                    Log.d(TAG, "checked the placement of " + checkedCount + " items, "
+                            + itemsToRemove.size() + " to remove");
+                }
 
                 // Break early if we've stopped loading
                 if (mStopped) {
                     clearSBgDataStructures();
                     return false;
                 }
+                publishBgSnapshotLocked();
+            }
 
-                if (itemsToRemove.size() > 0) {
-                    ContentProviderClient client = contentResolver.acquireContentProviderClient(
-                            contentUri);
-                    // Remove dead items
-                    for (long id : itemsToRemove) {
-                        if (DEBUG_LOADERS) {
-                            Log.d(TAG, "Removed id = " + id);
-                        }
-                        // Don't notify content observers
-                        try {
-                            client.delete(LauncherSettings.Favorites.getContentUri(id, false),
-                                    null, null);
-                        } catch (RemoteException e) {
-                            Log.w(TAG, "Could not remove id = " + id);
-                        }
+            // Read the icons saved for the shortcuts which need them outside of sBgLock, in one
+            // query rather than one per shortcut. They are bound once this returns.
+            loadSavedIcons(context, savedIconItems);
+
+            // Clean up the database outside of sBgLock, as nobody else needs to wait for it
+            if (itemsToRemove.size() > 0) {
+                mFoundInvalidItems = true;
+                // Remove dead items in one transaction. Don't notify content observers.
+                ArrayList<ContentProviderOperation> ops =
+                        new ArrayList<ContentProviderOperation>(itemsToRemove.size());
+                for (long id : itemsToRemove) {
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "Removed id = " + id);
                     }
+                    ops.add(ContentProviderOperation.newDelete(
+                            LauncherSettings.Favorites.getContentUri(id, false)).build());
                 }
+                applyDeletes(contentResolver, ops);
+            }
 
-                if (restoredRows.size() > 0) {
-                    ContentProviderClient updater = contentResolver.acquireContentProviderClient(
-                            contentUri);
-                    // Update restored items that no longer require special handling
-                    try {
-                        StringBuilder selectionBuilder = new StringBuilder();
-                        selectionBuilder.append(LauncherSettings.Favorites._ID);
-                        selectionBuilder.append(" IN (");
-                        selectionBuilder.append(TextUtils.join(", ", restoredRows));
-                        selectionBuilder.append(")");
-                        ContentValues values = new ContentValues();
-                        values.put(LauncherSettings.Favorites.RESTORED, 0);
-                        updater.update(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
-                                values, selectionBuilder.toString(), null);
-                    } catch (RemoteException e) {
-                        Log.w(TAG, "Could not update restored rows");
-                    }
+            if (restoredRows.size() > 0) {
+                ContentProviderClient updater = contentResolver.acquireContentProviderClient(
+                        contentUri);
+                // Update restored items that no longer require special handling
+                try {
+                    StringBuilder selectionBuilder = new StringBuilder();
+                    selectionBuilder.append(LauncherSettings.Favorites._ID);
+                    selectionBuilder.append(" IN (");
+                    selectionBuilder.append(TextUtils.join(", ", restoredRows));
+                    selectionBuilder.append(")");
+                    ContentValues values = new ContentValues();
+                    values.put(LauncherSettings.Favorites.RESTORED, 0);
+                    updater.update(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
+                            values, selectionBuilder.toString(), null);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Could not update restored rows");
                 }
+            }
 
-                if (!isSdCardReady && !sPendingPackages.isEmpty()) {
+            synchronized (sBgLock) {
+                if (!isSdCardReady && !sPendingPackages.isEmpty()
+                        && !mAppsAvailabilityCheckRegistered) {
                     context.registerReceiver(new AppsAvailabilityCheck(),
                             new IntentFilter(StartupReceiver.SYSTEM_READY),
                             null, sWorker);
+                    mAppsAvailabilityCheckRegistered = true;
                 }
+            }
+            return true;
+        }
 
-                if (loadedOldDb) {
-                    long maxScreenId = 0;
-                    // If we're importing we use the old screen order.
-                    for (ItemInfo item: sBgItemsIdMap.values()) {
-                        long screenId = item.screenId;
-                        if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                                !sBgWorkspaceScreens.contains(screenId)) {
-                            sBgWorkspaceScreens.add(screenId);
-                            if (screenId > maxScreenId) {
-                                maxScreenId = screenId;
-                            }
-                        }
-                    }
-                    Collections.sort(sBgWorkspaceScreens);
-                    // Log to disk
-                    Launcher.addDumpLog(TAG, "11683562 -   maxScreenId: " + maxScreenId, true);
-                    Launcher.addDumpLog(TAG, "11683562 -   sBgWorkspaceScreens: " +
-                            TextUtils.join(", ", sBgWorkspaceScreens), true);
+        /**
+         * Loads the ordered set of workspace screens into sBgWorkspaceScreens, removing the
+         * screens which are not in {@param usedScreens} from the database.
+         */
+        private void loadWorkspaceScreens(Set<Long> usedScreens) {
+            synchronized (sBgLock) {
+                TreeMap<Integer, Long> orderedScreens = loadWorkspaceScreensDb(mContext);
+                for (Integer i : orderedScreens.keySet()) {
+                    sBgWorkspaceScreens.add(orderedScreens.get(i));
+                }
+                // Log to disk
+                Launcher.addDumpLog(TAG, "11683562 -   sBgWorkspaceScreens: " +
+                        TextUtils.join(", ", sBgWorkspaceScreens), true);
 
-                    LauncherAppState.getLauncherProvider().updateMaxScreenId(maxScreenId);
-                    updateWorkspaceScreenOrder(context, sBgWorkspaceScreens);
+                // Remove any empty screens
+                ArrayList<Long> unusedScreens = new ArrayList<Long>(sBgWorkspaceScreens);
+                unusedScreens.removeAll(usedScreens);
 
-                    // Update the max item id after we load an old db
-                    long maxItemId = 0;
-                    // If we're importing we use the old screen order.
-                    for (ItemInfo item: sBgItemsIdMap.values()) {
-                        maxItemId = Math.max(maxItemId, item.id);
-                    }
-                    LauncherAppState.getLauncherProvider().updateMaxItemId(maxItemId);
-                } else {
-                    TreeMap<Integer, Long> orderedScreens = loadWorkspaceScreensDb(mContext);
-                    for (Integer i : orderedScreens.keySet()) {
-                        sBgWorkspaceScreens.add(orderedScreens.get(i));
-                    }
+                // If there are any empty screens remove them, and update.
+                if (unusedScreens.size() != 0) {
                     // Log to disk
-                    Launcher.addDumpLog(TAG, "11683562 -   sBgWorkspaceScreens: " +
-                            TextUtils.join(", ", sBgWorkspaceScreens), true);
+                    Launcher.addDumpLog(TAG, "11683562 -   unusedScreens (to be removed): " +
+                            TextUtils.join(", ", unusedScreens), true);
 
-                    // Remove any empty screens
-                    ArrayList<Long> unusedScreens = new ArrayList<Long>(sBgWorkspaceScreens);
-                    for (ItemInfo item: sBgItemsIdMap.values()) {
-                        long screenId = item.screenId;
-                        if (item.container == LauncherSettings.Favorites.CONTAINER_DESKTOP &&
-                                unusedScreens.contains(screenId)) {
-                            unusedScreens.remove(screenId);
-                        }
-                    }
+                    sBgWorkspaceScreens.removeAll(unusedScreens);
+                    updateWorkspaceScreenOrder(mContext, sBgWorkspaceScreens);
+                }
+                publishBgSnapshotLocked();
+            }
+        }
+
+        private void dumpOccupied(HashMap<Long, ItemInfo[][]> occupied) {
+            LauncherAppState app = LauncherAppState.getInstance();
+            DeviceProfile grid = app.getDynamicGrid().getDeviceProfile();
+            int countX = (int) grid.numColumns;
+            int countY = (int) grid.numRows;
 
-                    // If there are any empty screens remove them, and update.
-                    if (unusedScreens.size() != 0) {
-                        // Log to disk
-                        Launcher.addDumpLog(TAG, "11683562 -   unusedScreens (to be removed): " +
-                                TextUtils.join(", ", unusedScreens), true);
+            Log.d(TAG, "workspace layout: ");
+            for (int y = 0; y < countY; y++) {
+                String line = "";
 
-                        sBgWorkspaceScreens.removeAll(unusedScreens);
-                        updateWorkspaceScreenOrder(context, sBgWorkspaceScreens);
+                Iterator<Long> iter = occupied.keySet().iterator();
+                while (iter.hasNext()) {
+                    long screenId = iter.next();
+                    if (screenId > 0) {
+                        line += " | ";
                     }
-                }
-
-                if (DEBUG_LOADERS) {
-                    Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis()-t) + "ms");
-                    Log.d(TAG, "workspace layout: ");
-                    int nScreens = occupied.size();
-                    for (int y = 0; y < countY; y++) {
-                        String line = "";
-
-                        Iterator<Long> iter = occupied.keySet().iterator();
-                        while (iter.hasNext()) {
-                            long screenId = iter.next();
-                            if (screenId > 0) {
-                                line += " | ";
-                            }
-                            for (int x = 0; x < countX; x++) {
-                                ItemInfo[][] screen = occupied.get(screenId);
-                                if (x < screen.length && y < screen[x].length) {
-                                    line += (screen[x][y] != null) ? "#" : ".";
-                                } else {
-                                    line += "!";
-                                }
-                            }
+                    for (int x = 0; x < countX; x++) {
+                        ItemInfo[][] screen = occupied.get(screenId);
+                        if (x < screen.length && y < screen[x].length) {
+                            line += (screen[x][y] != null) ? "#" : ".";
+                        } else {
+                            line += "!";
                         }
-                        Log.d(TAG, "[ " + line + " ]");
                     }
                 }
+                Log.d(TAG, "[ " + line + " ]");
             }
-            return loadedOldDb;
         }
 
         /** Filters the set of items who are directly or indirectly (via another container) on the
@@ -2543,7 +3388,10 @@ public class LauncherModel extends BroadcastReceiver
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
+                        final long t = System.nanoTime();
                         callbacks.bindScreens(orderedScreens);
+                        mBindStats.record(BindStats.PHASE_SCREENS, orderedScreens.size(),
+                                System.nanoTime() - t);
                     }
                 }
             };
@@ -2558,21 +3406,9 @@ public class LauncherModel extends BroadcastReceiver
 
             final boolean postOnMainThread = (deferredBindRunnables != null);
 
-            // Bind the workspace items
-            int N = workspaceItems.size();
-            for (int i = 0; i < N; i += ITEMS_CHUNK) {
-                final int start = i;
-                final int chunkSize = (i+ITEMS_CHUNK <= N) ? ITEMS_CHUNK : (N-i);
-                final Runnable r = new Runnable() {
-                    @Override
-                    public void run() {
-                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindItems(workspaceItems, start, start+chunkSize,
-                                    false);
-                        }
-                    }
-                };
+            // Bind the workspace items, as many per frame as fit in the frame budget
+            if (!workspaceItems.isEmpty()) {
+                final Runnable r = new BindItemsRunnable(oldCallbacks, workspaceItems);
                 if (postOnMainThread) {
                     synchronized (deferredBindRunnables) {
                         deferredBindRunnables.add(r);
@@ -2588,7 +3424,10 @@ public class LauncherModel extends BroadcastReceiver
                     public void run() {
                         Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                         if (callbacks != null) {
+                            final long t = System.nanoTime();
                             callbacks.bindFolders(folders);
+                            mBindStats.record(BindStats.PHASE_FOLDERS, folders.size(),
+                                    System.nanoTime() - t);
                         }
                     }
                 };
@@ -2601,26 +3440,84 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
 
-            // Bind the widgets, one at a time
-            N = appWidgets.size();
-            for (int i = 0; i < N; i++) {
-                final LauncherAppWidgetInfo widget = appWidgets.get(i);
-                final Runnable r = new Runnable() {
-                    public void run() {
-                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null) {
-                            callbacks.bindAppWidget(widget);
-                        }
-                    }
-                };
+            // Bind the widgets, as many per frame as fit in the frame budget
+            if (!appWidgets.isEmpty()) {
+                final Runnable r = new BindWidgetsRunnable(oldCallbacks, appWidgets);
                 if (postOnMainThread) {
-                    deferredBindRunnables.add(r);
+                    synchronized (deferredBindRunnables) {
+                        deferredBindRunnables.add(r);
+                    }
                 } else {
                     runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
                 }
             }
         }
 
+        /**
+         * Binds workspace items in chunks, one chunk per frame. Each chunk is sized from how long
+         * the previous ones took, so that it fits in the frame budget.
+         */
+        private class BindItemsRunnable extends DeferredHandler.FrameRunnable {
+            private final Callbacks mOldCallbacks;
+            private final ArrayList<ItemInfo> mItems;
+            private int mNext = 0;
+
+            BindItemsRunnable(Callbacks oldCallbacks, ArrayList<ItemInfo> items) {
+                mOldCallbacks = oldCallbacks;
+                mItems = items;
+            }
+
+            @Override
+            public boolean runStep() {
+                Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+                if (callbacks == null) {
+                    return false;
+                }
+                final int start = mNext;
+                final int end = Math.min(mItems.size(), start + mBindStats.getItemsPerFrame());
+                final long t = System.nanoTime();
+                callbacks.bindItems(mItems, start, end, false);
+                mBindStats.record(BindStats.PHASE_ITEMS, end - start, System.nanoTime() - t);
+                mNext = end;
+                return mNext < mItems.size();
+            }
+        }
+
+        /**
+         * Binds widgets, binding another one in the same frame only while the expected cost still
+         * fits in the frame budget.
+         */
+        private class BindWidgetsRunnable extends DeferredHandler.FrameRunnable {
+            private final Callbacks mOldCallbacks;
+            private final ArrayList<LauncherAppWidgetInfo> mWidgets;
+            private int mNext = 0;
+
+            BindWidgetsRunnable(Callbacks oldCallbacks, ArrayList<LauncherAppWidgetInfo> widgets) {
+                mOldCallbacks = oldCallbacks;
+                mWidgets = widgets;
+            }
+
+            @Override
+            public boolean runStep() {
+                Callbacks callbacks = tryGetCallbacks(mOldCallbacks);
+                if (callbacks == null) {
+                    return false;
+                }
+                final long frameStart = System.nanoTime();
+                final long budget = mBindStats.getFrameBudgetNs();
+                do {
+                    final long t = System.nanoTime();
+                    callbacks.bindAppWidget(mWidgets.get(mNext++));
+                    final long now = System.nanoTime();
+                    mBindStats.record(BindStats.PHASE_WIDGETS, 1, now - t);
+                    if (now - frameStart + mBindStats.getWidgetCostNs() > budget) {
+                        break;
+                    }
+                } while (mNext < mWidgets.size());
+                return mNext < mWidgets.size();
+            }
+        }
+
         /**
          * Binds all loaded data to actual views on the main thread.
          */
@@ -2644,92 +3541,248 @@ public class LauncherModel extends BroadcastReceiver
             HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>();
             HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>();
             ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
+            final BgDataSnapshot snapshot = getBgSnapshot();
+            workspaceItems.addAll(snapshot.workspaceItems);
+            appWidgets.addAll(snapshot.appWidgets);
+            folders.putAll(snapshot.folders);
+            itemsIdMap.putAll(snapshot.itemsIdMap);
+            orderedScreenIds.addAll(snapshot.workspaceScreens);
+
+            final boolean isLoadingSynchronously =
+                    synchronizeBindPage != PagedView.INVALID_RESTORE_PAGE;
+            int currScreen = isLoadingSynchronously ? synchronizeBindPage :
+                oldCallbacks.getCurrentWorkspaceScreen();
+            if (currScreen >= orderedScreenIds.size()) {
+                // There may be no workspace screens (just hotseat items and an empty page).
+                currScreen = PagedView.INVALID_RESTORE_PAGE;
+            }
+            final int currentScreen = currScreen;
+            final long currentScreenId = currentScreen < 0
+                    ? INVALID_SCREEN_ID : orderedScreenIds.get(currentScreen);
+
+            // Load all the items that are on the current page first (and in the process, unbind
+            // all the existing workspace items before we call startBinding() below.
+            unbindWorkspaceItemsOnMainThread();
+
+            // Separate the items that are on the current screen, and all the other remaining items
+            ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
+            ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<ItemInfo>();
+            ArrayList<LauncherAppWidgetInfo> currentAppWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>();
+            ArrayList<LauncherAppWidgetInfo> otherAppWidgets =
+                    new ArrayList<LauncherAppWidgetInfo>();
+            HashMap<Long, FolderInfo> currentFolders = new HashMap<Long, FolderInfo>();
+            HashMap<Long, FolderInfo> otherFolders = new HashMap<Long, FolderInfo>();
+
+            filterCurrentWorkspaceItems(currentScreenId, workspaceItems, currentWorkspaceItems,
+                    otherWorkspaceItems);
+            filterCurrentAppWidgets(currentScreenId, appWidgets, currentAppWidgets,
+                    otherAppWidgets);
+            filterCurrentFolders(currentScreenId, itemsIdMap, folders, currentFolders,
+                    otherFolders);
+            sortWorkspaceItemsSpatially(currentWorkspaceItems);
+            sortWorkspaceItemsSpatially(otherWorkspaceItems);
+
+            // Tell the workspace that we're about to start binding items
+            final int layoutGeneration = sLayoutGeneration;
+            r = new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        mBindStats.reset();
+                        final long t = System.nanoTime();
+                        // The previous items are unbound, the UI shows this layout from now on
+                        sBoundLayoutGeneration = layoutGeneration;
+                        callbacks.startBinding();
+                        mBindStats.record(BindStats.PHASE_START, 1, System.nanoTime() - t);
+                    }
+                }
+            };
+            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+
+            bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+
+            // Load items on the current page
+            bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
+                    currentFolders, null);
+            if (isLoadingSynchronously) {
+                r = new Runnable() {
+                    public void run() {
+                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                        if (callbacks != null && currentScreen != PagedView.INVALID_RESTORE_PAGE) {
+                            callbacks.onPageBoundSynchronously(currentScreen);
+                        }
+                    }
+                };
+                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+            }
+
+            // Load all the remaining pages (if we are loading synchronously, we want to defer this
+            // work until after the first render)
+            synchronized (mDeferredBindRunnables) {
+                mDeferredBindRunnables.clear();
+            }
+            bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
+                    (isLoadingSynchronously ? mDeferredBindRunnables : null));
+
+            // Tell the workspace that we're done binding items
+            r = new Runnable() {
+                public void run() {
+                    Callbacks callbacks = tryGetCallbacks(oldCallbacks);
+                    if (callbacks != null) {
+                        final long t = System.nanoTime();
+                        callbacks.finishBindingItems(isUpgradePath);
+                        mBindStats.record(BindStats.PHASE_FINISH, 1, System.nanoTime() - t);
+                        Launcher.addDumpLog(TAG, mBindStats.toString(), DEBUG_LOADERS);
+                    }
+                    scheduleDbCheckpoint();
+
+                    // If we're profiling, ensure this is the last thing in the queue.
+                    if (DEBUG_LOADERS) {
+                        Log.d(TAG, "bound workspace in "
+                            + (SystemClock.uptimeMillis()-t) + "ms");
+                    }
+
+                    mIsLoadingAndBindingWorkspace = false;
+                }
+            };
+            if (isLoadingSynchronously) {
+                synchronized (mDeferredBindRunnables) {
+                    mDeferredBindRunnables.add(r);
+                }
+            } else {
+                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+            }
+        }
+
+        /**
+         * Loads and binds the hotseat and the current page first, and then every other page in
+         * order, instead of binding the workspace once all of it is loaded. Returns whether this
+         * is an upgrade path.
+         */
+        private boolean loadAndBindWorkspaceIncrementally() {
+            // Log to disk
+            Launcher.addDumpLog(TAG, "11683562 - loadAndBindWorkspaceIncrementally()", true);
+
+            final long t = SystemClock.uptimeMillis();
+            Runnable r;
+
+            // Don't use this variable in any of the callback runnables. Otherwise we hold a
+            // reference to it.
+            final Callbacks oldCallbacks = mCallbacks.get();
+            if (oldCallbacks == null) {
+                // This launcher has exited and nobody bothered to tell us.  Just bail.
+                Log.w(TAG, "LoaderTask running with no launcher");
+                return false;
+            }
+
+            final boolean isSdCardReady = mContext.registerReceiver(null,
+                    new IntentFilter(StartupReceiver.SYSTEM_READY)) != null;
+            prepareWorkspace();
+
+            // The screens have to be bound before any item, so find the used screens without
+            // loading the items on them.
+            final HashMap<Long, ItemInfo[][]> occupied = new HashMap<Long, ItemInfo[][]>();
+            final ArrayList<Long> orderedScreenIds = new ArrayList<Long>();
+            clearSBgDataStructures();
             synchronized (sBgLock) {
-                workspaceItems.addAll(sBgWorkspaceItems);
-                appWidgets.addAll(sBgAppWidgets);
-                folders.putAll(sBgFolders);
-                itemsIdMap.putAll(sBgItemsIdMap);
+                loadWorkspaceScreens(getScreensWithItems());
                 orderedScreenIds.addAll(sBgWorkspaceScreens);
             }
 
-            final boolean isLoadingSynchronously =
-                    synchronizeBindPage != PagedView.INVALID_RESTORE_PAGE;
-            int currScreen = isLoadingSynchronously ? synchronizeBindPage :
-                oldCallbacks.getCurrentWorkspaceScreen();
+            int currScreen = oldCallbacks.getCurrentWorkspaceScreen();
             if (currScreen >= orderedScreenIds.size()) {
                 // There may be no workspace screens (just hotseat items and an empty page).
                 currScreen = PagedView.INVALID_RESTORE_PAGE;
             }
-            final int currentScreen = currScreen;
-            final long currentScreenId = currentScreen < 0
-                    ? INVALID_SCREEN_ID : orderedScreenIds.get(currentScreen);
+            final long currentScreenId = currScreen < 0
+                    ? INVALID_SCREEN_ID : orderedScreenIds.get(currScreen);
 
-            // Load all the items that are on the current page first (and in the process, unbind
-            // all the existing workspace items before we call startBinding() below.
             unbindWorkspaceItemsOnMainThread();
 
-            // Separate the items that are on the current screen, and all the other remaining items
-            ArrayList<ItemInfo> currentWorkspaceItems = new ArrayList<ItemInfo>();
-            ArrayList<ItemInfo> otherWorkspaceItems = new ArrayList<ItemInfo>();
-            ArrayList<LauncherAppWidgetInfo> currentAppWidgets =
-                    new ArrayList<LauncherAppWidgetInfo>();
-            ArrayList<LauncherAppWidgetInfo> otherAppWidgets =
-                    new ArrayList<LauncherAppWidgetInfo>();
-            HashMap<Long, FolderInfo> currentFolders = new HashMap<Long, FolderInfo>();
-            HashMap<Long, FolderInfo> otherFolders = new HashMap<Long, FolderInfo>();
-
-            filterCurrentWorkspaceItems(currentScreenId, workspaceItems, currentWorkspaceItems,
-                    otherWorkspaceItems);
-            filterCurrentAppWidgets(currentScreenId, appWidgets, currentAppWidgets,
-                    otherAppWidgets);
-            filterCurrentFolders(currentScreenId, itemsIdMap, folders, currentFolders,
-                    otherFolders);
-            sortWorkspaceItemsSpatially(currentWorkspaceItems);
-            sortWorkspaceItemsSpatially(otherWorkspaceItems);
-
             // Tell the workspace that we're about to start binding items
+            final int layoutGeneration = sLayoutGeneration;
             r = new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
+                        mBindStats.reset();
+                        final long t = System.nanoTime();
+                        // The previous items are unbound, the UI shows this layout from now on
+                        sBoundLayoutGeneration = layoutGeneration;
                         callbacks.startBinding();
+                        mBindStats.record(BindStats.PHASE_START, 1, System.nanoTime() - t);
                     }
                 }
             };
             runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
-
             bindWorkspaceScreens(oldCallbacks, orderedScreenIds);
+            synchronized (mDeferredBindRunnables) {
+                mDeferredBindRunnables.clear();
+            }
 
-            // Load items on the current page
-            bindWorkspaceItems(oldCallbacks, currentWorkspaceItems, currentAppWidgets,
-                    currentFolders, null);
-            if (isLoadingSynchronously) {
-                r = new Runnable() {
-                    public void run() {
-                        Callbacks callbacks = tryGetCallbacks(oldCallbacks);
-                        if (callbacks != null && currentScreen != PagedView.INVALID_RESTORE_PAGE) {
-                            callbacks.onPageBoundSynchronously(currentScreen);
-                        }
-                    }
-                };
-                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+            // Load and bind the hotseat and the current page
+            final HashSet<Long> boundIds = new HashSet<Long>();
+            ArrayList<Long> screenIds = new ArrayList<Long>();
+            if (currentScreenId != INVALID_SCREEN_ID) {
+                screenIds.add(currentScreenId);
+            }
+            if (!loadWorkspaceItems(getItemsOnScreensSelection(true, screenIds), null,
+                    occupied, isSdCardReady)) {
+                return false;
+            }
+            bindNewWorkspaceItems(oldCallbacks, boundIds);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "loaded current page in " + (SystemClock.uptimeMillis() - t) + "ms");
             }
 
-            // Load all the remaining pages (if we are loading synchronously, we want to defer this
-            // work until after the first render)
-            synchronized (mDeferredBindRunnables) {
-                mDeferredBindRunnables.clear();
+            // Load and bind all the other pages, one at a time
+            for (long screenId : orderedScreenIds) {
+                if (screenId == currentScreenId) {
+                    continue;
+                }
+                screenIds.clear();
+                screenIds.add(screenId);
+                if (!loadWorkspaceItems(getItemsOnScreensSelection(false, screenIds), null,
+                        occupied, isSdCardReady)) {
+                    return false;
+                }
+                bindNewWorkspaceItems(oldCallbacks, boundIds);
+            }
+
+            // Load anything which is not on a known page, so that it goes through the same checks
+            // as it would in loadWorkspace().
+            if (!loadWorkspaceItems(LauncherSettings.Favorites._ID + " NOT IN (SELECT "
+                    + LauncherSettings.Favorites._ID + " FROM "
+                    + LauncherProvider.TABLE_FAVORITES + " WHERE "
+                    + getItemsOnScreensSelection(true, orderedScreenIds) + ")", null,
+                    occupied, isSdCardReady)) {
+                return false;
+            }
+            finishWorkspaceVerification();
+            bindNewWorkspaceItems(oldCallbacks, boundIds);
+            final boolean removedEmptyScreens = removeEmptyWorkspaceScreens();
+
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "loaded workspace in " + (SystemClock.uptimeMillis() - t) + "ms");
+                dumpOccupied(occupied);
             }
-            bindWorkspaceItems(oldCallbacks, otherWorkspaceItems, otherAppWidgets, otherFolders,
-                    (isLoadingSynchronously ? mDeferredBindRunnables : null));
 
             // Tell the workspace that we're done binding items
             r = new Runnable() {
                 public void run() {
                     Callbacks callbacks = tryGetCallbacks(oldCallbacks);
                     if (callbacks != null) {
-                        callbacks.finishBindingItems(isUpgradePath);
+                        final long t = System.nanoTime();
+                        callbacks.finishBindingItems(false);
+                        mBindStats.record(BindStats.PHASE_FINISH, 1, System.nanoTime() - t);
+                        Launcher.addDumpLog(TAG, mBindStats.toString(), DEBUG_LOADERS);
+                        if (removedEmptyScreens) {
+                            // The workspace only strips screens once it is done loading
+                            callbacks.stripEmptyScreens();
+                        }
                     }
+                    scheduleDbCheckpoint();
 
                     // If we're profiling, ensure this is the last thing in the queue.
                     if (DEBUG_LOADERS) {
@@ -2740,13 +3793,116 @@ public class LauncherModel extends BroadcastReceiver
                     mIsLoadingAndBindingWorkspace = false;
                 }
             };
-            if (isLoadingSynchronously) {
-                synchronized (mDeferredBindRunnables) {
-                    mDeferredBindRunnables.add(r);
+            runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+            return false;
+        }
+
+        /**
+         * Removes the screens which are left without any loaded item, as loadWorkspace() does.
+         * The screens are bound from the rows of the db before their items are checked, so a
+         * screen whose items were all dropped by the loader only turns out empty at the end.
+         * Returns whether any screen was removed.
+         */
+        private boolean removeEmptyWorkspaceScreens() {
+            synchronized (sBgLock) {
+                HashSet<Long> usedScreens = new HashSet<Long>();
+                for (ItemInfo item: sBgItemIndex.getByContainer(
+                        LauncherSettings.Favorites.CONTAINER_DESKTOP)) {
+                    usedScreens.add(item.screenId);
                 }
-            } else {
-                runOnMainThread(r, MAIN_THREAD_BINDING_RUNNABLE);
+                ArrayList<Long> unusedScreens = new ArrayList<Long>(sBgWorkspaceScreens);
+                unusedScreens.removeAll(usedScreens);
+                if (unusedScreens.isEmpty()) {
+                    return false;
+                }
+                // Log to disk
+                Launcher.addDumpLog(TAG, "11683562 -   unusedScreens (to be removed): " +
+                        TextUtils.join(", ", unusedScreens), true);
+                sBgWorkspaceScreens.removeAll(unusedScreens);
+                updateWorkspaceScreenOrder(mContext, sBgWorkspaceScreens);
+                publishBgSnapshotLocked();
+                return true;
+            }
+        }
+
+        /**
+         * Returns the ids of the screens which have at least one row on them. Some of those rows
+         * may still be dropped by the loader, see {@link #removeEmptyWorkspaceScreens}.
+         */
+        private HashSet<Long> getScreensWithItems() {
+            HashSet<Long> screens = new HashSet<Long>();
+            final Cursor c = mContext.getContentResolver().query(
+                    LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
+                    new String[] { LauncherSettings.Favorites.SCREEN },
+                    LauncherSettings.Favorites.CONTAINER + " = "
+                            + LauncherSettings.Favorites.CONTAINER_DESKTOP, null, null);
+            if (c != null) {
+                try {
+                    while (c.moveToNext()) {
+                        screens.add(c.getLong(0));
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            return screens;
+        }
+
+        /**
+         * Returns a selection for the items which are on the hotseat (if {@param includeHotseat})
+         * or on one of {@param screenIds}, along with the contents of the folders among them.
+         */
+        private String getItemsOnScreensSelection(boolean includeHotseat,
+                ArrayList<Long> screenIds) {
+            StringBuilder where = new StringBuilder();
+            if (includeHotseat) {
+                where.append(LauncherSettings.Favorites.CONTAINER).append(" = ")
+                        .append(LauncherSettings.Favorites.CONTAINER_HOTSEAT);
+            }
+            if (!screenIds.isEmpty()) {
+                if (where.length() > 0) {
+                    where.append(" OR ");
+                }
+                where.append("(").append(LauncherSettings.Favorites.CONTAINER).append(" = ")
+                        .append(LauncherSettings.Favorites.CONTAINER_DESKTOP).append(" AND ")
+                        .append(LauncherSettings.Favorites.SCREEN).append(" IN (")
+                        .append(TextUtils.join(", ", screenIds)).append("))");
+            }
+            if (where.length() == 0) {
+                return "0";
+            }
+            return where + " OR " + LauncherSettings.Favorites.CONTAINER + " IN (SELECT "
+                    + LauncherSettings.Favorites._ID + " FROM " + LauncherProvider.TABLE_FAVORITES
+                    + " WHERE " + where + ")";
+        }
+
+        /**
+         * Binds the workspace items and widgets which have been loaded since the last call, and
+         * adds their ids to {@param boundIds}.
+         */
+        private void bindNewWorkspaceItems(Callbacks oldCallbacks, HashSet<Long> boundIds) {
+            ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>();
+            ArrayList<LauncherAppWidgetInfo> appWidgets = new ArrayList<LauncherAppWidgetInfo>();
+            HashMap<Long, FolderInfo> folders;
+            synchronized (sBgLock) {
+                for (ItemInfo info : sBgWorkspaceItems) {
+                    if (boundIds.add(info.id)) {
+                        workspaceItems.add(info);
+                    }
+                }
+                for (LauncherAppWidgetInfo widget : sBgAppWidgets) {
+                    if (boundIds.add(widget.id)) {
+                        appWidgets.add(widget);
+                    }
+                }
+                // Launcher replaces its set of folders on every bind, so pass all of them.
+                folders = new HashMap<Long, FolderInfo>(sBgFolders);
+            }
+            if (workspaceItems.isEmpty() && appWidgets.isEmpty()) {
+                return;
             }
+            sortWorkspaceItemsSpatially(workspaceItems);
+            bindWorkspaceItems(oldCallbacks, workspaceItems, appWidgets, folders, null);
         }
 
         private void loadAndBindAllApps() {
@@ -2814,38 +3970,51 @@ public class LauncherModel extends BroadcastReceiver
 
             final List<UserHandleCompat> profiles = mUserManager.getUserProfiles();
 
+            // Query the apps of every profile, and build their AppInfos, in parallel
+            final ArrayList<Future<ProfileApps>> pending = new ArrayList<Future<ProfileApps>>();
+            for (final UserHandleCompat user : profiles) {
+                pending.add(sLoaderPool.submit(new Callable<ProfileApps>() {
+                    @Override
+                    public ProfileApps call() {
+                        return loadProfileApps(user);
+                    }
+                }));
+            }
+            final ArrayList<ProfileApps> results = new ArrayList<ProfileApps>();
+            for (int i = 0; i < profiles.size(); i++) {
+                ProfileApps result = null;
+                try {
+                    result = pending.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to load apps in parallel for user " + profiles.get(i),
+                            e.getCause());
+                }
+                if (result == null) {
+                    // Load this profile on the loader thread instead.
+                    result = loadProfileApps(profiles.get(i));
+                }
+                results.add(result);
+            }
+
             // Clear the list of apps
             mBgAllAppsList.clear();
             SharedPreferences prefs = mContext.getSharedPreferences(
                     LauncherAppState.getSharedPreferencesKey(), Context.MODE_PRIVATE);
-            for (UserHandleCompat user : profiles) {
-                // Query for the set of apps
-                final long qiaTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                List<LauncherActivityInfoCompat> apps = mLauncherApps.getActivityList(null, user);
-                if (DEBUG_LOADERS) {
-                    Log.d(TAG, "getActivityList took "
-                            + (SystemClock.uptimeMillis()-qiaTime) + "ms for user " + user);
-                    Log.d(TAG, "getActivityList got " + apps.size() + " apps for user " + user);
-                }
+            // Merge the results in profile order, so that the list does not depend on which
+            // profile finished loading first.
+            for (ProfileApps result : results) {
+                final UserHandleCompat user = result.user;
+                final List<LauncherActivityInfoCompat> apps = result.apps;
                 // Fail if we don't have any apps
                 // TODO: Fix this. Only fail for the current user.
                 if (apps == null || apps.isEmpty()) {
                     return;
                 }
-                // Sort the applications by name
-                final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
-                Collections.sort(apps,
-                        new LauncherModel.ShortcutNameComparator(mLabelCache));
-                if (DEBUG_LOADERS) {
-                    Log.d(TAG, "sort took "
-                            + (SystemClock.uptimeMillis()-sortTime) + "ms");
-                }
-
-                // Create the ApplicationInfos
-                for (int i = 0; i < apps.size(); i++) {
-                    LauncherActivityInfoCompat app = apps.get(i);
-                    // This builds the icon bitmaps.
-                    mBgAllAppsList.add(new AppInfo(mContext, app, user, mIconCache, mLabelCache));
+                mLabelCache.putAll(result.labelCache);
+                for (AppInfo info : result.appInfos) {
+                    mBgAllAppsList.add(info);
                 }
 
                 if (ADD_MANAGED_PROFILE_SHORTCUTS && !user.equals(UserHandleCompat.myUserHandle())) {
@@ -2894,21 +4063,106 @@ public class LauncherModel extends BroadcastReceiver
             }
         }
 
-        public void dumpState() {
-            synchronized (sBgLock) {
-                Log.d(TAG, "mLoaderTask.mContext=" + mContext);
-                Log.d(TAG, "mLoaderTask.mIsLaunching=" + mIsLaunching);
-                Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
-                Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
-                Log.d(TAG, "mItems size=" + sBgWorkspaceItems.size());
+        /**
+         * Queries the apps of {@param user}, sorted by name, and builds their AppInfos. This does
+         * not touch the model, so it can run on {@link #sLoaderPool}.
+         */
+        private ProfileApps loadProfileApps(UserHandleCompat user) {
+            final ProfileApps result = new ProfileApps(user);
+
+            // Query for the set of apps
+            final long qiaTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            result.apps = mLauncherApps.getActivityList(null, user);
+            if (result.apps == null || result.apps.isEmpty()) {
+                return result;
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "getActivityList took "
+                        + (SystemClock.uptimeMillis()-qiaTime) + "ms for user " + user);
+                Log.d(TAG, "getActivityList got " + result.apps.size() + " apps for user " + user);
+            }
+
+            // Sort the applications by name
+            final long sortTime = DEBUG_LOADERS ? SystemClock.uptimeMillis() : 0;
+            final ShortcutNameComparator comparator =
+                    new ShortcutNameComparator(result.labelCache);
+            comparator.prepare(result.apps);
+            Collections.sort(result.apps, comparator);
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "sort took "
+                        + (SystemClock.uptimeMillis()-sortTime) + "ms");
+            }
+
+            // Create the ApplicationInfos
+            for (int i = 0; i < result.apps.size(); i++) {
+                LauncherActivityInfoCompat app = result.apps.get(i);
+                // The icons which aren't cached yet are loaded when all apps shows them.
+                result.appInfos.add(new AppInfo(mContext, app, user, mIconCache,
+                        result.labelCache, true));
             }
+            return result;
+        }
+
+        public void dumpState() {
+            Log.d(TAG, "mLoaderTask.mContext=" + mContext);
+            Log.d(TAG, "mLoaderTask.mIsLaunching=" + mIsLaunching);
+            Log.d(TAG, "mLoaderTask.mStopped=" + mStopped);
+            Log.d(TAG, "mLoaderTask.mLoadAndBindStepFinished=" + mLoadAndBindStepFinished);
+            Log.d(TAG, "mItems size=" + sBgSnapshot.workspaceItems.size());
         }
     }
 
     void enqueuePackageUpdated(PackageUpdatedTask task) {
-        sWorker.post(task);
+        synchronized (mPendingPackageUpdates) {
+            if (mPendingPackageUpdates.isEmpty()) {
+                sWorkerScheduler.postDelayed(WorkerScheduler.LANE_MAINTENANCE,
+                        mProcessPackageUpdates, PACKAGE_UPDATE_BATCH_DELAY);
+            }
+            mPendingPackageUpdates.add(task);
+        }
     }
 
+    /**
+     * Processes all the package changes received since the last batch. Consecutive changes with
+     * the same op and user are merged into a single task, and the widget and shortcut list is only
+     * rebound once for the whole batch.
+     */
+    private final Runnable mProcessPackageUpdates = new Runnable() {
+        public void run() {
+            ArrayList<PackageUpdatedTask> tasks;
+            synchronized (mPendingPackageUpdates) {
+                tasks = new ArrayList<PackageUpdatedTask>(mPendingPackageUpdates);
+                mPendingPackageUpdates.clear();
+            }
+
+            ArrayList<PackageUpdatedTask> merged = new ArrayList<PackageUpdatedTask>();
+            PackageUpdatedTask last = null;
+            for (PackageUpdatedTask task : tasks) {
+                if (last != null && last.mOp == task.mOp && last.mUser.equals(task.mUser)) {
+                    LinkedHashSet<String> packages =
+                            new LinkedHashSet<String>(Arrays.asList(last.mPackages));
+                    packages.addAll(Arrays.asList(task.mPackages));
+                    last.mPackages = packages.toArray(new String[packages.size()]);
+                } else {
+                    last = new PackageUpdatedTask(task.mOp, task.mPackages, task.mUser);
+                    last.mBindPackagesUpdated = false;
+                    merged.add(last);
+                }
+            }
+            if (merged.isEmpty()) {
+                return;
+            }
+            if (DEBUG_LOADERS) {
+                Log.d(TAG, "processing " + tasks.size() + " package changes as "
+                        + merged.size() + " updates");
+            }
+            merged.get(merged.size() - 1).mBindPackagesUpdated = true;
+            for (PackageUpdatedTask task : merged) {
+                task.run();
+            }
+        }
+    };
+
     private class AppsAvailabilityCheck extends BroadcastReceiver {
 
         @Override
@@ -2955,6 +4209,9 @@ public class LauncherModel extends BroadcastReceiver
         String[] mPackages;
         UserHandleCompat mUser;
 
+        // Whether to rebind the widget and shortcut list once this update is done
+        boolean mBindPackagesUpdated = true;
+
         public static final int OP_NONE = 0;
         public static final int OP_ADD = 1;
         public static final int OP_UPDATE = 2;
@@ -2973,11 +4230,16 @@ public class LauncherModel extends BroadcastReceiver
 
             final String[] packages = mPackages;
             final int N = packages.length;
+            // Labels may have changed with the package, or the package may be gone.
+            for (int i=0; i<N; i++) {
+                sAppLabelCache.removePackage(packages[i], mUser);
+                sWidgetLabelCache.removePackage(packages[i], mUser);
+            }
             switch (mOp) {
                 case OP_ADD:
+                    mIconCache.remove(packages, mUser);
                     for (int i=0; i<N; i++) {
                         if (DEBUG_LOADERS) Log.d(TAG, "mAllAppsList.addPackage " + packages[i]);
-                        mIconCache.remove(packages[i], mUser);
                         mBgAllAppsList.addPackage(context, packages[i], mUser);
                     }
 
@@ -3103,7 +4365,7 @@ public class LauncherModel extends BroadcastReceiver
 
                 HashSet<String> packageSet = new HashSet<String>(Arrays.asList(packages));
                 synchronized (sBgLock) {
-                    for (ItemInfo info : sBgItemsIdMap.values()) {
+                    for (ItemInfo info : getItemsForPackagesLocked(packageSet, mUser)) {
                         if (info instanceof ShortcutInfo && mUser.equals(info.user)) {
                             ShortcutInfo si = (ShortcutInfo) info;
                             boolean infoUpdated = false;
@@ -3268,6 +4530,10 @@ public class LauncherModel extends BroadcastReceiver
                 });
             }
 
+            if (!mBindPackagesUpdated) {
+                return;
+            }
+
             final ArrayList<Object> widgetsAndShortcuts =
                     getSortedWidgetsAndShortcuts(context);
             mHandler.post(new Runnable() {
@@ -3292,6 +4558,39 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Returns the shortcuts and widgets of the given user which target one of the given packages,
+     * or use an icon resource from one of them. Must be called with sBgLock held.
+     */
+    private static ArrayList<ItemInfo> getItemsForPackagesLocked(HashSet<String> packages,
+            UserHandleCompat user) {
+        HashSet<ItemInfo> candidates = new HashSet<ItemInfo>();
+        for (String pkg : packages) {
+            candidates.addAll(sBgItemIndex.getByPackage(pkg, user));
+        }
+        ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+        for (ItemInfo info : candidates) {
+            if (!user.equals(info.user)) {
+                continue;
+            }
+            if (info instanceof ShortcutInfo) {
+                ShortcutInfo si = (ShortcutInfo) info;
+                ComponentName cn = si.getTargetComponent();
+                if ((cn != null && packages.contains(cn.getPackageName()))
+                        || (si.iconResource != null
+                                && packages.contains(si.iconResource.packageName))) {
+                    items.add(si);
+                }
+            } else if (info instanceof LauncherAppWidgetInfo) {
+                ComponentName provider = ((LauncherAppWidgetInfo) info).providerName;
+                if (provider != null && packages.contains(provider.getPackageName())) {
+                    items.add(info);
+                }
+            }
+        }
+        return items;
+    }
+
     // Returns a list of ResolveInfos/AppWindowInfos in sorted order
     public static ArrayList<Object> getSortedWidgetsAndShortcuts(Context context) {
         PackageManager packageManager = context.getPackageManager();
@@ -3300,7 +4599,9 @@ public class LauncherModel extends BroadcastReceiver
 
         Intent shortcutsIntent = new Intent(Intent.ACTION_CREATE_SHORTCUT);
         widgetsAndShortcuts.addAll(packageManager.queryIntentActivities(shortcutsIntent, 0));
-        Collections.sort(widgetsAndShortcuts, new WidgetAndShortcutNameComparator(context));
+        WidgetAndShortcutNameComparator comparator = new WidgetAndShortcutNameComparator(context);
+        comparator.prepare(widgetsAndShortcuts);
+        Collections.sort(widgetsAndShortcuts, comparator);
         return widgetsAndShortcuts;
     }
 
@@ -3387,16 +4688,18 @@ public class LauncherModel extends BroadcastReceiver
      */
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent,
             UserHandleCompat user, Context context) {
-        return getShortcutInfo(manager, intent, user, context, null, -1, -1, null, false);
+        return getShortcutInfo(manager, intent, user, context, null, ItemInfo.NO_ID, -1, null,
+                false);
     }
 
     /**
      * Make an ShortcutInfo object for a shortcut that is an application.
      *
-     * If c is not null, then it will be used to fill in missing data like the title and icon.
+     * If c is not null, then it will be used to fill in a missing title. If itemId is not
+     * {@link ItemInfo#NO_ID}, the icon saved for that item is used if the app has no icon.
      */
     public ShortcutInfo getShortcutInfo(PackageManager manager, Intent intent,
-            UserHandleCompat user, Context context, Cursor c, int iconIndex, int titleIndex,
+            UserHandleCompat user, Context context, Cursor c, long itemId, int titleIndex,
             HashMap<Object, CharSequence> labelCache, boolean allowMissingTarget) {
         if (user == null) {
             Log.d(TAG, "Null user found in getShortcutInfo");
@@ -3428,8 +4731,8 @@ public class LauncherModel extends BroadcastReceiver
 
         // the db
         if (icon == null) {
-            if (c != null) {
-                icon = getIconFromCursor(c, iconIndex, context);
+            if (itemId != ItemInfo.NO_ID) {
+                icon = getIconFromBlob(loadIconBlob(context, itemId), context);
             }
         }
         // the fallback icon
@@ -3509,15 +4812,20 @@ public class LauncherModel extends BroadcastReceiver
                 }
             }
         };
-        return filterItemInfos(sBgItemsIdMap.values(), filter);
+        synchronized (sBgLock) {
+            return filterItemInfos(sBgItemIndex.getByComponent(cname, user), filter);
+        }
     }
 
     /**
      * Make an ShortcutInfo object for a shortcut that isn't an application.
+     *
+     * If its icon has to be read from the database, the shortcut gets the fallback icon and is
+     * added to {@param savedIconItems}, to be given the saved one by {@link #loadSavedIcons}.
      */
-    private ShortcutInfo getShortcutInfo(Cursor c, Context context,
-            int iconTypeIndex, int iconPackageIndex, int iconResourceIndex, int iconIndex,
-            int titleIndex) {
+    private ShortcutInfo getShortcutInfo(Cursor c, Context context, int iconTypeIndex,
+            int iconPackageIndex, int iconResourceIndex, int titleIndex,
+            ArrayList<ShortcutInfo> savedIconItems) {
 
         Bitmap icon = null;
         final ShortcutInfo info = new ShortcutInfo();
@@ -3537,25 +4845,19 @@ public class LauncherModel extends BroadcastReceiver
             info.customIcon = false;
             // the resource
             icon = Utilities.createIconBitmap(packageName, resourceName, mIconCache, context);
-            // the db
-            if (icon == null) {
-                icon = getIconFromCursor(c, iconIndex, context);
-            }
-            // the fallback icon
+            // the fallback icon, until the db is read
             if (icon == null) {
                 icon = mIconCache.getDefaultIcon(info.user);
                 info.usingFallbackIcon = true;
+                savedIconItems.add(info);
             }
             break;
         case LauncherSettings.Favorites.ICON_TYPE_BITMAP:
-            icon = getIconFromCursor(c, iconIndex, context);
-            if (icon == null) {
-                icon = mIconCache.getDefaultIcon(info.user);
-                info.customIcon = false;
-                info.usingFallbackIcon = true;
-            } else {
-                info.customIcon = true;
-            }
+            // the fallback icon, until the db is read
+            icon = mIconCache.getDefaultIcon(info.user);
+            info.customIcon = true;
+            info.usingFallbackIcon = true;
+            savedIconItems.add(info);
             break;
         default:
             icon = mIconCache.getDefaultIcon(info.user);
@@ -3567,14 +4869,35 @@ public class LauncherModel extends BroadcastReceiver
         return info;
     }
 
-    Bitmap getIconFromCursor(Cursor c, int iconIndex, Context context) {
-        @SuppressWarnings("all") // suppress dead code warning
-        final boolean debug = false;
-        if (debug) {
-            Log.d(TAG, "getIconFromCursor app="
-                    + c.getString(c.getColumnIndexOrThrow(LauncherSettings.Favorites.TITLE)));
+    /**
+     * Gives the shortcuts queued by {@link #getShortcutInfo(Cursor, Context, int, int, int, int,
+     * ArrayList)} their icon saved in the database, read in one query. The shortcuts which have
+     * none keep the fallback icon.
+     */
+    private void loadSavedIcons(Context context, ArrayList<ShortcutInfo> savedIconItems) {
+        if (savedIconItems.isEmpty()) {
+            return;
+        }
+        final ArrayList<Long> ids = new ArrayList<Long>(savedIconItems.size());
+        for (ShortcutInfo info : savedIconItems) {
+            ids.add(info.id);
+        }
+        final HashMap<Long, byte[]> savedIcons = loadIconBlobs(context, ids);
+        for (ShortcutInfo info : savedIconItems) {
+            Bitmap icon = getIconFromBlob(savedIcons.get(info.id), context);
+            if (icon != null) {
+                info.setIcon(icon);
+                info.usingFallbackIcon = false;
+            } else {
+                info.customIcon = false;
+            }
+        }
+    }
+
+    Bitmap getIconFromBlob(byte[] data, Context context) {
+        if (data == null) {
+            return null;
         }
-        byte[] data = c.getBlob(iconIndex);
         try {
             return Utilities.createIconBitmap(
                     BitmapFactory.decodeByteArray(data, 0, data.length), context);
@@ -3583,6 +4906,54 @@ public class LauncherModel extends BroadcastReceiver
         }
     }
 
+    /**
+     * Loads the icon saved in the database for the item with {@param id}, or returns null if it
+     * has none. Icons are stored apart from the rest of the item, and are only read for the items
+     * which need them.
+     */
+    static byte[] loadIconBlob(Context context, long id) {
+        return loadIconBlobs(context, Collections.singletonList(id)).get(id);
+    }
+
+    /** Loads the icons saved in the database for the items with {@param ids}. */
+    static HashMap<Long, byte[]> loadIconBlobs(Context context, Collection<Long> ids) {
+        final HashMap<Long, byte[]> icons = new HashMap<Long, byte[]>();
+        if (ids.isEmpty()) {
+            return icons;
+        }
+        sDbWriteQueue.flush();
+
+        final StringBuilder selection = new StringBuilder(LauncherSettings.Favorites._ID)
+                .append(" IN (");
+        boolean first = true;
+        for (Long id : ids) {
+            if (!first) {
+                selection.append(',');
+            }
+            selection.append(id);
+            first = false;
+        }
+        selection.append(')');
+
+        final Cursor c = context.getContentResolver().query(
+                LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION,
+                new String[] { LauncherSettings.Favorites._ID, LauncherSettings.Favorites.ICON },
+                selection.toString(), null, null);
+        if (c == null) {
+            return icons;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (!c.isNull(1)) {
+                    icons.put(c.getLong(0), c.getBlob(1));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return icons;
+    }
+
     /**
      * Attempts to find an AppWidgetProviderInfo that matches the given component.
      */
@@ -3646,8 +5017,7 @@ public class LauncherModel extends BroadcastReceiver
         return info;
     }
 
-    boolean queueIconToBeChecked(HashMap<Object, byte[]> cache, ShortcutInfo info, Cursor c,
-            int iconIndex) {
+    boolean queueIconToBeChecked(HashSet<ShortcutInfo> cache, ShortcutInfo info) {
         // If apps can't be on SD, don't even bother.
         if (!mAppsCanBeOnRemoveableStorage) {
             return false;
@@ -3659,7 +5029,7 @@ public class LauncherModel extends BroadcastReceiver
         // package manager can't find an icon (for example because
         // the app is on SD) then we can use that instead.
         if (!info.customIcon && !info.usingFallbackIcon) {
-            cache.put(info, c.getBlob(iconIndex));
+            cache.add(info);
             return true;
         }
         return false;
@@ -3701,12 +5071,12 @@ public class LauncherModel extends BroadcastReceiver
     }
 
     public static final Comparator<AppInfo> getAppNameComparator() {
-        final Collator collator = Collator.getInstance();
+        final HashMap<Pair<ComponentName, UserHandleCompat>, CollationKey> keys =
+                new HashMap<Pair<ComponentName, UserHandleCompat>, CollationKey>();
         return new Comparator<AppInfo>() {
             public final int compare(AppInfo a, AppInfo b) {
                 if (a.user.equals(b.user)) {
-                    int result = collator.compare(a.title.toString().trim(),
-                            b.title.toString().trim());
+                    int result = getKey(a).compareTo(getKey(b));
                     if (result == 0) {
                         result = a.componentName.compareTo(b.componentName);
                     }
@@ -3717,6 +5087,18 @@ public class LauncherModel extends BroadcastReceiver
                     return a.user.toString().compareTo(b.user.toString());
                 }
             }
+
+            private CollationKey getKey(AppInfo info) {
+                Pair<ComponentName, UserHandleCompat> cacheKey =
+                        Pair.create(info.componentName, info.user);
+                CollationKey key = keys.get(cacheKey);
+                if (key == null) {
+                    key = sAppLabelCache.getCollationKey(info.componentName, info.user,
+                            info.title.toString().trim());
+                    keys.put(cacheKey, key);
+                }
+                return key;
+            }
         };
     }
     public static final Comparator<AppInfo> APP_INSTALL_TIME_COMPARATOR
@@ -3734,69 +5116,122 @@ public class LauncherModel extends BroadcastReceiver
             return new ComponentName(info.serviceInfo.packageName, info.serviceInfo.name);
         }
     }
+
+    /** The apps of one user profile, as loaded by {@link LoaderTask#loadProfileApps}. */
+    private static class ProfileApps {
+        final UserHandleCompat user;
+        final HashMap<Object, CharSequence> labelCache = new HashMap<Object, CharSequence>();
+        final ArrayList<AppInfo> appInfos = new ArrayList<AppInfo>();
+        List<LauncherActivityInfoCompat> apps;
+
+        ProfileApps(UserHandleCompat user) {
+            this.user = user;
+        }
+    }
+
+    /**
+     * Package manager and app widget state of a single workspace item, resolved by
+     * {@link LoaderTask#resolveWorkspaceItems} off the loader thread.
+     */
+    private static class ResolvedItem {
+        boolean resolved;
+
+        // Applications and shortcuts
+        Intent intent;
+        boolean validPkg;
+        boolean validComponent;
+        ShortcutInfo info;
+
+        // Widgets
+        AppWidgetProviderInfo provider;
+        int[] minSpan;
+    }
+
     public static class ShortcutNameComparator implements Comparator<LauncherActivityInfoCompat> {
-        private Collator mCollator;
         private HashMap<Object, CharSequence> mLabelCache;
+        private final HashMap<Object, CollationKey> mKeys = new HashMap<Object, CollationKey>();
         ShortcutNameComparator(PackageManager pm) {
             mLabelCache = new HashMap<Object, CharSequence>();
-            mCollator = Collator.getInstance();
         }
         ShortcutNameComparator(HashMap<Object, CharSequence> labelCache) {
             mLabelCache = labelCache;
-            mCollator = Collator.getInstance();
         }
-        public final int compare(LauncherActivityInfoCompat a, LauncherActivityInfoCompat b) {
-            String labelA, labelB;
-            ComponentName keyA = a.getComponentName();
-            ComponentName keyB = b.getComponentName();
-            if (mLabelCache.containsKey(keyA)) {
-                labelA = mLabelCache.get(keyA).toString();
-            } else {
-                labelA = a.getLabel().toString().trim();
 
-                mLabelCache.put(keyA, labelA);
+        /** Loads the labels and collation keys of {@param apps} ahead of sorting them. */
+        void prepare(List<LauncherActivityInfoCompat> apps) {
+            for (LauncherActivityInfoCompat app : apps) {
+                getKey(app);
             }
-            if (mLabelCache.containsKey(keyB)) {
-                labelB = mLabelCache.get(keyB).toString();
-            } else {
-                labelB = b.getLabel().toString().trim();
+        }
 
-                mLabelCache.put(keyB, labelB);
+        private CollationKey getKey(LauncherActivityInfoCompat info) {
+            ComponentName cn = info.getComponentName();
+            CollationKey key = mKeys.get(cn);
+            if (key == null) {
+                String label;
+                if (mLabelCache.containsKey(cn)) {
+                    label = mLabelCache.get(cn).toString();
+                } else {
+                    label = sAppLabelCache.getLabel(cn, info.getUser());
+                    if (label == null) {
+                        label = info.getLabel().toString().trim();
+                    }
+                    mLabelCache.put(cn, label);
+                }
+                key = sAppLabelCache.getCollationKey(cn, info.getUser(), label);
+                mKeys.put(cn, key);
             }
-            return mCollator.compare(labelA, labelB);
+            return key;
+        }
+
+        public final int compare(LauncherActivityInfoCompat a, LauncherActivityInfoCompat b) {
+            return getKey(a).compareTo(getKey(b));
         }
     };
     public static class WidgetAndShortcutNameComparator implements Comparator<Object> {
         private final AppWidgetManagerCompat mManager;
         private final PackageManager mPackageManager;
-        private final HashMap<Object, String> mLabelCache;
-        private final Collator mCollator;
+        private final HashMap<Object, CollationKey> mKeys;
 
         WidgetAndShortcutNameComparator(Context context) {
             mManager = AppWidgetManagerCompat.getInstance(context);
             mPackageManager = context.getPackageManager();
-            mLabelCache = new HashMap<Object, String>();
-            mCollator = Collator.getInstance();
+            mKeys = new HashMap<Object, CollationKey>();
         }
-        public final int compare(Object a, Object b) {
-            String labelA, labelB;
-            if (mLabelCache.containsKey(a)) {
-                labelA = mLabelCache.get(a);
-            } else {
-                labelA = (a instanceof AppWidgetProviderInfo)
-                        ? mManager.loadLabel((AppWidgetProviderInfo) a)
-                        : ((ResolveInfo) a).loadLabel(mPackageManager).toString().trim();
-                mLabelCache.put(a, labelA);
+
+        /** Loads the labels and collation keys of {@param items} ahead of sorting them. */
+        void prepare(List<Object> items) {
+            for (Object item : items) {
+                getKey(item);
             }
-            if (mLabelCache.containsKey(b)) {
-                labelB = mLabelCache.get(b);
-            } else {
-                labelB = (b instanceof AppWidgetProviderInfo)
-                        ? mManager.loadLabel((AppWidgetProviderInfo) b)
-                        : ((ResolveInfo) b).loadLabel(mPackageManager).toString().trim();
-                mLabelCache.put(b, labelB);
+        }
+
+        private CollationKey getKey(Object o) {
+            CollationKey key = mKeys.get(o);
+            if (key == null) {
+                final ComponentName cn;
+                final UserHandleCompat user;
+                if (o instanceof AppWidgetProviderInfo) {
+                    cn = ((AppWidgetProviderInfo) o).provider;
+                    user = mManager.getUser((AppWidgetProviderInfo) o);
+                } else {
+                    cn = getComponentNameFromResolveInfo((ResolveInfo) o);
+                    user = UserHandleCompat.myUserHandle();
+                }
+                String label = sWidgetLabelCache.getLabel(cn, user);
+                if (label == null) {
+                    label = (o instanceof AppWidgetProviderInfo)
+                            ? mManager.loadLabel((AppWidgetProviderInfo) o)
+                            : ((ResolveInfo) o).loadLabel(mPackageManager).toString().trim();
+                }
+                key = sWidgetLabelCache.getCollationKey(cn, user, label);
+                mKeys.put(o, key);
             }
-            return mCollator.compare(labelA, labelB);
+            return key;
+        }
+
+        public final int compare(Object a, Object b) {
+            return getKey(a).compareTo(getKey(b));
         }
     };
 
@@ -3816,6 +5251,12 @@ public class LauncherModel extends BroadcastReceiver
         } else {
             Log.d(TAG, "mLoaderTask=null");
         }
+        mBindStats.dumpState();
+        Log.d(TAG, "model version=" + sBgSnapshot.version);
+        sBgLockStats.dumpState();
+        sDbWriteQueue.dumpState();
+        sWorkerScheduler.dumpState();
+        mIconCache.dumpState();
     }
 
     public Callbacks getCallback() {
@@ -32,6 +32,7 @@ import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
@@ -40,6 +41,7 @@ import android.database.sqlite.SQLiteStatement;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.text.TextUtils;
 import android.util.Log;
@@ -56,12 +58,16 @@ import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class LauncherProvider extends ContentProvider {
     private static final String TAG = "Launcher.LauncherProvider";
     private static final boolean LOGD = false;
 
-    private static final int DATABASE_VERSION = 20;
+    private static final int DATABASE_VERSION = 23;
 
     static final String OLD_AUTHORITY = "com.android.launcher2.settings";
     static final String AUTHORITY = ProviderConfig.AUTHORITY;
@@ -69,16 +75,40 @@ public class LauncherProvider extends ContentProvider {
     // Should we attempt to load anything from the com.android.launcher2 provider?
     static final boolean IMPORT_LAUNCHER2_DATABASE = false;
 
+    // Use write-ahead logging, so that the model's writes don't wait for the loader's reads
+    static final boolean ENABLE_WRITE_AHEAD_LOGGING = true;
+
     static final String TABLE_FAVORITES = "favorites";
     static final String TABLE_WORKSPACE_SCREENS = "workspaceScreens";
+    static final String TABLE_ICONS = "icons";
     static final String PARAMETER_NOTIFY = "notify";
     static final String UPGRADED_FROM_OLD_DATABASE =
             "UPGRADED_FROM_OLD_DATABASE";
     static final String EMPTY_DATABASE_CREATED =
             "EMPTY_DATABASE_CREATED";
+    // The time before which every favorite was checked by the loader, and the grid it was
+    // checked on. Rows modified after that time are checked again on the next load.
+    static final String WORKSPACE_VERIFIED_TIME =
+            "WORKSPACE_VERIFIED_TIME";
+    static final String WORKSPACE_VERIFIED_GRID =
+            "WORKSPACE_VERIFIED_GRID";
+    // The name of the layout in use, or none for the default layout
+    static final String CURRENT_LAYOUT =
+            "CURRENT_LAYOUT";
 
     private static final String URI_PARAM_IS_EXTERNAL_ADD = "isExternalAdd";
 
+    // How many rows of the Launcher2 database to keep in memory while migrating it
+    private static final int MIGRATION_BATCH_SIZE = 50;
+
+    // How many compiled update statements to keep around
+    private static final int MAX_CACHED_STATEMENTS = 16;
+
+    // Icons are kept in TABLE_ICONS, keyed by the id of their favorite. Queries on the favorites
+    // which ask for the icon read it back with this column.
+    private static final String ICON_COLUMN = "(SELECT icon FROM " + TABLE_ICONS
+            + " WHERE " + TABLE_ICONS + "._id=" + TABLE_FAVORITES + "._id) AS icon";
+
     private LauncherProviderChangeListener mListener;
 
     /**
@@ -89,19 +119,68 @@ public class LauncherProvider extends ContentProvider {
     static final Uri CONTENT_APPWIDGET_RESET_URI =
             Uri.parse("content://" + AUTHORITY + "/appWidgetReset");
 
-    private DatabaseHelper mOpenHelper;
+    // The helper of the layout in use, opened on first use as the database of a layout depends
+    // on the grid. It is only replaced under the write lock of mHelperLock, every other use holds
+    // the read lock so that the helper isn't closed under it.
+    private volatile DatabaseHelper mOpenHelper;
+    private final ReentrantReadWriteLock mHelperLock = new ReentrantReadWriteLock();
+
+    // Set while a batch is being applied on this thread
+    private final ThreadLocal<PendingNotify> mPendingNotify = new ThreadLocal<PendingNotify>();
     private static boolean sJustLoadedFromOldDb;
 
     @Override
     public boolean onCreate() {
-        final Context context = getContext();
-        mOpenHelper = new DatabaseHelper(context);
         LauncherAppState.setLauncherProvider(this);
         return true;
     }
 
+    /**
+     * Returns the helper of the layout in use, opening it if needed. Must be called with
+     * mHelperLock held.
+     */
+    private DatabaseHelper getOpenHelper() {
+        DatabaseHelper helper = mOpenHelper;
+        if (helper == null) {
+            synchronized (mHelperLock) {
+                helper = mOpenHelper;
+                if (helper == null) {
+                    String spKey = LauncherAppState.getSharedPreferencesKey();
+                    SharedPreferences sp = getContext().getSharedPreferences(spKey,
+                            Context.MODE_PRIVATE);
+                    helper = new DatabaseHelper(getContext(),
+                            getLayoutDb(sp.getString(CURRENT_LAYOUT, null)));
+                    mOpenHelper = helper;
+                }
+            }
+        }
+        return helper;
+    }
+
+    /**
+     * Returns the database of the layout {@param layoutName} for the current grid, or of the
+     * default layout if it is null.
+     */
+    private String getLayoutDb(String layoutName) {
+        if (layoutName == null) {
+            return LauncherFiles.LAUNCHER_DB;
+        }
+        // Items are placed for a grid, so each grid has its own copy of a named layout
+        DynamicGrid dynamicGrid = LauncherAppState.getInstance().getDynamicGrid();
+        if (dynamicGrid == null) {
+            dynamicGrid = LauncherAppState.createDynamicGrid(getContext(), null);
+        }
+        DeviceProfile grid = dynamicGrid.getDeviceProfile();
+        return LauncherFiles.getLayoutDb(layoutName, (int) grid.numRows, (int) grid.numColumns);
+    }
+
     public boolean wasNewDbCreated() {
-        return mOpenHelper.wasNewDbCreated();
+        mHelperLock.readLock().lock();
+        try {
+            return getOpenHelper().wasNewDbCreated();
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
     }
 
     public void setLauncherProviderChangeListener(LauncherProviderChangeListener listener) {
@@ -125,11 +204,40 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(args.table);
+        if (TABLE_FAVORITES.equals(args.table)) {
+            projection = getFavoritesProjection(projection);
+        }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        Cursor result = qb.query(db, projection, args.where, args.args, null, null, sortOrder);
-        result.setNotificationUri(getContext().getContentResolver(), uri);
+        mHelperLock.readLock().lock();
+        try {
+            SQLiteDatabase db = getOpenHelper().getWritableDatabase();
+            Cursor result = qb.query(db, projection, args.where, args.args, null, null,
+                    sortOrder);
+            result.setNotificationUri(getContext().getContentResolver(), uri);
 
+            return result;
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the projection to use for a query on the favorites, which only reads the icons
+     * from {@link #TABLE_ICONS} if they were asked for.
+     */
+    private static String[] getFavoritesProjection(String[] projection) {
+        if (projection == null) {
+            return new String[] { "*", ICON_COLUMN };
+        }
+        String[] result = projection;
+        for (int i = 0; i < projection.length; i++) {
+            if (LauncherSettings.Favorites.ICON.equals(projection[i])) {
+                if (result == projection) {
+                    result = projection.clone();
+                }
+                result[i] = ICON_COLUMN;
+            }
+        }
         return result;
     }
 
@@ -142,24 +250,119 @@ public class LauncherProvider extends ContentProvider {
             throw new RuntimeException("Error: attempting to add item without specifying an id");
         }
         helper.checkId(table, values);
-        return db.insert(table, nullColumnHack, values);
+        if (TABLE_FAVORITES.equals(table)) {
+            addIntentData(values);
+        }
+        if (!TABLE_FAVORITES.equals(table)
+                || !values.containsKey(LauncherSettings.Favorites.ICON)) {
+            return db.insert(table, nullColumnHack, values);
+        }
+
+        // The icon goes in its own table
+        byte[] icon = values.getAsByteArray(LauncherSettings.Favorites.ICON);
+        values = new ContentValues(values);
+        values.remove(LauncherSettings.Favorites.ICON);
+        db.beginTransaction();
+        try {
+            long rowId = db.insert(table, nullColumnHack, values);
+            if (rowId > 0 && icon != null) {
+                writeIcon(db, rowId, icon);
+            }
+            db.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Updates the favorites matching {@param args}, and stores their icon in {@link #TABLE_ICONS}
+     * if {@param values} has one.
+     */
+    private static int dbUpdateFavorites(DatabaseHelper helper, SQLiteDatabase db,
+            ContentValues values, SqlArguments args) {
+        addIntentData(values);
+        if (!values.containsKey(LauncherSettings.Favorites.ICON)) {
+            return helper.update(db, values, args);
+        }
+
+        byte[] icon = values.getAsByteArray(LauncherSettings.Favorites.ICON);
+        values = new ContentValues(values);
+        values.remove(LauncherSettings.Favorites.ICON);
+        db.beginTransaction();
+        Cursor c = null;
+        try {
+            int count = helper.update(db, values, args);
+            if (count > 0) {
+                c = db.query(TABLE_FAVORITES, new String[] { LauncherSettings.Favorites._ID },
+                        args.where, args.args, null, null, null);
+                while (c.moveToNext()) {
+                    writeIcon(db, c.getLong(0), icon);
+                }
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Adds the compact form of the intent to {@param values} if they have an intent, so that
+     * the two columns never disagree.
+     */
+    private static void addIntentData(ContentValues values) {
+        if (!values.containsKey(LauncherSettings.Favorites.INTENT)) {
+            return;
+        }
+        String uri = values.getAsString(LauncherSettings.Favorites.INTENT);
+        byte[] data = null;
+        if (uri != null) {
+            try {
+                data = IntentCodec.encode(Intent.parseUri(uri, 0));
+            } catch (URISyntaxException e) {
+                // Only readable from the uri, if at all
+            }
+        }
+        values.put(LauncherSettings.Favorites.INTENT_DATA, data);
+    }
+
+    private static void writeIcon(SQLiteDatabase db, long id, byte[] icon) {
+        if (icon == null) {
+            db.delete(TABLE_ICONS, LauncherSettings.Favorites._ID + "=" + id, null);
+        } else {
+            ContentValues values = new ContentValues(2);
+            values.put(LauncherSettings.Favorites._ID, id);
+            values.put(LauncherSettings.Favorites.ICON, icon);
+            db.insertWithOnConflict(TABLE_ICONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        }
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
         SqlArguments args = new SqlArguments(uri);
 
-        // In very limited cases, we support system|signature permission apps to add to the db
-        String externalAdd = uri.getQueryParameter(URI_PARAM_IS_EXTERNAL_ADD);
-        if (externalAdd != null && "true".equals(externalAdd)) {
-            if (!mOpenHelper.initializeExternalAdd(initialValues)) {
-                return null;
+        final long rowId;
+        mHelperLock.readLock().lock();
+        try {
+            final DatabaseHelper helper = getOpenHelper();
+            // In very limited cases, we support system|signature permission apps to add to the db
+            String externalAdd = uri.getQueryParameter(URI_PARAM_IS_EXTERNAL_ADD);
+            if (externalAdd != null && "true".equals(externalAdd)) {
+                if (!helper.initializeExternalAdd(initialValues)) {
+                    return null;
+                }
             }
-        }
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        addModifiedTime(initialValues);
-        final long rowId = dbInsertAndCheck(mOpenHelper, db, args.table, null, initialValues);
+            SQLiteDatabase db = helper.getWritableDatabase();
+            addModifiedTime(initialValues);
+            rowId = dbInsertAndCheck(helper, db, args.table, null, initialValues);
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
         if (rowId <= 0) return null;
 
         uri = ContentUris.withAppendedId(uri, rowId);
@@ -173,45 +376,77 @@ public class LauncherProvider extends ContentProvider {
     public int bulkInsert(Uri uri, ContentValues[] values) {
         SqlArguments args = new SqlArguments(uri);
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        mHelperLock.readLock().lock();
         try {
-            int numValues = values.length;
-            for (int i = 0; i < numValues; i++) {
-                addModifiedTime(values[i]);
-                if (dbInsertAndCheck(mOpenHelper, db, args.table, null, values[i]) < 0) {
-                    return 0;
+            final DatabaseHelper helper = getOpenHelper();
+            SQLiteDatabase db = helper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                int numValues = values.length;
+                for (int i = 0; i < numValues; i++) {
+                    addModifiedTime(values[i]);
+                    if (dbInsertAndCheck(helper, db, args.table, null, values[i]) < 0) {
+                        return 0;
+                    }
                 }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            db.setTransactionSuccessful();
         } finally {
-            db.endTransaction();
+            mHelperLock.readLock().unlock();
         }
 
         sendNotify(uri);
         return values.length;
     }
 
+    /**
+     * Applies {@param operations} in a single transaction. The operations don't notify anyone of
+     * their changes; one merged notification is sent once the transaction is committed.
+     */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        db.beginTransaction();
+        if (mPendingNotify.get() != null) {
+            // Already in a batch, which will send the notifications
+            return super.applyBatch(operations);
+        }
+
+        final PendingNotify pending = new PendingNotify();
+        final ContentProviderResult[] result;
+        // The operations run on the same helper as the transaction
+        mHelperLock.readLock().lock();
         try {
-            ContentProviderResult[] result =  super.applyBatch(operations);
-            db.setTransactionSuccessful();
-            return result;
+            SQLiteDatabase db = getOpenHelper().getWritableDatabase();
+            mPendingNotify.set(pending);
+            db.beginTransaction();
+            try {
+                result = super.applyBatch(operations);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                mPendingNotify.set(null);
+            }
         } finally {
-            db.endTransaction();
+            mHelperLock.readLock().unlock();
         }
+        sendNotify(pending);
+        return result;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.delete(args.table, args.where, args.args);
+        final int count;
+        mHelperLock.readLock().lock();
+        try {
+            SQLiteDatabase db = getOpenHelper().getWritableDatabase();
+            count = db.delete(args.table, args.where, args.args);
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
         if (count > 0) sendNotify(uri);
 
         return count;
@@ -222,46 +457,129 @@ public class LauncherProvider extends ContentProvider {
         SqlArguments args = new SqlArguments(uri, selection, selectionArgs);
 
         addModifiedTime(values);
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        int count = db.update(args.table, values, args.where, args.args);
+        final int count;
+        mHelperLock.readLock().lock();
+        try {
+            final DatabaseHelper helper = getOpenHelper();
+            SQLiteDatabase db = helper.getWritableDatabase();
+            count = TABLE_FAVORITES.equals(args.table)
+                    ? dbUpdateFavorites(helper, db, values, args)
+                    : helper.update(db, values, args);
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
         if (count > 0) sendNotify(uri);
 
         return count;
     }
 
     private void sendNotify(Uri uri) {
+        final PendingNotify pending = mPendingNotify.get();
+        if (pending != null) {
+            pending.add(uri);
+            return;
+        }
+
         String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
         if (notify == null || "true".equals(notify)) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
+        onDataChanged();
+    }
+
+    /** Sends the notifications merged during a batch. */
+    private void sendNotify(PendingNotify pending) {
+        if (!pending.changed) {
+            return;
+        }
+        for (Uri uri : pending.uris) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        onDataChanged();
+    }
 
+    private void onDataChanged() {
         // always notify the backup agent
         LauncherBackupAgentHelper.dataChanged(getContext());
+        // the model snapshot no longer matches the database
+        ModelSnapshot.markStale();
         if (mListener != null) {
             mListener.onLauncherProviderChange();
         }
     }
 
+    /**
+     * The changes made during a batch. Changes to single rows are merged into a notification
+     * for their table.
+     */
+    private static class PendingNotify {
+        final HashSet<Uri> uris = new HashSet<Uri>();
+        boolean changed;
+
+        void add(Uri uri) {
+            changed = true;
+            String notify = uri.getQueryParameter(PARAMETER_NOTIFY);
+            if (notify == null || "true".equals(notify)) {
+                uris.add(new Uri.Builder().scheme(uri.getScheme())
+                        .authority(uri.getAuthority())
+                        .appendPath(uri.getPathSegments().get(0)).build());
+            }
+        }
+    }
+
     private void addModifiedTime(ContentValues values) {
         values.put(LauncherSettings.ChangeLogColumns.MODIFIED, System.currentTimeMillis());
     }
 
     public long generateNewItemId() {
-        return mOpenHelper.generateNewItemId();
+        mHelperLock.readLock().lock();
+        try {
+            return getOpenHelper().generateNewItemId();
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reserves {@param count} consecutive item ids, and returns the first one, so that the caller
+     * can add several items without asking for each id.
+     */
+    public long generateNewItemIds(int count) {
+        mHelperLock.readLock().lock();
+        try {
+            return getOpenHelper().generateNewItemIds(count);
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
     }
 
     public void updateMaxItemId(long id) {
-        mOpenHelper.updateMaxItemId(id);
+        mHelperLock.readLock().lock();
+        try {
+            getOpenHelper().updateMaxItemId(id);
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
     }
 
     public long generateNewScreenId() {
-        return mOpenHelper.generateNewScreenId();
+        mHelperLock.readLock().lock();
+        try {
+            return getOpenHelper().generateNewScreenId();
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
     }
 
     // This is only required one time while loading the workspace during the
     // upgrade path, and should never be called from anywhere else.
     public void updateMaxScreenId(long maxScreenId) {
-        mOpenHelper.updateMaxScreenId(maxScreenId);
+        mHelperLock.readLock().lock();
+        try {
+            getOpenHelper().updateMaxScreenId(maxScreenId);
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
     }
 
     /**
@@ -288,7 +606,13 @@ public class LauncherProvider extends ContentProvider {
      * Clears all the data for a fresh start.
      */
     synchronized public void createEmptyDB() {
-        mOpenHelper.createEmptyDB(mOpenHelper.getWritableDatabase());
+        mHelperLock.readLock().lock();
+        try {
+            final DatabaseHelper helper = getOpenHelper();
+            helper.createEmptyDB(helper.getWritableDatabase());
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
     }
 
     public void clearFlagEmptyDbCreated() {
@@ -299,6 +623,88 @@ public class LauncherProvider extends ContentProvider {
             .commit();
     }
 
+    /**
+     * Returns the time before which every row of the favorites table was found in a valid place
+     * by the loader, on the grid described by {@param gridKey}, or 0 if every row has to be
+     * checked again. Writes through the provider stamp the modified time of their rows, so the
+     * rows modified after this time are the only ones which can have become invalid.
+     */
+    synchronized public long getWorkspaceVerifiedTime(String gridKey) {
+        String spKey = LauncherAppState.getSharedPreferencesKey();
+        SharedPreferences sp = getContext().getSharedPreferences(spKey, Context.MODE_PRIVATE);
+        if (!getVerifiedKey(gridKey).equals(sp.getString(WORKSPACE_VERIFIED_GRID, null))) {
+            return 0;
+        }
+        return sp.getLong(WORKSPACE_VERIFIED_TIME, 0);
+    }
+
+    /**
+     * Records that the loader found every row modified before {@param time} in a valid place, on
+     * the grid described by {@param gridKey}.
+     */
+    synchronized public void setWorkspaceVerifiedTime(long time, String gridKey) {
+        String spKey = LauncherAppState.getSharedPreferencesKey();
+        getContext().getSharedPreferences(spKey, Context.MODE_PRIVATE)
+            .edit()
+            .putLong(WORKSPACE_VERIFIED_TIME, time)
+            .putString(WORKSPACE_VERIFIED_GRID, getVerifiedKey(gridKey))
+            .commit();
+    }
+
+    private String getVerifiedKey(String gridKey) {
+        // Each layout has its own rows
+        mHelperLock.readLock().lock();
+        try {
+            return getOpenHelper().getDatabaseName() + "/" + gridKey;
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Switches to the layout {@param layoutName} for the current grid, or to the default layout
+     * if it is null. A layout which has never been used starts with the default workspace. Only
+     * the database in use changes, so the caller has to flush its writes before, and reload the
+     * workspace after.
+     *
+     * @return whether the layout in use changed, which it doesn't if the name is invalid
+     */
+    synchronized public boolean switchLayout(String layoutName) {
+        if (layoutName != null && !layoutName.matches("[a-z0-9_]+")) {
+            Log.w(TAG, "Invalid layout name: " + layoutName);
+            return false;
+        }
+        final String dbName = getLayoutDb(layoutName);
+
+        mHelperLock.writeLock().lock();
+        try {
+            final DatabaseHelper helper = getOpenHelper();
+            if (dbName.equals(helper.getDatabaseName())) {
+                return false;
+            }
+
+            Launcher.addDumpLog(TAG, "switching to layout " + dbName, true);
+            helper.close();
+            mOpenHelper = new DatabaseHelper(getContext(), dbName);
+        } finally {
+            mHelperLock.writeLock().unlock();
+        }
+        // Only the name is saved, the database is picked for the grid in use when it is opened
+        String spKey = LauncherAppState.getSharedPreferencesKey();
+        SharedPreferences.Editor editor = getContext()
+                .getSharedPreferences(spKey, Context.MODE_PRIVATE).edit();
+        if (layoutName == null) {
+            editor.remove(CURRENT_LAYOUT);
+        } else {
+            editor.putString(CURRENT_LAYOUT, layoutName);
+        }
+        editor.commit();
+        // The snapshot is of another layout altogether
+        ModelSnapshot.invalidate(getContext());
+        onDataChanged();
+        return true;
+    }
+
     /**
      * Loads the default workspace based on the following priority scheme:
      *   1) From a package provided by play store
@@ -312,48 +718,95 @@ public class LauncherProvider extends ContentProvider {
         if (sp.getBoolean(EMPTY_DATABASE_CREATED, false)) {
             Log.d(TAG, "loading default workspace");
 
-            AutoInstallsLayout loader = AutoInstallsLayout.get(getContext(),
-                    mOpenHelper.mAppWidgetHost, mOpenHelper);
-
-            if (loader == null) {
-                final Partner partner = Partner.get(getContext().getPackageManager());
-                if (partner != null && partner.hasDefaultLayout()) {
-                    final Resources partnerRes = partner.getResources();
-                    int workspaceResId = partnerRes.getIdentifier(Partner.RES_DEFAULT_LAYOUT,
-                            "xml", partner.getPackageName());
-                    if (workspaceResId != 0) {
-                        loader = new DefaultLayoutParser(getContext(), mOpenHelper.mAppWidgetHost,
-                                mOpenHelper, partnerRes, workspaceResId);
+            mHelperLock.readLock().lock();
+            try {
+                final DatabaseHelper helper = getOpenHelper();
+                AutoInstallsLayout loader = AutoInstallsLayout.get(getContext(),
+                        helper.mAppWidgetHost, helper);
+
+                if (loader == null) {
+                    final Partner partner = Partner.get(getContext().getPackageManager());
+                    if (partner != null && partner.hasDefaultLayout()) {
+                        final Resources partnerRes = partner.getResources();
+                        int workspaceResId = partnerRes.getIdentifier(Partner.RES_DEFAULT_LAYOUT,
+                                "xml", partner.getPackageName());
+                        if (workspaceResId != 0) {
+                            loader = new DefaultLayoutParser(getContext(), helper.mAppWidgetHost,
+                                    helper, partnerRes, workspaceResId);
+                        }
                     }
                 }
-            }
 
-            final boolean usingExternallyProvidedLayout = loader != null;
-            if (loader == null) {
-                loader = getDefaultLayoutParser();
-            }
-            // Populate favorites table with initial favorites
-            if ((mOpenHelper.loadFavorites(mOpenHelper.getWritableDatabase(), loader) <= 0)
-                    && usingExternallyProvidedLayout) {
-                // Unable to load external layout. Cleanup and load the internal layout.
-                createEmptyDB();
-                mOpenHelper.loadFavorites(mOpenHelper.getWritableDatabase(),
-                        getDefaultLayoutParser());
+                final boolean usingExternallyProvidedLayout = loader != null;
+                if (loader == null) {
+                    loader = getDefaultLayoutParser(helper);
+                }
+                // Populate favorites table with initial favorites
+                if ((helper.loadFavorites(helper.getWritableDatabase(), loader) <= 0)
+                        && usingExternallyProvidedLayout) {
+                    // Unable to load external layout. Cleanup and load the internal layout.
+                    createEmptyDB();
+                    helper.loadFavorites(helper.getWritableDatabase(),
+                            getDefaultLayoutParser(helper));
+                }
+            } finally {
+                mHelperLock.readLock().unlock();
             }
             clearFlagEmptyDbCreated();
+            // The loader reads the new layout right after, so only mark the data as changed
+            sendNotify(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION);
         }
     }
 
-    private DefaultLayoutParser getDefaultLayoutParser() {
+    private DefaultLayoutParser getDefaultLayoutParser(DatabaseHelper helper) {
         int defaultLayout = LauncherAppState.getInstance()
                 .getDynamicGrid().getDeviceProfile().defaultLayoutId;
-        return new DefaultLayoutParser(getContext(), mOpenHelper.mAppWidgetHost,
-                mOpenHelper, getContext().getResources(), defaultLayout);
+        return new DefaultLayoutParser(getContext(), helper.mAppWidgetHost,
+                helper, getContext().getResources(), defaultLayout);
+    }
+
+    /**
+     * Copies what it can of the write-ahead log back into the database, without waiting for
+     * readers or writers. Call this when the launcher is idle, so that the log doesn't grow
+     * until SQLite checkpoints it in the middle of a write.
+     */
+    public void checkpointDatabase() {
+        if (!ENABLE_WRITE_AHEAD_LOGGING) {
+            return;
+        }
+        final long start = LOGD ? SystemClock.uptimeMillis() : 0;
+        Cursor c = null;
+        mHelperLock.readLock().lock();
+        try {
+            c = getOpenHelper().getWritableDatabase().rawQuery("PRAGMA wal_checkpoint(PASSIVE)",
+                    null);
+            // Returns the busy flag, the pages in the log and the pages checkpointed
+            if (c.moveToFirst() && LOGD) {
+                Log.d(TAG, "checkpoint: busy=" + c.getInt(0) + " log=" + c.getInt(1)
+                        + " checkpointed=" + c.getInt(2) + " in "
+                        + (SystemClock.uptimeMillis() - start) + "ms");
+            }
+        } catch (SQLException e) {
+            Log.w(TAG, "Failed to checkpoint the database", e);
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+            mHelperLock.readLock().unlock();
+        }
     }
 
     public void migrateLauncher2Shortcuts() {
-        mOpenHelper.migrateLauncher2Shortcuts(mOpenHelper.getWritableDatabase(),
-                Uri.parse(getContext().getString(R.string.old_launcher_provider_uri)));
+        mHelperLock.readLock().lock();
+        try {
+            final DatabaseHelper helper = getOpenHelper();
+            helper.migrateLauncher2Shortcuts(helper.getWritableDatabase(),
+                    Uri.parse(getContext().getString(R.string.old_launcher_provider_uri)));
+        } finally {
+            mHelperLock.readLock().unlock();
+        }
+        // The loader reads the migrated items right after, so only mark the data as changed
+        sendNotify(LauncherSettings.Favorites.CONTENT_URI_NO_NOTIFICATION);
     }
 
     private static interface ContentValuesCallback {
@@ -368,36 +821,61 @@ public class LauncherProvider extends ContentProvider {
     }
 
     public void deleteDatabase() {
-        // Are you sure? (y/n)
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        final File dbFile = new File(db.getPath());
-        mOpenHelper.close();
-        if (dbFile.exists()) {
-            SQLiteDatabase.deleteDatabase(dbFile);
-        }
-        mOpenHelper = new DatabaseHelper(getContext());
+        mHelperLock.writeLock().lock();
+        try {
+            // Are you sure? (y/n)
+            final DatabaseHelper helper = getOpenHelper();
+            final SQLiteDatabase db = helper.getWritableDatabase();
+            final File dbFile = new File(db.getPath());
+            // The widget host is shared with the other layouts, so only their widgets are kept
+            helper.deleteAppWidgetIds(db);
+            helper.close();
+            if (dbFile.exists()) {
+                SQLiteDatabase.deleteDatabase(dbFile);
+            }
+            ModelSnapshot.invalidate(getContext());
+            mOpenHelper = new DatabaseHelper(getContext(), helper.getDatabaseName());
+        } finally {
+            mHelperLock.writeLock().unlock();
+        }
     }
 
     private static class DatabaseHelper extends SQLiteOpenHelper implements LayoutParserCallback {
         private final Context mContext;
         private final AppWidgetHost mAppWidgetHost;
-        private long mMaxItemId = -1;
-        private long mMaxScreenId = -1;
+        // The largest ids in use. Ids are handed out from the main thread and the worker thread,
+        // so they are only changed atomically.
+        private final AtomicLong mMaxItemId = new AtomicLong(-1);
+        private final AtomicLong mMaxScreenId = new AtomicLong(-1);
 
         private boolean mNewDbCreated = false;
 
-        DatabaseHelper(Context context) {
-            super(context, LauncherFiles.LAUNCHER_DB, null, DATABASE_VERSION);
+        // Compiled statements for updates of a single row, keyed by their SQL. Guarded by itself.
+        private final LinkedHashMap<String, SQLiteStatement> mUpdateStatements =
+                new LinkedHashMap<String, SQLiteStatement>(MAX_CACHED_STATEMENTS, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Entry<String, SQLiteStatement> eldest) {
+                        if (size() > MAX_CACHED_STATEMENTS) {
+                            eldest.getValue().close();
+                            return true;
+                        }
+                        return false;
+                    }
+                };
+
+        DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
             mContext = context;
+            setWriteAheadLoggingEnabled(ENABLE_WRITE_AHEAD_LOGGING);
             mAppWidgetHost = new AppWidgetHost(context, Launcher.APPWIDGET_HOST_ID);
 
             // In the case where neither onCreate nor onUpgrade gets called, we read the maxId from
             // the DB here
-            if (mMaxItemId == -1) {
-                mMaxItemId = initializeMaxItemId(getWritableDatabase());
+            if (mMaxItemId.get() == -1) {
+                mMaxItemId.set(initializeMaxItemId(getWritableDatabase()));
             }
-            if (mMaxScreenId == -1) {
-                mMaxScreenId = initializeMaxScreenId(getWritableDatabase());
+            if (mMaxScreenId.get() == -1) {
+                mMaxScreenId.set(initializeMaxScreenId(getWritableDatabase()));
             }
         }
 
@@ -405,6 +883,60 @@ public class LauncherProvider extends ContentProvider {
             return mNewDbCreated;
         }
 
+        @Override
+        public synchronized void close() {
+            clearStatementCache();
+            super.close();
+        }
+
+        private void clearStatementCache() {
+            synchronized (mUpdateStatements) {
+                for (SQLiteStatement statement : mUpdateStatements.values()) {
+                    statement.close();
+                }
+                mUpdateStatements.clear();
+            }
+        }
+
+        /**
+         * Updates the rows matching {@param args}. Updating a single row, which is what the model
+         * does for every move and resize, uses a compiled statement which is kept for the next
+         * update of the same columns.
+         */
+        int update(SQLiteDatabase db, ContentValues values, SqlArguments args) {
+            if (args.id < 0 || values.size() == 0) {
+                return db.update(args.table, values, args.where, args.args);
+            }
+
+            final ArrayList<String> columns = new ArrayList<String>(values.keySet());
+            Collections.sort(columns);
+            final StringBuilder sql = new StringBuilder("UPDATE ").append(args.table)
+                    .append(" SET ");
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    sql.append(',');
+                }
+                sql.append(columns.get(i)).append("=?");
+            }
+            sql.append(" WHERE _id=?");
+
+            synchronized (mUpdateStatements) {
+                final String key = sql.toString();
+                SQLiteStatement statement = mUpdateStatements.get(key);
+                if (statement == null) {
+                    statement = db.compileStatement(key);
+                    mUpdateStatements.put(key, statement);
+                }
+                statement.clearBindings();
+                for (int i = 0; i < columns.size(); i++) {
+                    DatabaseUtils.bindObjectToProgram(statement, i + 1,
+                            values.get(columns.get(i)));
+                }
+                statement.bindLong(columns.size() + 1, args.id);
+                return statement.executeUpdateDelete();
+            }
+        }
+
         /**
          * Send notification that we've deleted the {@link AppWidgetHost},
          * probably as part of the initial database creation. The receiver may
@@ -416,46 +948,64 @@ public class LauncherProvider extends ContentProvider {
             resolver.notifyChange(CONTENT_APPWIDGET_RESET_URI, null);
         }
 
+        /** Returns whether the database of another layout exists. */
+        private boolean hasOtherLayoutDb() {
+            for (String name : mContext.databaseList()) {
+                if (LauncherFiles.isLayoutDb(name) && !name.equals(getDatabaseName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Deletes the widgets of this layout from the widget host, before its rows are wiped.
+         * The host is shared with the other layouts, so their widgets are left alone.
+         */
+        void deleteAppWidgetIds(SQLiteDatabase db) {
+            if (mAppWidgetHost == null) {
+                return;
+            }
+            Cursor c = null;
+            try {
+                c = db.query(TABLE_FAVORITES, new String[] { Favorites.APPWIDGET_ID },
+                        Favorites.ITEM_TYPE + "=" + Favorites.ITEM_TYPE_APPWIDGET + " AND "
+                        + Favorites.APPWIDGET_ID + ">=0", null, null, null, null);
+                while (c.moveToNext()) {
+                    mAppWidgetHost.deleteAppWidgetId(c.getInt(0));
+                }
+            } catch (SQLException e) {
+                // The table doesn't exist, or is too old to be read
+                Log.w(TAG, "Unable to read the widgets to delete", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+
         @Override
         public void onCreate(SQLiteDatabase db) {
             if (LOGD) Log.d(TAG, "creating new launcher database");
+            clearFlagWorkspaceVerified();
 
-            mMaxItemId = 1;
-            mMaxScreenId = 0;
+            mMaxItemId.set(1);
+            mMaxScreenId.set(0);
             mNewDbCreated = true;
 
             UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
             long userSerialNumber = userManager.getSerialNumberForUser(
                     UserHandleCompat.myUserHandle());
 
-            db.execSQL("CREATE TABLE favorites (" +
-                    "_id INTEGER PRIMARY KEY," +
-                    "title TEXT," +
-                    "intent TEXT," +
-                    "container INTEGER," +
-                    "screen INTEGER," +
-                    "cellX INTEGER," +
-                    "cellY INTEGER," +
-                    "spanX INTEGER," +
-                    "spanY INTEGER," +
-                    "itemType INTEGER," +
-                    "appWidgetId INTEGER NOT NULL DEFAULT -1," +
-                    "isShortcut INTEGER," +
-                    "iconType INTEGER," +
-                    "iconPackage TEXT," +
-                    "iconResource TEXT," +
-                    "icon BLOB," +
-                    "uri TEXT," +
-                    "displayMode INTEGER," +
-                    "appWidgetProvider TEXT," +
-                    "modified INTEGER NOT NULL DEFAULT 0," +
-                    "restored INTEGER NOT NULL DEFAULT 0," +
-                    "profileId INTEGER DEFAULT " + userSerialNumber +
-                    ");");
+            addFavoritesTable(db, TABLE_FAVORITES, userSerialNumber);
+            addFavoritesIndexes(db);
             addWorkspacesTable(db);
+            addIconsTable(db);
 
-            // Database was just created, so wipe any previous widgets
-            if (mAppWidgetHost != null) {
+            // Database was just created, so wipe any previous widgets. The layouts share the
+            // widget host, so this is only done when there is no other one. A layout which is
+            // recreated deletes its own widgets before.
+            if (mAppWidgetHost != null && !hasOtherLayoutDb()) {
                 mAppWidgetHost.deleteHost();
                 sendAppWidgetResetNotify();
             }
@@ -489,11 +1039,65 @@ public class LauncherProvider extends ContentProvider {
                 setFlagJustLoadedOldDb();
             } else {
                 // Fresh and clean launcher DB.
-                mMaxItemId = initializeMaxItemId(db);
+                mMaxItemId.set(initializeMaxItemId(db));
                 setFlagEmptyDbCreated();
             }
         }
 
+        private void addFavoritesTable(SQLiteDatabase db, String table, long userSerialNumber) {
+            db.execSQL("CREATE TABLE " + table + " (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "title TEXT," +
+                    "intent TEXT," +
+                    "container INTEGER," +
+                    "screen INTEGER," +
+                    "cellX INTEGER," +
+                    "cellY INTEGER," +
+                    "spanX INTEGER," +
+                    "spanY INTEGER," +
+                    "itemType INTEGER," +
+                    "appWidgetId INTEGER NOT NULL DEFAULT -1," +
+                    "isShortcut INTEGER," +
+                    "iconType INTEGER," +
+                    "iconPackage TEXT," +
+                    "iconResource TEXT," +
+                    "uri TEXT," +
+                    "displayMode INTEGER," +
+                    "appWidgetProvider TEXT," +
+                    "modified INTEGER NOT NULL DEFAULT 0," +
+                    "restored INTEGER NOT NULL DEFAULT 0," +
+                    "profileId INTEGER DEFAULT " + userSerialNumber + "," +
+                    "intentData BLOB" +
+                    ");");
+        }
+
+        /**
+         * Indexes the columns which the model and the provider filter the favorites on.
+         */
+        private void addFavoritesIndexes(SQLiteDatabase db) {
+            final String[] columns = new String[] { Favorites.CONTAINER, Favorites.SCREEN,
+                    Favorites.INTENT, Favorites.PROFILE_ID };
+            for (String column : columns) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_FAVORITES + "_" + column
+                        + " ON " + TABLE_FAVORITES + " (" + column + ");");
+            }
+        }
+
+        /**
+         * Creates the table holding the icons of the favorites, so that loading the favorites
+         * doesn't have to read every icon. Must be called after the favorites table is created.
+         */
+        private void addIconsTable(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE_ICONS + " (" +
+                    "_id INTEGER PRIMARY KEY," +
+                    "icon BLOB" +
+                    ");");
+            // Icons go away with their favorite
+            db.execSQL("CREATE TRIGGER " + TABLE_ICONS + "_delete AFTER DELETE ON "
+                    + TABLE_FAVORITES + " BEGIN DELETE FROM " + TABLE_ICONS
+                    + " WHERE _id = old._id; END");
+        }
+
         private void addWorkspacesTable(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE " + TABLE_WORKSPACE_SCREENS + " (" +
                     LauncherSettings.WorkspaceScreens._ID + " INTEGER," +
@@ -551,6 +1155,19 @@ public class LauncherProvider extends ContentProvider {
             editor.commit();
         }
 
+        /**
+         * Makes the loader check every row again. Call this before writing to the favorites
+         * without going through the provider, as those writes don't set the modified time.
+         */
+        private void clearFlagWorkspaceVerified() {
+            String spKey = LauncherAppState.getSharedPreferencesKey();
+            SharedPreferences sp = mContext.getSharedPreferences(spKey, Context.MODE_PRIVATE);
+            SharedPreferences.Editor editor = sp.edit();
+            editor.remove(WORKSPACE_VERIFIED_TIME);
+            editor.remove(WORKSPACE_VERIFIED_GRID);
+            editor.commit();
+        }
+
         // We rearrange the screens from the old launcher
         // 12345 -> 34512
         private long upgradeLauncherDb_permuteScreens(long screen) {
@@ -595,7 +1212,7 @@ public class LauncherProvider extends ContentProvider {
                 convertWidgets(db);
 
                 // Update max item id
-                mMaxItemId = initializeMaxItemId(db);
+                mMaxItemId.set(initializeMaxItemId(db));
                 if (LOGD) Log.d(TAG, "mMaxItemId: " + mMaxItemId);
             }
 
@@ -618,47 +1235,41 @@ public class LauncherProvider extends ContentProvider {
             final int uriIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.URI);
             final int displayModeIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites.DISPLAY_MODE);
 
-            ContentValues[] rows = new ContentValues[c.getCount()];
-            int i = 0;
-            while (c.moveToNext()) {
-                ContentValues values = new ContentValues(c.getColumnCount());
-                values.put(LauncherSettings.Favorites._ID, c.getLong(idIndex));
-                values.put(LauncherSettings.Favorites.INTENT, c.getString(intentIndex));
-                values.put(LauncherSettings.Favorites.TITLE, c.getString(titleIndex));
-                values.put(LauncherSettings.Favorites.ICON_TYPE, c.getInt(iconTypeIndex));
-                values.put(LauncherSettings.Favorites.ICON, c.getBlob(iconIndex));
-                values.put(LauncherSettings.Favorites.ICON_PACKAGE, c.getString(iconPackageIndex));
-                values.put(LauncherSettings.Favorites.ICON_RESOURCE, c.getString(iconResourceIndex));
-                values.put(LauncherSettings.Favorites.CONTAINER, c.getInt(containerIndex));
-                values.put(LauncherSettings.Favorites.ITEM_TYPE, c.getInt(itemTypeIndex));
-                values.put(LauncherSettings.Favorites.APPWIDGET_ID, -1);
-                values.put(LauncherSettings.Favorites.SCREEN, c.getInt(screenIndex));
-                values.put(LauncherSettings.Favorites.CELLX, c.getInt(cellXIndex));
-                values.put(LauncherSettings.Favorites.CELLY, c.getInt(cellYIndex));
-                values.put(LauncherSettings.Favorites.URI, c.getString(uriIndex));
-                values.put(LauncherSettings.Favorites.DISPLAY_MODE, c.getInt(displayModeIndex));
-                if (cb != null) {
-                    cb.onRow(values);
-                }
-                rows[i++] = values;
-            }
-
+            // Rows are inserted as they are read, so that the old table is never all in memory
             int total = 0;
-            if (i > 0) {
-                db.beginTransaction();
-                try {
-                    int numValues = rows.length;
-                    for (i = 0; i < numValues; i++) {
-                        if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, rows[i]) < 0) {
-                            return 0;
-                        } else {
-                            total++;
-                        }
+            db.beginTransaction();
+            try {
+                while (c.moveToNext()) {
+                    ContentValues values = new ContentValues(c.getColumnCount());
+                    values.put(LauncherSettings.Favorites._ID, c.getLong(idIndex));
+                    values.put(LauncherSettings.Favorites.INTENT, c.getString(intentIndex));
+                    values.put(LauncherSettings.Favorites.TITLE, c.getString(titleIndex));
+                    values.put(LauncherSettings.Favorites.ICON_TYPE, c.getInt(iconTypeIndex));
+                    values.put(LauncherSettings.Favorites.ICON, c.getBlob(iconIndex));
+                    values.put(LauncherSettings.Favorites.ICON_PACKAGE,
+                            c.getString(iconPackageIndex));
+                    values.put(LauncherSettings.Favorites.ICON_RESOURCE,
+                            c.getString(iconResourceIndex));
+                    values.put(LauncherSettings.Favorites.CONTAINER, c.getInt(containerIndex));
+                    values.put(LauncherSettings.Favorites.ITEM_TYPE, c.getInt(itemTypeIndex));
+                    values.put(LauncherSettings.Favorites.APPWIDGET_ID, -1);
+                    values.put(LauncherSettings.Favorites.SCREEN, c.getInt(screenIndex));
+                    values.put(LauncherSettings.Favorites.CELLX, c.getInt(cellXIndex));
+                    values.put(LauncherSettings.Favorites.CELLY, c.getInt(cellYIndex));
+                    values.put(LauncherSettings.Favorites.URI, c.getString(uriIndex));
+                    values.put(LauncherSettings.Favorites.DISPLAY_MODE,
+                            c.getInt(displayModeIndex));
+                    if (cb != null) {
+                        cb.onRow(values);
                     }
-                    db.setTransactionSuccessful();
-                } finally {
-                    db.endTransaction();
+                    if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, values) < 0) {
+                        return 0;
+                    }
+                    total++;
                 }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
 
             return total;
@@ -667,6 +1278,8 @@ public class LauncherProvider extends ContentProvider {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             if (LOGD) Log.d(TAG, "onUpgrade triggered: " + oldVersion);
+            // The upgrade writes to the rows without updating their modified time
+            clearFlagWorkspaceVerified();
 
             int version = oldVersion;
             if (version < 3) {
@@ -739,8 +1352,8 @@ public class LauncherProvider extends ContentProvider {
             if (version < 9) {
                 // The max id is not yet set at this point (onUpgrade is triggered in the ctor
                 // before it gets a change to get set, so we need to read it here when we use it)
-                if (mMaxItemId == -1) {
-                    mMaxItemId = initializeMaxItemId(db);
+                if (mMaxItemId.get() == -1) {
+                    mMaxItemId.set(initializeMaxItemId(db));
                 }
 
                 // Add default hotseat icons
@@ -763,7 +1376,7 @@ public class LauncherProvider extends ContentProvider {
             if (version < 13) {
                 // With the new shrink-wrapped and re-orderable workspaces, it makes sense
                 // to persist workspace screens and their relative order.
-                mMaxScreenId = 0;
+                mMaxScreenId.set(0);
 
                 // This will never happen in the wild, but when we switch to using workspace
                 // screen ids, redo the import from old launcher.
@@ -856,10 +1469,40 @@ public class LauncherProvider extends ContentProvider {
                 // else old version remains, which means we wipe old data
             }
 
+            if (version < 21) {
+                // Move the icons out of the favorites table
+                if (moveIconsToIconsTable(db)) {
+                    version = 21;
+                }
+            }
+
+            if (version < 22) {
+                db.beginTransaction();
+                try {
+                    addFavoritesIndexes(db);
+                    db.setTransactionSuccessful();
+                    version = 22;
+                } catch (SQLException ex) {
+                    // Old version remains, which means we wipe old data
+                    Log.e(TAG, ex.getMessage(), ex);
+                } finally {
+                    db.endTransaction();
+                }
+            }
+
+            if (version < 23) {
+                // Store the intents in their compact form as well
+                if (addIntentDataColumn(db)) {
+                    version = 23;
+                }
+            }
+
             if (version != DATABASE_VERSION) {
                 Log.w(TAG, "Destroying all old data.");
+                deleteAppWidgetIds(db);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
                 db.execSQL("DROP TABLE IF EXISTS " + TABLE_WORKSPACE_SCREENS);
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
 
                 onCreate(db);
             }
@@ -878,8 +1521,11 @@ public class LauncherProvider extends ContentProvider {
          * Clears all the data for a fresh start.
          */
         public void createEmptyDB(SQLiteDatabase db) {
+            clearStatementCache();
+            deleteAppWidgetIds(db);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
             db.execSQL("DROP TABLE IF EXISTS " + TABLE_WORKSPACE_SCREENS);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
             onCreate(db);
         }
 
@@ -906,6 +1552,87 @@ public class LauncherProvider extends ContentProvider {
             return true;
         }
 
+        /**
+         * Moves the icon blobs into {@link #TABLE_ICONS}. SQLite can't drop a column, so the
+         * favorites table is rebuilt without it.
+         */
+        private boolean moveIconsToIconsTable(SQLiteDatabase db) {
+            final String columns = "_id,title,intent,container,screen,cellX,cellY,spanX,spanY,"
+                    + "itemType,appWidgetId,isShortcut,iconType,iconPackage,iconResource,uri,"
+                    + "displayMode,appWidgetProvider,modified,restored,profileId";
+            db.beginTransaction();
+            try {
+                UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
+                long userSerialNumber = userManager.getSerialNumberForUser(
+                        UserHandleCompat.myUserHandle());
+
+                db.execSQL("DROP TABLE IF EXISTS " + TABLE_ICONS);
+                db.execSQL("DROP TABLE IF EXISTS favorites_tmp");
+                addFavoritesTable(db, "favorites_tmp", userSerialNumber);
+                db.execSQL("INSERT INTO favorites_tmp (" + columns + ") SELECT " + columns
+                        + " FROM " + TABLE_FAVORITES + ";");
+                db.execSQL("CREATE TABLE " + TABLE_ICONS + "_tmp AS SELECT _id, icon FROM "
+                        + TABLE_FAVORITES + " WHERE icon IS NOT NULL;");
+                db.execSQL("DROP TABLE " + TABLE_FAVORITES + ";");
+                db.execSQL("ALTER TABLE favorites_tmp RENAME TO " + TABLE_FAVORITES + ";");
+                addIconsTable(db);
+                db.execSQL("INSERT INTO " + TABLE_ICONS + " (_id, icon) SELECT _id, icon FROM "
+                        + TABLE_ICONS + "_tmp;");
+                db.execSQL("DROP TABLE " + TABLE_ICONS + "_tmp;");
+                db.setTransactionSuccessful();
+            } catch (SQLException ex) {
+                // Old version remains, which means we wipe old data
+                Log.e(TAG, ex.getMessage(), ex);
+                return false;
+            } finally {
+                db.endTransaction();
+            }
+            return true;
+        }
+
+        private boolean addIntentDataColumn(SQLiteDatabase db) {
+            db.beginTransaction();
+            Cursor c = null;
+            try {
+                // The favorites table was created with the column if it was rebuilt by an
+                // earlier step of the upgrade
+                c = db.rawQuery("PRAGMA table_info(" + TABLE_FAVORITES + ")", null);
+                boolean hasColumn = false;
+                while (c.moveToNext()) {
+                    hasColumn |= Favorites.INTENT_DATA.equals(c.getString(1));
+                }
+                c.close();
+                if (!hasColumn) {
+                    db.execSQL("ALTER TABLE " + TABLE_FAVORITES + " ADD COLUMN "
+                            + Favorites.INTENT_DATA + " BLOB;");
+                }
+
+                c = db.query(TABLE_FAVORITES, new String[] { Favorites._ID, Favorites.INTENT },
+                        Favorites.INTENT + " IS NOT NULL", null, null, null, null);
+                ContentValues values = new ContentValues();
+                while (c.moveToNext()) {
+                    values.clear();
+                    values.put(Favorites.INTENT, c.getString(1));
+                    addIntentData(values);
+                    if (values.getAsByteArray(Favorites.INTENT_DATA) != null) {
+                        db.update(TABLE_FAVORITES, values, Favorites._ID + "=" + c.getLong(0),
+                                null);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } catch (SQLException ex) {
+                // Old version remains, which means we wipe old data
+                Log.e(TAG, ex.getMessage(), ex);
+                return false;
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+                db.endTransaction();
+            }
+            return true;
+        }
+
         private boolean updateContactsShortcuts(SQLiteDatabase db) {
             final String selectWhere = buildOrWhereString(Favorites.ITEM_TYPE,
                     new int[] { Favorites.ITEM_TYPE_SHORTCUT });
@@ -1042,18 +1769,19 @@ public class LauncherProvider extends ContentProvider {
             }
         }
 
-        // Generates a new ID to use for an object in your database. This method should be only
-        // called from the main UI thread. As an exception, we do call it when we call the
-        // constructor from the worker thread; however, this doesn't extend until after the
-        // constructor is called, and we only pass a reference to LauncherProvider to LauncherApp
-        // after that point
+        // Generates a new ID to use for an object in your database. This method can be called
+        // from any thread.
         @Override
         public long generateNewItemId() {
-            if (mMaxItemId < 0) {
+            return generateNewItemIds(1);
+        }
+
+        /** Reserves {@param count} consecutive item ids, and returns the first one. */
+        public long generateNewItemIds(int count) {
+            if (mMaxItemId.get() < 0) {
                 throw new RuntimeException("Error: max item id was not initialized");
             }
-            mMaxItemId += 1;
-            return mMaxItemId;
+            return mMaxItemId.addAndGet(count) - count + 1;
         }
 
         @Override
@@ -1062,18 +1790,28 @@ public class LauncherProvider extends ContentProvider {
         }
 
         public void updateMaxItemId(long id) {
-            mMaxItemId = id + 1;
+            mMaxItemId.set(id + 1);
         }
 
         public void checkId(String table, ContentValues values) {
             long id = values.getAsLong(LauncherSettings.BaseLauncherColumns._ID);
             if (table == LauncherProvider.TABLE_WORKSPACE_SCREENS) {
-                mMaxScreenId = Math.max(id, mMaxScreenId);
+                raiseMaxId(mMaxScreenId, id);
             }  else {
-                mMaxItemId = Math.max(id, mMaxItemId);
+                raiseMaxId(mMaxItemId, id);
             }
         }
 
+        private static void raiseMaxId(AtomicLong maxId, long id) {
+            long current;
+            do {
+                current = maxId.get();
+                if (current >= id) {
+                    return;
+                }
+            } while (!maxId.compareAndSet(current, id));
+        }
+
         private long initializeMaxItemId(SQLiteDatabase db) {
             Cursor c = db.rawQuery("SELECT MAX(_id) FROM favorites", null);
 
@@ -1094,25 +1832,22 @@ public class LauncherProvider extends ContentProvider {
             return id;
         }
 
-        // Generates a new ID to use for an workspace screen in your database. This method
-        // should be only called from the main UI thread. As an exception, we do call it when we
-        // call the constructor from the worker thread; however, this doesn't extend until after the
-        // constructor is called, and we only pass a reference to LauncherProvider to LauncherApp
-        // after that point
+        // Generates a new ID to use for an workspace screen in your database. This method can be
+        // called from any thread.
         public long generateNewScreenId() {
-            if (mMaxScreenId < 0) {
+            if (mMaxScreenId.get() < 0) {
                 throw new RuntimeException("Error: max screen id was not initialized");
             }
-            mMaxScreenId += 1;
+            long screenId = mMaxScreenId.incrementAndGet();
             // Log to disk
-            Launcher.addDumpLog(TAG, "11683562 - generateNewScreenId(): " + mMaxScreenId, true);
-            return mMaxScreenId;
+            Launcher.addDumpLog(TAG, "11683562 - generateNewScreenId(): " + screenId, true);
+            return screenId;
         }
 
         public void updateMaxScreenId(long maxScreenId) {
             // Log to disk
             Launcher.addDumpLog(TAG, "11683562 - updateMaxScreenId(): " + maxScreenId, true);
-            mMaxScreenId = maxScreenId;
+            mMaxScreenId.set(maxScreenId);
         }
 
         private long initializeMaxScreenId(SQLiteDatabase db) {
@@ -1221,7 +1956,7 @@ public class LauncherProvider extends ContentProvider {
             }
 
             // Update max item id
-            mMaxItemId = initializeMaxItemId(db);
+            mMaxItemId.set(initializeMaxItemId(db));
             if (LOGD) Log.d(TAG, "mMaxItemId: " + mMaxItemId);
         }
 
@@ -1313,6 +2048,7 @@ public class LauncherProvider extends ContentProvider {
         }
 
         private int loadFavorites(SQLiteDatabase db, AutoInstallsLayout loader) {
+            clearFlagWorkspaceVerified();
             ArrayList<Long> screenIds = new ArrayList<Long>();
             // TODO: Use multiple loaders with fall-back and transaction.
             int count = loader.loadLayout(db, screenIds);
@@ -1333,8 +2069,8 @@ public class LauncherProvider extends ContentProvider {
             }
 
             // Ensure that the max ids are initialized
-            mMaxItemId = initializeMaxItemId(db);
-            mMaxScreenId = initializeMaxScreenId(db);
+            mMaxItemId.set(initializeMaxItemId(db));
+            mMaxScreenId.set(initializeMaxScreenId(db));
 
             return count;
         }
@@ -1345,6 +2081,7 @@ public class LauncherProvider extends ContentProvider {
         }
 
         private void migrateLauncher2Shortcuts(SQLiteDatabase db, Uri uri) {
+            clearFlagWorkspaceVerified();
             final ContentResolver resolver = mContext.getContentResolver();
             Cursor c = null;
             int count = 0;
@@ -1359,7 +2096,8 @@ public class LauncherProvider extends ContentProvider {
             // We already have a favorites database in the old provider
             if (c != null) {
                 try {
-                    if (c.getCount() > 0) {
+                    final int total = c.getCount();
+                    if (total > 0) {
                         final int idIndex = c.getColumnIndexOrThrow(LauncherSettings.Favorites._ID);
                         final int intentIndex
                                 = c.getColumnIndexOrThrow(LauncherSettings.Favorites.INTENT);
@@ -1390,228 +2128,228 @@ public class LauncherProvider extends ContentProvider {
                         final int profileIndex
                                 = c.getColumnIndex(LauncherSettings.Favorites.PROFILE_ID);
 
-                        int i = 0;
-                        int curX = 0;
-                        int curY = 0;
-
                         final LauncherAppState app = LauncherAppState.getInstance();
                         final DeviceProfile grid = app.getDynamicGrid().getDeviceProfile();
                         final int width = (int) grid.numColumns;
                         final int height = (int) grid.numRows;
                         final int hotseatWidth = (int) grid.numHotseatIcons;
-
-                        final HashSet<String> seenIntents = new HashSet<String>(c.getCount());
-
-                        final ArrayList<ContentValues> shortcuts = new ArrayList<ContentValues>();
-                        final ArrayList<ContentValues> folders = new ArrayList<ContentValues>();
+                        final UserManagerCompat userManager =
+                                UserManagerCompat.getInstance(mContext);
+
+                        final HashSet<String> seenIntents = new HashSet<String>(total);
+                        // The next free cell on the desktop, as {screen, x, y}
+                        final int[] desktopCell = new int[] { curScreen, 0, 0 };
+                        // Hotseat items are placed once all of them are known. There are only a
+                        // few of them, unlike the rest, which are inserted in batches as they are
+                        // read so that the whole table is never in memory.
                         final SparseArray<ContentValues> hotseat = new SparseArray<ContentValues>();
+                        final ArrayList<ContentValues> batch =
+                                new ArrayList<ContentValues>(MIGRATION_BATCH_SIZE);
+                        int read = 0;
 
-                        while (c.moveToNext()) {
-                            final int itemType = c.getInt(itemTypeIndex);
-                            if (itemType != Favorites.ITEM_TYPE_APPLICATION
-                                    && itemType != Favorites.ITEM_TYPE_SHORTCUT
-                                    && itemType != Favorites.ITEM_TYPE_FOLDER) {
-                                continue;
-                            }
-
-                            final int cellX = c.getInt(cellXIndex);
-                            final int cellY = c.getInt(cellYIndex);
-                            final int screen = c.getInt(screenIndex);
-                            int container = c.getInt(containerIndex);
-                            final String intentStr = c.getString(intentIndex);
-
-                            UserManagerCompat userManager = UserManagerCompat.getInstance(mContext);
-                            UserHandleCompat userHandle;
-                            final long userSerialNumber;
-                            if (profileIndex != -1 && !c.isNull(profileIndex)) {
-                                userSerialNumber = c.getInt(profileIndex);
-                                userHandle = userManager.getUserForSerialNumber(userSerialNumber);
-                            } else {
-                                // Default to the serial number of this user, for older
-                                // shortcuts.
-                                userHandle = UserHandleCompat.myUserHandle();
-                                userSerialNumber = userManager.getSerialNumberForUser(userHandle);
-                            }
-
-                            if (userHandle == null) {
-                                Launcher.addDumpLog(TAG, "skipping deleted user", true);
-                                continue;
-                            }
-
-                            Launcher.addDumpLog(TAG, "migrating \""
-                                + c.getString(titleIndex) + "\" ("
-                                + cellX + "," + cellY + "@"
-                                + LauncherSettings.Favorites.containerToString(container)
-                                + "/" + screen
-                                + "): " + intentStr, true);
-
-                            if (itemType != Favorites.ITEM_TYPE_FOLDER) {
-
-                                final Intent intent;
-                                final ComponentName cn;
-                                try {
-                                    intent = Intent.parseUri(intentStr, 0);
-                                } catch (URISyntaxException e) {
-                                    // bogus intent?
-                                    Launcher.addDumpLog(TAG,
-                                            "skipping invalid intent uri", true);
-                                    continue;
-                                }
-
-                                cn = intent.getComponent();
-                                if (TextUtils.isEmpty(intentStr)) {
-                                    // no intent? no icon
-                                    Launcher.addDumpLog(TAG, "skipping empty intent", true);
-                                    continue;
-                                } else if (cn != null &&
-                                        !LauncherModel.isValidPackageActivity(mContext, cn,
-                                                userHandle)) {
-                                    // component no longer exists.
-                                    Launcher.addDumpLog(TAG, "skipping item whose component " +
-                                            "no longer exists.", true);
-                                    continue;
-                                } else if (container ==
-                                        LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                                    // Dedupe icons directly on the workspace
-
-                                    // Canonicalize
-                                    // the Play Store sets the package parameter, but Launcher
-                                    // does not, so we clear that out to keep them the same.
-                                    // Also ignore intent flags for the purposes of deduping.
-                                    intent.setPackage(null);
-                                    int flags = intent.getFlags();
-                                    intent.setFlags(0);
-                                    final String key = intent.toUri(0);
-                                    intent.setFlags(flags);
-                                    if (seenIntents.contains(key)) {
-                                        Launcher.addDumpLog(TAG, "skipping duplicate", true);
+                        db.beginTransaction();
+                        try {
+                            // Folders first, then shortcuts, so that the folders are laid out
+                            // first on the desktop
+                            for (int pass = 0; pass < 2; pass++) {
+                                final boolean foldersPass = pass == 0;
+                                c.moveToPosition(-1);
+                                while (c.moveToNext()) {
+                                    final int itemType = c.getInt(itemTypeIndex);
+                                    if (itemType != Favorites.ITEM_TYPE_APPLICATION
+                                            && itemType != Favorites.ITEM_TYPE_SHORTCUT
+                                            && itemType != Favorites.ITEM_TYPE_FOLDER) {
                                         continue;
+                                    }
+                                    if ((itemType == Favorites.ITEM_TYPE_FOLDER) != foldersPass) {
+                                        continue;
+                                    }
+                                    read++;
+
+                                    final int cellX = c.getInt(cellXIndex);
+                                    final int cellY = c.getInt(cellYIndex);
+                                    final int screen = c.getInt(screenIndex);
+                                    int container = c.getInt(containerIndex);
+                                    final String intentStr = c.getString(intentIndex);
+
+                                    UserHandleCompat userHandle;
+                                    final long userSerialNumber;
+                                    if (profileIndex != -1 && !c.isNull(profileIndex)) {
+                                        userSerialNumber = c.getInt(profileIndex);
+                                        userHandle = userManager.getUserForSerialNumber(
+                                                userSerialNumber);
                                     } else {
-                                        seenIntents.add(key);
+                                        // Default to the serial number of this user, for older
+                                        // shortcuts.
+                                        userHandle = UserHandleCompat.myUserHandle();
+                                        userSerialNumber =
+                                                userManager.getSerialNumberForUser(userHandle);
                                     }
-                                }
-                            }
 
-                            ContentValues values = new ContentValues(c.getColumnCount());
-                            values.put(LauncherSettings.Favorites._ID, c.getInt(idIndex));
-                            values.put(LauncherSettings.Favorites.INTENT, intentStr);
-                            values.put(LauncherSettings.Favorites.TITLE, c.getString(titleIndex));
-                            values.put(LauncherSettings.Favorites.ICON_TYPE,
-                                    c.getInt(iconTypeIndex));
-                            values.put(LauncherSettings.Favorites.ICON, c.getBlob(iconIndex));
-                            values.put(LauncherSettings.Favorites.ICON_PACKAGE,
-                                    c.getString(iconPackageIndex));
-                            values.put(LauncherSettings.Favorites.ICON_RESOURCE,
-                                    c.getString(iconResourceIndex));
-                            values.put(LauncherSettings.Favorites.ITEM_TYPE, itemType);
-                            values.put(LauncherSettings.Favorites.APPWIDGET_ID, -1);
-                            values.put(LauncherSettings.Favorites.URI, c.getString(uriIndex));
-                            values.put(LauncherSettings.Favorites.DISPLAY_MODE,
-                                    c.getInt(displayModeIndex));
-                            values.put(LauncherSettings.Favorites.PROFILE_ID, userSerialNumber);
-
-                            if (container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
-                                hotseat.put(screen, values);
-                            }
+                                    if (userHandle == null) {
+                                        Launcher.addDumpLog(TAG, "skipping deleted user", true);
+                                        continue;
+                                    }
 
-                            if (container != LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                                // In a folder or in the hotseat, preserve position
-                                values.put(LauncherSettings.Favorites.SCREEN, screen);
-                                values.put(LauncherSettings.Favorites.CELLX, cellX);
-                                values.put(LauncherSettings.Favorites.CELLY, cellY);
-                            } else {
-                                // For items contained directly on one of the workspace screen,
-                                // we'll determine their location (screen, x, y) in a second pass.
-                            }
+                                    Launcher.addDumpLog(TAG, "migrating \""
+                                        + c.getString(titleIndex) + "\" ("
+                                        + cellX + "," + cellY + "@"
+                                        + LauncherSettings.Favorites.containerToString(container)
+                                        + "/" + screen
+                                        + "): " + intentStr, true);
+
+                                    if (itemType != Favorites.ITEM_TYPE_FOLDER) {
+
+                                        final Intent intent;
+                                        final ComponentName cn;
+                                        try {
+                                            intent = Intent.parseUri(intentStr, 0);
+                                        } catch (URISyntaxException e) {
+                                            // bogus intent?
+                                            Launcher.addDumpLog(TAG,
+                                                    "skipping invalid intent uri", true);
+                                            continue;
+                                        }
+
+                                        cn = intent.getComponent();
+                                        if (TextUtils.isEmpty(intentStr)) {
+                                            // no intent? no icon
+                                            Launcher.addDumpLog(TAG, "skipping empty intent",
+                                                    true);
+                                            continue;
+                                        } else if (cn != null &&
+                                                !LauncherModel.isValidPackageActivity(mContext,
+                                                        cn, userHandle)) {
+                                            // component no longer exists.
+                                            Launcher.addDumpLog(TAG, "skipping item whose "
+                                                    + "component no longer exists.", true);
+                                            continue;
+                                        } else if (container ==
+                                                LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                                            // Dedupe icons directly on the workspace
+
+                                            // Canonicalize
+                                            // the Play Store sets the package parameter, but
+                                            // Launcher does not, so we clear that out to keep
+                                            // them the same. Also ignore intent flags for the
+                                            // purposes of deduping.
+                                            intent.setPackage(null);
+                                            int flags = intent.getFlags();
+                                            intent.setFlags(0);
+                                            final String key = intent.toUri(0);
+                                            intent.setFlags(flags);
+                                            if (seenIntents.contains(key)) {
+                                                Launcher.addDumpLog(TAG, "skipping duplicate",
+                                                        true);
+                                                continue;
+                                            } else {
+                                                seenIntents.add(key);
+                                            }
+                                        }
+                                    }
 
-                            values.put(LauncherSettings.Favorites.CONTAINER, container);
+                                    ContentValues values = new ContentValues(c.getColumnCount());
+                                    values.put(LauncherSettings.Favorites._ID, c.getInt(idIndex));
+                                    values.put(LauncherSettings.Favorites.INTENT, intentStr);
+                                    values.put(LauncherSettings.Favorites.TITLE,
+                                            c.getString(titleIndex));
+                                    values.put(LauncherSettings.Favorites.ICON_TYPE,
+                                            c.getInt(iconTypeIndex));
+                                    values.put(LauncherSettings.Favorites.ICON,
+                                            c.getBlob(iconIndex));
+                                    values.put(LauncherSettings.Favorites.ICON_PACKAGE,
+                                            c.getString(iconPackageIndex));
+                                    values.put(LauncherSettings.Favorites.ICON_RESOURCE,
+                                            c.getString(iconResourceIndex));
+                                    values.put(LauncherSettings.Favorites.ITEM_TYPE, itemType);
+                                    values.put(LauncherSettings.Favorites.APPWIDGET_ID, -1);
+                                    values.put(LauncherSettings.Favorites.URI,
+                                            c.getString(uriIndex));
+                                    values.put(LauncherSettings.Favorites.DISPLAY_MODE,
+                                            c.getInt(displayModeIndex));
+                                    values.put(LauncherSettings.Favorites.PROFILE_ID,
+                                            userSerialNumber);
+                                    values.put(LauncherSettings.Favorites.CONTAINER, container);
+
+                                    if (container == LauncherSettings.Favorites.CONTAINER_DESKTOP) {
+                                        // Items directly on the workspace are laid out again
+                                        placeOnNextDesktopCell(values, desktopCell, width,
+                                                height);
+                                    } else {
+                                        // In a folder or in the hotseat, preserve position
+                                        values.put(LauncherSettings.Favorites.SCREEN, screen);
+                                        values.put(LauncherSettings.Favorites.CELLX, cellX);
+                                        values.put(LauncherSettings.Favorites.CELLY, cellY);
+                                    }
 
-                            if (itemType != Favorites.ITEM_TYPE_FOLDER) {
-                                shortcuts.add(values);
-                            } else {
-                                folders.add(values);
-                            }
-                        }
+                                    if (container == LauncherSettings.Favorites.CONTAINER_HOTSEAT) {
+                                        hotseat.put(screen, values);
+                                        continue;
+                                    }
 
-                        // Now that we have all the hotseat icons, let's go through them left-right
-                        // and assign valid locations for them in the new hotseat
-                        final int N = hotseat.size();
-                        for (int idx=0; idx<N; idx++) {
-                            int hotseatX = hotseat.keyAt(idx);
-                            ContentValues values = hotseat.valueAt(idx);
-
-                            if (hotseatX == grid.hotseatAllAppsRank) {
-                                // let's drop this in the next available hole in the hotseat
-                                while (++hotseatX < hotseatWidth) {
-                                    if (hotseat.get(hotseatX) == null) {
-                                        // found a spot! move it here
-                                        values.put(LauncherSettings.Favorites.SCREEN,
-                                                hotseatX);
-                                        break;
+                                    batch.add(values);
+                                    if (batch.size() >= MIGRATION_BATCH_SIZE) {
+                                        if (!insertMigratedBatch(db, batch)) {
+                                            return;
+                                        }
+                                        count += batch.size();
+                                        batch.clear();
+                                        Launcher.addDumpLog(TAG, "migration progress: read "
+                                                + read + " of " + total + " rows, migrated "
+                                                + count, true);
                                     }
                                 }
                             }
-                            if (hotseatX >= hotseatWidth) {
-                                // no room for you in the hotseat? it's off to the desktop with you
-                                values.put(LauncherSettings.Favorites.CONTAINER,
-                                           Favorites.CONTAINER_DESKTOP);
-                            }
-                        }
 
-                        final ArrayList<ContentValues> allItems = new ArrayList<ContentValues>();
-                        // Folders first
-                        allItems.addAll(folders);
-                        // Then shortcuts
-                        allItems.addAll(shortcuts);
-
-                        // Layout all the folders
-                        for (ContentValues values: allItems) {
-                            if (values.getAsInteger(LauncherSettings.Favorites.CONTAINER) !=
-                                    LauncherSettings.Favorites.CONTAINER_DESKTOP) {
-                                // Hotseat items and folder items have already had their
-                                // location information set. Nothing to be done here.
-                                continue;
-                            }
-                            values.put(LauncherSettings.Favorites.SCREEN, curScreen);
-                            values.put(LauncherSettings.Favorites.CELLX, curX);
-                            values.put(LauncherSettings.Favorites.CELLY, curY);
-                            curX = (curX + 1) % width;
-                            if (curX == 0) {
-                                curY = (curY + 1);
-                            }
-                            // Leave the last row of icons blank on every screen
-                            if (curY == height - 1) {
-                                curScreen = (int) generateNewScreenId();
-                                curY = 0;
+                            // Now that we have all the hotseat icons, let's go through them
+                            // left-right and assign valid locations for them in the new hotseat
+                            final boolean[] hotseatOccupied = new boolean[hotseatWidth];
+                            for (int idx = 0; idx < hotseat.size(); idx++) {
+                                int rank = hotseat.keyAt(idx);
+                                if (rank >= 0 && rank < hotseatWidth
+                                        && rank != grid.hotseatAllAppsRank) {
+                                    hotseatOccupied[rank] = true;
+                                }
                             }
-                        }
-
-                        if (allItems.size() > 0) {
-                            db.beginTransaction();
-                            try {
-                                for (ContentValues row: allItems) {
-                                    if (row == null) continue;
-                                    if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, row)
-                                            < 0) {
-                                        return;
-                                    } else {
-                                        count++;
+                            for (int idx = 0; idx < hotseat.size(); idx++) {
+                                int hotseatX = hotseat.keyAt(idx);
+                                ContentValues values = hotseat.valueAt(idx);
+
+                                if (hotseatX == grid.hotseatAllAppsRank) {
+                                    // let's drop this in the next available hole in the hotseat
+                                    while (++hotseatX < hotseatWidth) {
+                                        if (!hotseatOccupied[hotseatX]) {
+                                            // found a spot! move it here
+                                            hotseatOccupied[hotseatX] = true;
+                                            values.put(LauncherSettings.Favorites.SCREEN,
+                                                    hotseatX);
+                                            break;
+                                        }
                                     }
                                 }
-                                db.setTransactionSuccessful();
-                            } finally {
-                                db.endTransaction();
+                                if (hotseatX >= hotseatWidth) {
+                                    // no room for you in the hotseat? it's off to the desktop
+                                    // with you
+                                    values.put(LauncherSettings.Favorites.CONTAINER,
+                                               Favorites.CONTAINER_DESKTOP);
+                                    placeOnNextDesktopCell(values, desktopCell, width, height);
+                                }
+                                batch.add(values);
                             }
-                        }
 
-                        db.beginTransaction();
-                        try {
-                            for (i=0; i<=curScreen; i++) {
+                            if (!insertMigratedBatch(db, batch)) {
+                                return;
+                            }
+                            count += batch.size();
+                            batch.clear();
+
+                            curScreen = desktopCell[0];
+                            for (int i = 0; i <= curScreen; i++) {
                                 final ContentValues values = new ContentValues();
                                 values.put(LauncherSettings.WorkspaceScreens._ID, i);
                                 values.put(LauncherSettings.WorkspaceScreens.SCREEN_RANK, i);
-                                if (dbInsertAndCheck(this, db, TABLE_WORKSPACE_SCREENS, null, values)
-                                        < 0) {
+                                if (dbInsertAndCheck(this, db, TABLE_WORKSPACE_SCREENS, null,
+                                        values) < 0) {
                                     return;
                                 }
                             }
@@ -1632,10 +2370,39 @@ public class LauncherProvider extends ContentProvider {
             setFlagJustLoadedOldDb();
 
             // Update max IDs; very important since we just grabbed IDs from another database
-            mMaxItemId = initializeMaxItemId(db);
-            mMaxScreenId = initializeMaxScreenId(db);
+            mMaxItemId.set(initializeMaxItemId(db));
+            mMaxScreenId.set(initializeMaxScreenId(db));
             if (LOGD) Log.d(TAG, "mMaxItemId: " + mMaxItemId + " mMaxScreenId: " + mMaxScreenId);
         }
+
+        /**
+         * Puts the item in {@param values} in the next free cell of the desktop, and moves
+         * {@param cell}, the next free cell as {screen, x, y}, past it.
+         */
+        private void placeOnNextDesktopCell(ContentValues values, int[] cell, int width,
+                int height) {
+            values.put(LauncherSettings.Favorites.SCREEN, cell[0]);
+            values.put(LauncherSettings.Favorites.CELLX, cell[1]);
+            values.put(LauncherSettings.Favorites.CELLY, cell[2]);
+            cell[1] = (cell[1] + 1) % width;
+            if (cell[1] == 0) {
+                cell[2] = (cell[2] + 1);
+            }
+            // Leave the last row of icons blank on every screen
+            if (cell[2] == height - 1) {
+                cell[0] = (int) generateNewScreenId();
+                cell[2] = 0;
+            }
+        }
+
+        private boolean insertMigratedBatch(SQLiteDatabase db, ArrayList<ContentValues> batch) {
+            for (ContentValues row : batch) {
+                if (dbInsertAndCheck(this, db, TABLE_FAVORITES, null, row) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
     /**
@@ -1657,19 +2424,23 @@ public class LauncherProvider extends ContentProvider {
         public final String table;
         public final String where;
         public final String[] args;
+        // The id of the row, if the uri is for a single row, or -1
+        public final long id;
 
         SqlArguments(Uri url, String where, String[] args) {
             if (url.getPathSegments().size() == 1) {
                 this.table = url.getPathSegments().get(0);
                 this.where = where;
                 this.args = args;
+                this.id = -1;
             } else if (url.getPathSegments().size() != 2) {
                 throw new IllegalArgumentException("Invalid URI: " + url);
             } else if (!TextUtils.isEmpty(where)) {
                 throw new UnsupportedOperationException("WHERE clause not supported: " + url);
             } else {
                 this.table = url.getPathSegments().get(0);
-                this.where = "_id=" + ContentUris.parseId(url);
+                this.id = ContentUris.parseId(url);
+                this.where = "_id=" + id;
                 this.args = null;
             }
         }
@@ -1679,6 +2450,7 @@ public class LauncherProvider extends ContentProvider {
                 table = url.getPathSegments().get(0);
                 where = null;
                 args = null;
+                id = -1;
             } else {
                 throw new IllegalArgumentException("Invalid URI: " + url);
             }
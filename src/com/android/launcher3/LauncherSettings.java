@@ -297,5 +297,13 @@ class LauncherSettings {
          * <P>Type: INTEGER</P>
          */
         static final String RESTORED = "restored";
+
+        /**
+         * The intent of the item in the compact form written by {@link IntentCodec}, or null if
+         * it can only be described by {@link #INTENT}. Kept up to date by the provider whenever
+         * the intent is written.
+         * <P>Type: BLOB</P>
+         */
+        static final String INTENT_DATA = "intentData";
     }
 }
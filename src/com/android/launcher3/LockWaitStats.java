@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+/**
+ * Records how long callers waited to acquire a lock, per call site, with a histogram of the
+ * waits. Waits on the main thread are kept apart from the others. Usage:
+ * <pre>
+ *     final long waitStart = System.nanoTime();
+ *     synchronized (lock) {
+ *         stats.record("callSite", waitStart);
+ *         ...
+ * </pre>
+ */
+class LockWaitStats {
+    private static final String TAG = "Launcher.LockWaitStats";
+
+    // Waits longer than this on the main thread are logged as they happen.
+    private static final long MAIN_THREAD_WAIT_WARNING_NS = 16 * 1000000L;
+
+    // Upper bounds of the buckets of the histogram, the last bucket has the longer waits
+    private static final long[] BUCKET_BOUNDS_MS = { 1, 4, 16, 64 };
+    private static final int FIRST_BUCKET = 3;
+
+    private final String mName;
+
+    // Per call site: number of acquisitions, total wait and longest wait, in nanoseconds,
+    // followed by the number of waits in each bucket
+    private final HashMap<String, long[]> mWaits = new HashMap<String, long[]>();
+
+    LockWaitStats(String name) {
+        mName = name;
+    }
+
+    void record(String callSite, long waitStartNs) {
+        final long wait = System.nanoTime() - waitStartNs;
+        final boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        final String key = onMainThread ? callSite + " [main]" : callSite;
+        synchronized (mWaits) {
+            long[] stats = mWaits.get(key);
+            if (stats == null) {
+                stats = new long[FIRST_BUCKET + BUCKET_BOUNDS_MS.length + 1];
+                mWaits.put(key, stats);
+            }
+            stats[0]++;
+            stats[1] += wait;
+            stats[2] = Math.max(stats[2], wait);
+            int bucket = 0;
+            while (bucket < BUCKET_BOUNDS_MS.length && wait >= BUCKET_BOUNDS_MS[bucket] * 1000000) {
+                bucket++;
+            }
+            stats[FIRST_BUCKET + bucket]++;
+        }
+        if (wait > MAIN_THREAD_WAIT_WARNING_NS && onMainThread) {
+            Log.w(TAG, "main thread waited " + (wait / 1000000) + "ms for " + mName
+                    + " in " + callSite);
+        }
+    }
+
+    void dumpState() {
+        synchronized (mWaits) {
+            for (Entry<String, long[]> e : mWaits.entrySet()) {
+                long[] stats = e.getValue();
+                StringBuilder histogram = new StringBuilder();
+                for (int i = 0; i <= BUCKET_BOUNDS_MS.length; i++) {
+                    histogram.append(i < BUCKET_BOUNDS_MS.length
+                            ? " <" + BUCKET_BOUNDS_MS[i] + "ms=" : " more=");
+                    histogram.append(stats[FIRST_BUCKET + i]);
+                }
+                Log.d(TAG, mName + " " + e.getKey() + ": count=" + stats[0]
+                        + " total=" + (stats[1] / 1000000) + "ms"
+                        + " max=" + (stats[2] / 1000000) + "ms" + histogram);
+            }
+        }
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.android.launcher3.compat.UserHandleCompat;
+import com.android.launcher3.compat.UserManagerCompat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * A compact binary copy of the loaded workspace and all apps list. It is written once the loader
+ * is done, and read back on the next process start so that the launcher can bind before it
+ * queries the database and the package manager.
+ *
+ * A snapshot is only ever a hint: the loader always verifies it against a full load, and binds
+ * the differences. Changes to the database only mark the snapshot as stale, and it is written
+ * again once the launcher is idle. Switching to another layout deletes it.
+ */
+class ModelSnapshot {
+    private static final String TAG = "Launcher.ModelSnapshot";
+
+    // Bump this whenever the format changes.
+    private static final int VERSION = 1;
+
+    final ArrayList<Long> workspaceScreens = new ArrayList<Long>();
+    final HashMap<Long, ItemInfo> itemsIdMap = new HashMap<Long, ItemInfo>();
+    final ArrayList<ItemInfo> workspaceItems = new ArrayList<ItemInfo>();
+    final ArrayList<LauncherAppWidgetInfo> appWidgets = new ArrayList<LauncherAppWidgetInfo>();
+    final HashMap<Long, FolderInfo> folders = new HashMap<Long, FolderInfo>();
+    final ArrayList<AppInfo> apps = new ArrayList<AppInfo>();
+
+    // Set when the database changes, until the snapshot is written again
+    private static volatile boolean sStale;
+
+    private ModelSnapshot() {
+    }
+
+    private static File getFile(Context context) {
+        return context.getFileStreamPath(LauncherFiles.MODEL_SNAPSHOT);
+    }
+
+    static boolean exists(Context context) {
+        return getFile(context).exists();
+    }
+
+    /** Called whenever the launcher database changes. */
+    static void markStale() {
+        sStale = true;
+    }
+
+    /** Returns whether the database changed since the snapshot was last written. */
+    static boolean isStale() {
+        return sStale;
+    }
+
+    /**
+     * Called before copying the model to write it, so that the changes made meanwhile mark the
+     * snapshot as stale again.
+     */
+    static void clearStale() {
+        sStale = false;
+    }
+
+    /**
+     * Deletes the snapshot, if there is one. Called when the database is replaced as a whole.
+     */
+    static void invalidate(Context context) {
+        File file = getFile(context);
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete model snapshot");
+        }
+    }
+
+    /**
+     * Writes a snapshot of the given model. Should be called on the worker thread, with copies
+     * of the sBg data structures.
+     */
+    static void write(Context context, IconCache iconCache, ArrayList<Long> workspaceScreens,
+            HashMap<Long, ItemInfo> itemsIdMap, HashMap<Long, FolderInfo> folders,
+            ArrayList<AppInfo> apps) {
+        final long t = LauncherModel.DEBUG_LOADERS ? System.currentTimeMillis() : 0;
+        final UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        final File file = getFile(context);
+        final File tmpFile = new File(file.getPath() + ".tmp");
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            writeHeader(context, out);
+
+            out.writeInt(workspaceScreens.size());
+            for (long screenId : workspaceScreens) {
+                out.writeLong(screenId);
+            }
+
+            // Folders first, so that their contents can be added to them while reading.
+            out.writeInt(folders.size());
+            for (FolderInfo folder : folders.values()) {
+                out.writeBoolean(itemsIdMap.containsKey(folder.id));
+                writeItem(out, folder, userManager, iconCache);
+            }
+
+            ArrayList<ItemInfo> items = new ArrayList<ItemInfo>();
+            for (FolderInfo folder : folders.values()) {
+                items.addAll(folder.contents);
+            }
+            for (ItemInfo item : itemsIdMap.values()) {
+                if (!(item instanceof FolderInfo) && isOnWorkspace(item)) {
+                    items.add(item);
+                }
+            }
+            out.writeInt(items.size());
+            for (ItemInfo item : items) {
+                writeItem(out, item, userManager, iconCache);
+            }
+
+            out.writeInt(apps.size());
+            for (AppInfo app : apps) {
+                out.writeUTF(app.componentName.flattenToString());
+                out.writeLong(userManager.getSerialNumberForUser(app.user));
+                writeString(out, app.title);
+                writeString(out, app.contentDescription);
+                writeString(out, app.intent.toUri(0));
+                out.writeInt(app.flags);
+                out.writeLong(app.firstInstallTime);
+                writeBitmap(out, app.usingPlaceholderIcon
+                        ? iconCache.getIcon(app.intent, app.user) : app.iconBitmap);
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(file)) {
+                Log.w(TAG, "Could not write model snapshot");
+                tmpFile.delete();
+            } else if (LauncherModel.DEBUG_LOADERS) {
+                Log.d(TAG, "wrote " + file.length() + " byte model snapshot in "
+                        + (System.currentTimeMillis() - t) + "ms");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not write model snapshot", e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot written by {@link #write}. Returns null if there is no snapshot, or if
+     * it was written for a different configuration.
+     */
+    static ModelSnapshot read(Context context) {
+        final File file = getFile(context);
+        if (!file.exists()) {
+            return null;
+        }
+
+        final long t = LauncherModel.DEBUG_LOADERS ? System.currentTimeMillis() : 0;
+        final UserManagerCompat userManager = UserManagerCompat.getInstance(context);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (!readHeader(context, in)) {
+                return null;
+            }
+
+            ModelSnapshot snapshot = new ModelSnapshot();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                snapshot.workspaceScreens.add(in.readLong());
+            }
+
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                boolean inModel = in.readBoolean();
+                FolderInfo folder = (FolderInfo) readItem(in, userManager);
+                if (folder == null) {
+                    return null;
+                }
+                snapshot.folders.put(folder.id, folder);
+                if (inModel) {
+                    snapshot.itemsIdMap.put(folder.id, folder);
+                    if (isOnWorkspace(folder)) {
+                        snapshot.workspaceItems.add(folder);
+                    }
+                }
+            }
+
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                ItemInfo item = readItem(in, userManager);
+                if (item == null) {
+                    return null;
+                }
+                if (item instanceof LauncherAppWidgetInfo) {
+                    snapshot.appWidgets.add((LauncherAppWidgetInfo) item);
+                } else if (isOnWorkspace(item)) {
+                    snapshot.workspaceItems.add(item);
+                } else {
+                    FolderInfo folder = snapshot.folders.get(item.container);
+                    if (folder == null) {
+                        return null;
+                    }
+                    folder.add((ShortcutInfo) item);
+                }
+                snapshot.itemsIdMap.put(item.id, item);
+            }
+
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                AppInfo app = new AppInfo();
+                app.componentName = ComponentName.unflattenFromString(in.readUTF());
+                app.user = userManager.getUserForSerialNumber(in.readLong());
+                if (app.user == null) {
+                    return null;
+                }
+                app.title = readString(in);
+                app.contentDescription = readString(in);
+                app.intent = Intent.parseUri(readString(in), 0);
+                app.flags = in.readInt();
+                app.firstInstallTime = in.readLong();
+                app.iconBitmap = readBitmap(in);
+                if (app.iconBitmap == null) {
+                    return null;
+                }
+                snapshot.apps.add(app);
+            }
+
+            if (LauncherModel.DEBUG_LOADERS) {
+                Log.d(TAG, "read model snapshot in " + (System.currentTimeMillis() - t) + "ms");
+            }
+            return snapshot;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read model snapshot", e);
+        } catch (URISyntaxException e) {
+            Log.w(TAG, "Could not read model snapshot", e);
+        } catch (RuntimeException e) {
+            // Corrupt data, eg. an item of an unexpected type.
+            Log.w(TAG, "Could not read model snapshot", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a description of everything about {@param info} which affects where and how it
+     * is bound, other than its title and icon. Two items with the same id and signature can be
+     * used in place of each other once their title and icon are updated.
+     */
+    static String getSignature(ItemInfo info) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(info.itemType).append(',').append(info.container)
+                .append(',').append(info.screenId)
+                .append(',').append(info.cellX).append(',').append(info.cellY)
+                .append(',').append(info.spanX).append(',').append(info.spanY)
+                .append(',').append(info.minSpanX).append(',').append(info.minSpanY)
+                .append(',').append(info.user);
+        if (info instanceof ShortcutInfo) {
+            ShortcutInfo shortcut = (ShortcutInfo) info;
+            sb.append(',').append(shortcut.intent == null ? null : shortcut.intent.toUri(0))
+                    .append(',').append(shortcut.promisedIntent == null
+                            ? null : shortcut.promisedIntent.toUri(0))
+                    .append(',').append(shortcut.isDisabled)
+                    .append(',').append(shortcut.status)
+                    .append(',').append(shortcut.customIcon);
+        } else if (info instanceof FolderInfo) {
+            sb.append(',').append(info.title);
+        } else if (info instanceof LauncherAppWidgetInfo) {
+            LauncherAppWidgetInfo widget = (LauncherAppWidgetInfo) info;
+            sb.append(',').append(widget.appWidgetId)
+                    .append(',').append(widget.providerName)
+                    .append(',').append(widget.restoreStatus);
+        }
+        return sb.toString();
+    }
+
+    private static boolean isOnWorkspace(ItemInfo info) {
+        return info.container == LauncherSettings.Favorites.CONTAINER_DESKTOP
+                || info.container == LauncherSettings.Favorites.CONTAINER_HOTSEAT;
+    }
+
+    private static void writeHeader(Context context, DataOutputStream out) throws IOException {
+        DeviceProfile grid = LauncherAppState.getInstance().getDynamicGrid().getDeviceProfile();
+        out.writeInt(VERSION);
+        out.writeInt(context.getResources().getDisplayMetrics().densityDpi);
+        out.writeInt((int) grid.numColumns);
+        out.writeInt((int) grid.numRows);
+        out.writeInt((int) grid.numHotseatIcons);
+        out.writeUTF(Locale.getDefault().toString());
+    }
+
+    private static boolean readHeader(Context context, DataInputStream in) throws IOException {
+        DeviceProfile grid = LauncherAppState.getInstance().getDynamicGrid().getDeviceProfile();
+        return in.readInt() == VERSION
+                && in.readInt() == context.getResources().getDisplayMetrics().densityDpi
+                && in.readInt() == (int) grid.numColumns
+                && in.readInt() == (int) grid.numRows
+                && in.readInt() == (int) grid.numHotseatIcons
+                && in.readUTF().equals(Locale.getDefault().toString());
+    }
+
+    private static void writeItem(DataOutputStream out, ItemInfo info,
+            UserManagerCompat userManager, IconCache iconCache) throws IOException {
+        out.writeInt(info.itemType);
+        out.writeLong(info.id);
+        out.writeLong(info.container);
+        out.writeLong(info.screenId);
+        out.writeInt(info.cellX);
+        out.writeInt(info.cellY);
+        out.writeInt(info.spanX);
+        out.writeInt(info.spanY);
+        out.writeInt(info.minSpanX);
+        out.writeInt(info.minSpanY);
+        out.writeLong(userManager.getSerialNumberForUser(info.user));
+        writeString(out, info.title);
+        writeString(out, info.contentDescription);
+
+        switch (info.itemType) {
+            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                ShortcutInfo shortcut = (ShortcutInfo) info;
+                writeString(out, shortcut.intent == null ? null : shortcut.intent.toUri(0));
+                writeString(out, shortcut.promisedIntent == null
+                        ? null : shortcut.promisedIntent.toUri(0));
+                out.writeBoolean(shortcut.customIcon);
+                out.writeBoolean(shortcut.usingFallbackIcon);
+                out.writeInt(shortcut.isDisabled);
+                out.writeInt(shortcut.status);
+                out.writeInt(shortcut.flags);
+                out.writeLong(shortcut.firstInstallTime);
+                writeBitmap(out, shortcut.getIcon(iconCache));
+                break;
+            case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                LauncherAppWidgetInfo widget = (LauncherAppWidgetInfo) info;
+                out.writeInt(widget.appWidgetId);
+                out.writeUTF(widget.providerName.flattenToString());
+                out.writeInt(widget.restoreStatus);
+                break;
+        }
+    }
+
+    private static ItemInfo readItem(DataInputStream in, UserManagerCompat userManager)
+            throws IOException, URISyntaxException {
+        final int itemType = in.readInt();
+        final long id = in.readLong();
+        final long container = in.readLong();
+        final long screenId = in.readLong();
+        final int cellX = in.readInt();
+        final int cellY = in.readInt();
+        final int spanX = in.readInt();
+        final int spanY = in.readInt();
+        final int minSpanX = in.readInt();
+        final int minSpanY = in.readInt();
+        final UserHandleCompat user = userManager.getUserForSerialNumber(in.readLong());
+        final String title = readString(in);
+        final String contentDescription = readString(in);
+
+        final ItemInfo info;
+        switch (itemType) {
+            case LauncherSettings.Favorites.ITEM_TYPE_APPLICATION:
+            case LauncherSettings.Favorites.ITEM_TYPE_SHORTCUT:
+                ShortcutInfo shortcut = new ShortcutInfo();
+                String intent = readString(in);
+                String promisedIntent = readString(in);
+                shortcut.intent = intent == null ? null : Intent.parseUri(intent, 0);
+                shortcut.promisedIntent = promisedIntent == null
+                        ? null : Intent.parseUri(promisedIntent, 0);
+                shortcut.customIcon = in.readBoolean();
+                shortcut.usingFallbackIcon = in.readBoolean();
+                shortcut.isDisabled = in.readInt();
+                shortcut.status = in.readInt();
+                shortcut.flags = in.readInt();
+                shortcut.firstInstallTime = in.readLong();
+                Bitmap icon = readBitmap(in);
+                if (icon == null) {
+                    return null;
+                }
+                shortcut.setIcon(icon);
+                info = shortcut;
+                break;
+            case LauncherSettings.Favorites.ITEM_TYPE_FOLDER:
+                info = new FolderInfo();
+                break;
+            case LauncherSettings.Favorites.ITEM_TYPE_APPWIDGET:
+                int appWidgetId = in.readInt();
+                ComponentName provider = ComponentName.unflattenFromString(in.readUTF());
+                LauncherAppWidgetInfo widget = new LauncherAppWidgetInfo(appWidgetId, provider);
+                widget.restoreStatus = in.readInt();
+                info = widget;
+                break;
+            default:
+                return null;
+        }
+
+        if (user == null) {
+            // The profile has been removed since the snapshot was written.
+            return null;
+        }
+        info.itemType = itemType;
+        info.id = id;
+        info.container = container;
+        info.screenId = screenId;
+        info.cellX = cellX;
+        info.cellY = cellY;
+        info.spanX = spanX;
+        info.spanY = spanY;
+        info.minSpanX = minSpanX;
+        info.minSpanY = minSpanY;
+        info.user = user;
+        info.title = title;
+        info.contentDescription = contentDescription;
+        return info;
+    }
+
+    private static void writeString(DataOutputStream out, CharSequence s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s.toString());
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeBitmap(DataOutputStream out, Bitmap bitmap) throws IOException {
+        byte[] data = bitmap == null ? null : ItemInfo.flattenBitmap(bitmap);
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private static Bitmap readBitmap(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return BitmapFactory.decodeByteArray(data, 0, length);
+    }
+}
@@ -147,6 +147,19 @@ public final class Utilities {
         return createIconBitmap(new BitmapDrawable(context.getResources(), icon), context);
     }
 
+    /**
+     * Returns true if {@param icon} already has the size of the icons made by
+     * {@link #createIconBitmap}.
+     */
+    static boolean isIconBitmapSize(Bitmap icon, Context context) {
+        synchronized (sCanvas) {
+            if (sIconWidth == -1) {
+                initStatics(context);
+            }
+        }
+        return sIconWidth == icon.getWidth() && sIconHeight == icon.getHeight();
+    }
+
     /**
      * Returns a bitmap suitable for the all apps view.
      */
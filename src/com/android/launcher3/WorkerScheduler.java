@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.launcher3;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * Runs the work of the model on the worker thread in priority order. Each task is posted to a
+ * lane, and the next task to run is the oldest one of the most important lane which has any, so
+ * that a write the user is waiting for doesn't queue behind a reload. Tasks in the same lane run
+ * in the order they were posted. A task which is already running is never interrupted.
+ *
+ * Only one task runs per message of the handler, so that the other messages of the worker
+ * thread still get their turn.
+ */
+class WorkerScheduler {
+    private static final String TAG = "Launcher.WorkerScheduler";
+
+    /** Changes to the model and the database made by the user. */
+    static final int LANE_INTERACTIVE = 0;
+    /** Loading and binding the model. */
+    static final int LANE_LOADER = 1;
+    /** Package changes, pending installs, and database upkeep. */
+    static final int LANE_MAINTENANCE = 2;
+    private static final int LANE_COUNT = 3;
+
+    private static final String[] LANE_NAMES = { "interactive", "loader", "maintenance" };
+
+    private static class Task {
+        final Runnable runnable;
+        final long seq;
+        final long postTime;
+
+        Task(Runnable runnable, long seq) {
+            this.runnable = runnable;
+            this.seq = seq;
+            this.postTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    private class DelayedTask implements Runnable {
+        final int lane;
+        final Runnable runnable;
+
+        DelayedTask(int lane, Runnable runnable) {
+            this.lane = lane;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            synchronized (WorkerScheduler.this) {
+                if (!mDelayed.remove(this)) {
+                    // Removed in the meantime
+                    return;
+                }
+            }
+            post(lane, runnable);
+        }
+    }
+
+    private final Handler mHandler;
+
+    // Guarded by this
+    private final ArrayDeque<Task>[] mLanes;
+    // Tasks which only run once every task posted before them has run, whatever its lane
+    private final ArrayDeque<Task> mBarriers = new ArrayDeque<Task>();
+    private final ArrayList<DelayedTask> mDelayed = new ArrayList<DelayedTask>();
+    private long mNextSeq;
+    private boolean mRunPosted;
+
+    // Guarded by this. Stats for dumpState.
+    private final int[] mRunCount = new int[LANE_COUNT];
+    private final long[] mTotalWait = new long[LANE_COUNT];
+    private final long[] mMaxWait = new long[LANE_COUNT];
+    private final int[] mMaxDepth = new int[LANE_COUNT];
+
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    @SuppressWarnings("unchecked")
+    WorkerScheduler(Handler handler) {
+        mHandler = handler;
+        mLanes = new ArrayDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new ArrayDeque<Task>();
+        }
+    }
+
+    /** Posts {@param r} to run after the tasks already in {@param lane}. */
+    synchronized void post(int lane, Runnable r) {
+        mLanes[lane].add(new Task(r, mNextSeq++));
+        mMaxDepth[lane] = Math.max(mMaxDepth[lane], mLanes[lane].size());
+        scheduleRunLocked();
+    }
+
+    /** Posts {@param r} to {@param lane} once {@param delay} milliseconds have passed. */
+    synchronized void postDelayed(int lane, Runnable r, long delay) {
+        DelayedTask task = new DelayedTask(lane, r);
+        mDelayed.add(task);
+        mHandler.postDelayed(task, delay);
+    }
+
+    /**
+     * Posts {@param r} to run once every task posted so far has run, in any lane. Tasks posted
+     * after it can still run before it.
+     */
+    synchronized void postBarrier(Runnable r) {
+        mBarriers.add(new Task(r, mNextSeq++));
+        scheduleRunLocked();
+    }
+
+    /**
+     * Removes every pending run of {@param r}, including the delayed ones, for when it has been
+     * superseded.
+     */
+    synchronized void remove(Runnable r) {
+        for (ArrayDeque<Task> lane : mLanes) {
+            Iterator<Task> iter = lane.iterator();
+            while (iter.hasNext()) {
+                if (iter.next().runnable == r) {
+                    iter.remove();
+                }
+            }
+        }
+        Iterator<DelayedTask> iter = mDelayed.iterator();
+        while (iter.hasNext()) {
+            DelayedTask task = iter.next();
+            if (task.runnable == r) {
+                mHandler.removeCallbacks(task);
+                iter.remove();
+            }
+        }
+    }
+
+    private void scheduleRunLocked() {
+        if (!mRunPosted) {
+            mRunPosted = true;
+            mHandler.post(mRunNext);
+        }
+    }
+
+    private void runNext() {
+        final Task task;
+        synchronized (this) {
+            mRunPosted = false;
+            task = pollLocked();
+            if (task == null) {
+                return;
+            }
+            if (!mBarriers.isEmpty() || hasTasksLocked()) {
+                // Let the handler run its other messages between tasks
+                scheduleRunLocked();
+            }
+        }
+        task.runnable.run();
+    }
+
+    private boolean hasTasksLocked() {
+        for (ArrayDeque<Task> lane : mLanes) {
+            if (!lane.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Task pollLocked() {
+        // A barrier runs as soon as nothing older than it is left
+        Task barrier = mBarriers.peek();
+        if (barrier != null) {
+            boolean olderTaskLeft = false;
+            for (ArrayDeque<Task> lane : mLanes) {
+                Task head = lane.peek();
+                olderTaskLeft |= head != null && head.seq < barrier.seq;
+            }
+            if (!olderTaskLeft) {
+                return mBarriers.poll();
+            }
+        }
+
+        for (int i = 0; i < LANE_COUNT; i++) {
+            Task task = mLanes[i].poll();
+            if (task != null) {
+                long wait = SystemClock.uptimeMillis() - task.postTime;
+                mRunCount[i]++;
+                mTotalWait[i] += wait;
+                mMaxWait[i] = Math.max(mMaxWait[i], wait);
+                return task;
+            }
+        }
+        return null;
+    }
+
+    synchronized void dumpState() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            Log.d(TAG, LANE_NAMES[i] + ": depth=" + mLanes[i].size()
+                    + " maxDepth=" + mMaxDepth[i] + " runs=" + mRunCount[i]
+                    + " avgWait=" + (mRunCount[i] == 0 ? 0 : mTotalWait[i] / mRunCount[i])
+                    + "ms maxWait=" + mMaxWait[i] + "ms");
+        }
+        Log.d(TAG, "barriers=" + mBarriers.size() + " delayed=" + mDelayed.size());
+    }
+}